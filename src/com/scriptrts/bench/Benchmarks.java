@@ -0,0 +1,493 @@
+package com.scriptrts.bench;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jargs.gnu.CmdLineParser;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameMap;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
+import com.scriptrts.game.Player;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+import com.scriptrts.game.path.ClusterGraph;
+import com.scriptrts.game.path.FlowField;
+import com.scriptrts.game.path.PathCache;
+import com.scriptrts.game.path.Pathfinder;
+import com.scriptrts.game.path.ReachabilityIndex;
+import com.scriptrts.net.GameProtocol;
+
+/**
+ * Benchmarks of the simulation, pathfinding and network protocol hot paths. Maps are generated
+ * from a fixed seed so every run measures the same work. Run with the bench script; any
+ * arguments which aren't options select benchmarks by part of their name.
+ */
+public class Benchmarks {
+
+    /**
+     * Seed used for every generated map and random walk
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Size of the benchmark maps, in map tiles
+     */
+    private static final int MAP_SIZE = 129;
+
+    /**
+     * Number of ticks between refilling the paths of wandering units
+     */
+    private static final int ROUND = 20;
+
+    /**
+     * Main entry point.
+     * @param args options and benchmark name filters
+     */
+    public static void main(String... args) throws IOException {
+        CmdLineParser parser = new CmdLineParser();
+        CmdLineParser.Option warmupOpt = parser.addIntegerOption('w', "warmup");
+        CmdLineParser.Option iterOpt = parser.addIntegerOption('i', "iterations");
+        CmdLineParser.Option timeOpt = parser.addIntegerOption('t', "time");
+        CmdLineParser.Option csvOpt = parser.addStringOption("csv");
+        try {
+            parser.parse(args);
+        }
+        catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: bench [-w warmups] [-i iterations] [-t millis per iteration] [--csv file] [name filters]");
+            System.exit(2);
+        }
+
+        Harness harness = new Harness();
+        harness.setIterations((Integer) parser.getOptionValue(warmupOpt, 5), (Integer) parser.getOptionValue(iterOpt, 10));
+        harness.setIterationTime((Integer) parser.getOptionValue(timeOpt, 200));
+        for(String filter : parser.getRemainingArgs())
+            harness.addFilter(filter);
+
+        String csv = (String) parser.getOptionValue(csvOpt);
+        PrintStream csvOut = null;
+        if(csv != null){
+            try {
+                csvOut = new PrintStream(csv);
+            } catch (FileNotFoundException e){
+                System.err.println("Can't write " + csv);
+                System.exit(2);
+            }
+            harness.setCsv(csvOut);
+        }
+
+        pathfinding(harness);
+        groupOrders(harness);
+        movement(harness);
+        simulation(harness);
+        mapGeneration(harness);
+        protocol(harness);
+
+        if(csvOut != null)
+            csvOut.close();
+    }
+
+    /**
+     * Create an initialized game on the benchmark map
+     * @return new game
+     */
+    private static HeadlessGame createGame(){
+        HeadlessGame game = new HeadlessGame(MAP_SIZE);
+        game.setMapSeed(SEED);
+        game.init();
+        return game;
+    }
+
+    /**
+     * Place a unit on the first free tile at or after the given location
+     * @return the placed unit
+     */
+    private static GameObject placeNear(MapGrid grid, int x, int y, UnitShape shape){
+        GameObject unit = new GameObject(null, null, null, 30, x, y, Direction.East, shape, UnitClass.Standard);
+        while(!grid.canPlaceUnit(unit, x, y, Direction.East))
+            x++;
+        unit.getUnit().setX(x);
+        unit.getUnit().setY(y);
+        grid.placeUnit(unit);
+        return unit;
+    }
+
+    /**
+     * Benchmark routing a unit across the map
+     */
+    private static void pathfinding(Harness harness){
+        if(!harness.selected("Pathfinder.findRoute"))
+            return;
+
+        HeadlessGame game = createGame();
+        final GameObject unit = placeNear(game.getGameGrid(), 30, 30, UnitShape.SHAPE_1x1);
+        final Pathfinder pathfinder = new Pathfinder(game);
+
+        harness.measure("Pathfinder.findRoute/short", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    pathfinder.findRoute(unit, 60, 45);
+                    pathfinder.reset();
+                }
+                return ops;
+            }
+        });
+
+        final int far = game.getGameGrid().getSize() - 30;
+        harness.measure("Pathfinder.findRoute/long", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    pathfinder.findRoute(unit, far, far);
+                    pathfinder.reset();
+                }
+                return ops;
+            }
+        });
+
+        final Pathfinder jumping = new Pathfinder(game);
+        jumping.setJumpPointSearch(true);
+        harness.measure("Pathfinder.findRoute/long-jump", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    jumping.findRoute(unit, far, far);
+                    jumping.reset();
+                }
+                return ops;
+            }
+        });
+
+        /* With a cluster graph only the first leg is searched on the unit grid */
+        final ClusterGraph clusters = new ClusterGraph(game.getGameGrid());
+        clusters.getEntranceCount();
+        final Pathfinder hierarchical = new Pathfinder(game);
+        hierarchical.setClusterGraph(clusters);
+        harness.measure("Pathfinder.findRoute/long-clustered", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    hierarchical.findRoute(unit, far, far);
+                    hierarchical.reset();
+                }
+                return ops;
+            }
+        });
+
+        /* Repeating a route is answered by the path cache after the first search */
+        final PathCache cache = new PathCache(game.getGameGrid(), 256);
+        final Pathfinder caching = new Pathfinder(game);
+        caching.setPathCache(cache);
+        harness.measure("Pathfinder.findRoute/long-cached", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    caching.findRoute(unit, far, far);
+                    caching.reset();
+                }
+                return ops;
+            }
+        });
+        System.out.printf("Path cache: %d hits, %d misses%n", cache.getHits(), cache.getMisses());
+
+        /* A destination under a building can't be reached, so a plain search runs until it gives up */
+        GameObject building = new GameObject(null, null, null, 0, far, far, Direction.North, UnitShape.SHAPE_7x7, UnitClass.Building);
+        while(!game.getGameGrid().canPlaceUnit(building, building.getUnit().getX(), far, Direction.North))
+            building.getUnit().setX(building.getUnit().getX() - 1);
+        game.getGameGrid().placeUnit(building);
+        final int insideX = building.getUnit().getX(), insideY = far;
+        harness.measure("Pathfinder.findRoute/unreachable", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    pathfinder.findRoute(unit, insideX, insideY);
+                    pathfinder.reset();
+                }
+                return ops;
+            }
+        });
+
+        final Pathfinder indexed = new Pathfinder(game);
+        indexed.setReachabilityIndex(new ReachabilityIndex(game.getGameGrid()));
+        harness.measure("Pathfinder.findRoute/unreachable-indexed", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    indexed.findRoute(unit, insideX, insideY);
+                    indexed.reset();
+                }
+                return ops;
+            }
+        });
+    }
+
+    /**
+     * Benchmark routing a group of units to one point, with a search per unit and with a shared flow field
+     */
+    private static void groupOrders(Harness harness){
+        if(!harness.selected("GroupOrder"))
+            return;
+
+        final HeadlessGame game = createGame();
+        final MapGrid grid = game.getGameGrid();
+        final List<GameObject> group = new ArrayList<GameObject>();
+        for(int i = 0; i < 50; i++)
+            group.add(placeNear(grid, 40 + 2 * (i % 10), 40 + 2 * (i / 10), UnitShape.SHAPE_1x1));
+        final int far = grid.getSize() / 2;
+        final Pathfinder pathfinder = new Pathfinder(game);
+
+        harness.measure("GroupOrder/astar-50", new Harness.Task(){
+            public int run(int ops){
+                int steps = 0;
+                for(int i = 0; i < ops; i++)
+                    for(GameObject unit : group){
+                        pathfinder.findRoute(unit, far, far);
+                        steps += pathfinder.getPath().size();
+                        pathfinder.reset();
+                    }
+                return steps;
+            }
+        });
+
+        harness.measure("GroupOrder/flowfield-50", new Harness.Task(){
+            public int run(int ops){
+                int steps = 0;
+                for(int i = 0; i < ops; i++){
+                    FlowField field = new FlowField(grid, pathfinder.getTerrainCosts(), far, far, group);
+                    for(GameObject unit : group)
+                        steps += field.getPath(unit.getUnit().getX(), unit.getUnit().getY()).size();
+                }
+                return steps;
+            }
+        });
+    }
+
+    /**
+     * Benchmark single unit steps and placement checks on an empty grid
+     */
+    private static void movement(Harness harness){
+        final MapGrid grid = new MapGrid(MAP_SIZE);
+        final int n = grid.getSize();
+        final GameObject unit = placeNear(grid, 10, 10, UnitShape.SHAPE_5x5);
+
+        harness.measure("MapGrid.moveUnitOneTile", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    /* Walk back and forth across the grid */
+                    if(unit.getPath().isEmpty()){
+                        Direction d = (unit.getUnit().getX() < n / 2) ? Direction.East : Direction.West;
+                        for(int k = 0; k < n - 20; k++)
+                            unit.getPath().add(d);
+                    }
+                    grid.moveUnitOneTile(unit);
+                }
+                return unit.getUnit().getX();
+            }
+        });
+
+        harness.measure("MapGrid.canPlaceUnit", new Harness.Task(){
+            private int next = 0;
+
+            public int run(int ops){
+                int free = 0;
+                for(int i = 0; i < ops; i++, next++)
+                    if(grid.canPlaceUnit(unit, next % n, (next / n) % n, Direction.East))
+                        free++;
+                return free;
+            }
+        });
+
+        /* A large unit on the generated map, where many of the locations checked are taken */
+        final MapGrid mapGrid = createGame().getGameGrid();
+        final int size = mapGrid.getSize();
+        final GameObject large = placeNear(mapGrid, 20, 20, UnitShape.SHAPE_7x7);
+        harness.measure("MapGrid.canPlaceUnit/7x7-map", new Harness.Task(){
+            private int next = 0;
+
+            public int run(int ops){
+                int free = 0;
+                for(int i = 0; i < ops; i++, next++)
+                    if(mapGrid.canPlaceUnit(large, next % size, (next / size) % size, Direction.East))
+                        free++;
+                return free;
+            }
+        });
+
+        /* Publishing copies the cells changed since the snapshot being reused, as the game thread does every tick */
+        harness.measure("MapGrid.publishSnapshot", new Harness.Task(){
+            public int run(int ops){
+                for(int i = 0; i < ops; i++){
+                    mapGrid.removeUnit(large);
+                    mapGrid.placeUnit(large);
+                    mapGrid.publishSnapshot();
+                }
+                return mapGrid.getChangeCount();
+            }
+        });
+    }
+
+    /**
+     * Benchmark whole simulation ticks with different numbers of wandering units
+     */
+    private static void simulation(Harness harness){
+        for(int units : new int[]{100, 1000, 5000}){
+            String name = "GameManager.update/" + units;
+            if(!harness.selected(name))
+                continue;
+
+            final HeadlessGame game = createGame();
+            final GameObject[] army = spread(game, units);
+            final Random random = new Random(SEED);
+
+            harness.measure(name, new Harness.Task(){
+                private int ticks = 0;
+
+                public int run(int ops){
+                    for(int i = 0; i < ops; i++, ticks++){
+                        if(ticks % ROUND == 0)
+                            wander(army, random);
+                        game.getGameManager().update();
+                    }
+                    return ticks;
+                }
+            });
+        }
+    }
+
+    /**
+     * Spread units evenly over a game's map
+     * @return the placed units
+     */
+    private static GameObject[] spread(HeadlessGame game, int units){
+        MapGrid grid = game.getGameGrid();
+        int n = grid.getSize();
+        int spacing = Math.max(2, (int) Math.sqrt((double) (n - 20) * (n - 20) / units));
+
+        List<GameObject> army = new ArrayList<GameObject>();
+        for(int x = 10; x < n - 10 && army.size() < units; x += spacing)
+            for(int y = 10; y < n - 10 && army.size() < units; y += spacing){
+                GameObject unit = new GameObject(null, null, null, 30, x, y, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+                if(!grid.canPlaceUnit(unit, x, y, Direction.East))
+                    continue;
+                grid.placeUnit(unit);
+                game.getGameManager().addUnit(unit);
+                army.add(unit);
+            }
+        return army.toArray(new GameObject[army.size()]);
+    }
+
+    /**
+     * Give every idle unit a short walk in a random direction
+     */
+    private static void wander(GameObject[] army, Random random){
+        Direction[] directions = Direction.values();
+        for(GameObject unit : army)
+            if(unit.getPath().isEmpty()){
+                Direction d = directions[random.nextInt(directions.length)];
+                for(int i = 0; i < ROUND; i++)
+                    unit.getPath().add(d);
+            }
+    }
+
+    /**
+     * Benchmark generating a random map
+     */
+    private static void mapGeneration(Harness harness){
+        harness.measure("GameMap.generateMap", new Harness.Task(){
+            private long seed = SEED;
+
+            public int run(int ops){
+                int volcanoes = 0;
+                for(int i = 0; i < ops; i++){
+                    GameMap map = new GameMap(MAP_SIZE);
+                    map.setSeed(seed++);
+                    map.generateMap(.64, 2);
+                    volcanoes += map.getVolcanoes().size();
+                }
+                return volcanoes;
+            }
+        });
+    }
+
+    /**
+     * Benchmark writing and reading unit updates
+     */
+    private static void protocol(Harness harness){
+        final Player player = new Player("Bench", Color.RED, 1);
+        final List<Player> players = new ArrayList<Player>();
+        players.add(player);
+
+        final GameObject unit = new GameObject(player, null, null, 30, 100, 200, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        harness.measure("GameProtocol.sendUnit", new Harness.Task(){
+            public int run(int ops){
+                bytes.reset();
+                try {
+                    for(int i = 0; i < ops; i++)
+                        GameProtocol.sendUnit(out, unit);
+                } catch (IOException e){
+                    throw new RuntimeException(e);
+                }
+                return bytes.size();
+            }
+        });
+
+        /* Encode a batch of units once, then read it over and over */
+        final int encoded = 1024;
+        bytes.reset();
+        try {
+            for(int i = 0; i < encoded; i++)
+                GameProtocol.sendUnit(out, unit);
+        } catch (IOException e){
+            throw new RuntimeException(e);
+        }
+        final ByteArrayInputStream source = new ByteArrayInputStream(bytes.toByteArray());
+        final DataInputStream in = new DataInputStream(source);
+
+        /* A path as long as a route across a quarter of the map */
+        final Path path = new Path();
+        Random random = new Random(SEED);
+        for(int i = 0; i < MAP_SIZE * MapGrid.SPACES_PER_TILE / 2; i++)
+            path.add(Direction.values()[random.nextInt(8)]);
+
+        harness.measure("GameProtocol.sendPath", new Harness.Task(){
+            public int run(int ops){
+                bytes.reset();
+                try {
+                    for(int i = 0; i < ops; i++)
+                        GameProtocol.sendPath(out, path);
+                } catch (IOException e){
+                    throw new RuntimeException(e);
+                }
+                return bytes.size();
+            }
+        });
+
+        harness.measure("GameProtocol.readUnit", new Harness.Task(){
+            private int read = 0;
+
+            public int run(int ops){
+                int sum = 0;
+                try {
+                    for(int i = 0; i < ops; i++, read++){
+                        if(read % encoded == 0)
+                            source.reset();
+                        sum += GameProtocol.readUnit(in, players).getID();
+                    }
+                } catch (IOException e){
+                    throw new RuntimeException(e);
+                }
+                return sum;
+            }
+        });
+    }
+}
@@ -0,0 +1,147 @@
+package com.scriptrts.bench;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.scriptrts.control.MoveOrder;
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+import com.scriptrts.game.path.CooperativePlanner;
+import com.scriptrts.game.path.PathRepairer;
+import com.scriptrts.game.path.Pathfinder;
+
+/**
+ * Sends units through a narrow gap in a wall and counts how many get through, once with
+ * blocked units just stopping (as they did before paths were repaired), once with their paths
+ * repaired, and once with the units also planning their next few steps around each other so they
+ * take turns at the gap. The units come either all from one side or half from each side. Every unit is routed before the first tick, so
+ * they all head for the gap at the same time and get in each other's way. Each unit has a move
+ * order, so a unit which stops short is routed again every so often either way.
+ */
+public class CongestionBenchmark {
+
+    /**
+     * Size of the map, in map tiles
+     */
+    private static final int MAP_SIZE = 64;
+
+    /**
+     * X coordinate of the wall, in unit tiles
+     */
+    private static final int WALL_X = 100;
+
+    /**
+     * Lowest y coordinate of the gap in the wall, and its width
+     */
+    private static final int GAP_Y = 92, GAP_WIDTH = 6;
+
+    /**
+     * Distance each unit is sent along the x axis
+     */
+    private static final int DISTANCE = 60;
+
+    /**
+     * Most ticks to run before giving up on the units still on their way
+     */
+    private static final int TICK_LIMIT = 3000;
+
+    /**
+     * Main entry point.
+     * @param args optional number of units
+     */
+    public static void main(String... args) {
+        int units = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        /* The first run of each warms up the JIT */
+        for(boolean bothWays : new boolean[]{false, true}){
+            System.out.println(bothWays ? "Half the units from each side:" : "All the units from one side:");
+            for(int mode = 0; mode < 3; mode++){
+                run(units, mode > 0, mode > 1, bothWays, false);
+                run(units, mode > 0, mode > 1, bothWays, true);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Run the units through the gap
+     * @param repair whether blocked units have their paths repaired
+     * @param cooperative whether units plan their next few steps around each other
+     * @param bothWays whether half the units start on the other side of the wall
+     * @param report whether to print the results
+     */
+    private static void run(int count, boolean repair, boolean cooperative, boolean bothWays, boolean report){
+        HeadlessGame game = new HeadlessGame(MAP_SIZE);
+        game.setMapSeed(7);
+        game.init();
+        MapGrid grid = game.getGameGrid();
+        if(!repair)
+            grid.setBlockedUnitListener(null);
+        game.getPathHandler().setCooperative(cooperative);
+
+        /* A wall across the map with one narrow gap */
+        for(int y = 0; y < grid.getSize(); y++)
+            if((y < GAP_Y || y >= GAP_Y + GAP_WIDTH) && !grid.spaceTakenFor(WALL_X, y, null))
+                grid.placeUnit(new GameObject(null, null, null, 0, WALL_X, y, Direction.North, UnitShape.SHAPE_1x1, UnitClass.Building));
+
+        /* Units head for the other side of the wall from the side they start on */
+        List<GameObject> group = new ArrayList<GameObject>();
+        List<Point> destinations = new ArrayList<Point>();
+        int side = (int) Math.ceil(Math.sqrt(bothWays ? count / 2.0 : count));
+        Pathfinder pathfinder = new Pathfinder(game);
+        for(int i = 0; i < count; i++){
+            int west = (!bothWays || i % 2 == 0) ? 1 : 0, k = bothWays ? i / 2 : i;
+            int offset = 10 + 2 * (k % side);
+            int x = west == 1 ? WALL_X - offset : WALL_X + offset, y = GAP_Y + 1 - side + 2 * (k / side);
+            Point destination = new Point(west == 1 ? x + DISTANCE : x - DISTANCE, y);
+            GameObject unit = new GameObject(null, null, null, 30, x, y, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+            if(!grid.canPlaceUnit(unit, x, y, Direction.East) || grid.spaceTakenFor(destination.x, destination.y, null))
+                continue;
+            grid.placeUnit(unit);
+            game.getGameManager().addUnit(unit);
+
+            pathfinder.findRoute(unit, destination.x, destination.y);
+            unit.getUnit().setDestination(destination, pathfinder.getDirections());
+            pathfinder.reset();
+            unit.getUnit().getOrderHandler().getOrders().add(new MoveOrder(destination));
+            group.add(unit);
+            destinations.add(destination);
+        }
+
+        long start = System.nanoTime();
+        int ticks = 0, arrived = 0;
+        while(ticks < TICK_LIMIT){
+            game.update();
+            ticks++;
+
+            arrived = 0;
+            for(int i = 0; i < group.size(); i++)
+                if(group.get(i).getUnit().getX() == destinations.get(i).x && group.get(i).getUnit().getY() == destinations.get(i).y)
+                    arrived++;
+            if(arrived == group.size())
+                break;
+        }
+        long nanos = System.nanoTime() - start;
+        game.getPathHandler().shutdown();
+
+        if(report){
+            PathRepairer repairer = game.getPathHandler().getPathRepairer();
+            String label = cooperative ? "Planning cooperatively" : repair ? "Repairing paths" : "Stopping blocked units";
+            System.out.printf("  %s: %d of %d units across in %d ticks (%.1f us per tick)%n",
+                    label, arrived, group.size(), ticks, nanos / 1e3 / ticks);
+            if(repair)
+                System.out.printf("    %d repairs (%d reusing an earlier search), %d units routed again from scratch%n",
+                        repairer.getRepairCount(), repairer.getReusedCount(), repairer.getReroutedCount());
+            if(cooperative){
+                CooperativePlanner planner = game.getPathHandler().getCooperativePlanner();
+                System.out.printf("    %d plans (%d not found), %d ticks units were held back to let others by%n",
+                        planner.getPlanCount(), planner.getFailedCount(), planner.getHeldCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.scriptrts.bench;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Measures how long it takes the unit grid to process a group move: every unit in a group
+ * has reserved its next step, and then every unit gets a new path at once, as happens when
+ * the pathfinders finish routing a selection that was given a move order.
+ */
+public class GroupMoveBenchmark {
+
+    /**
+     * Main entry point.
+     * @param args optional map size (map tiles), group size, and number of measured rounds
+     */
+    public static void main(String... args) {
+        int mapSize = args.length > 0 ? Integer.parseInt(args[0]) : 129;
+        int groupSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        MapGrid grid = new MapGrid(mapSize);
+        GameObject[] group = createGroup(grid, mapSize, groupSize);
+
+        /* Warm up before measuring */
+        for(int i = 0; i < rounds; i++)
+            groupMove(grid, group);
+
+        long total = 0;
+        for(int i = 0; i < rounds; i++)
+            total += groupMove(grid, group);
+
+        double perMove = total / 1e6 / rounds;
+        System.out.printf("Map %d, group of %d: %.3f ms per group re-path (%.2f us per unit)%n",
+                mapSize, groupSize, perMove, perMove * 1000 / groupSize);
+    }
+
+    /**
+     * Place a square block of units in the middle of the map, spaced so each has room to move
+     * @return the placed units
+     */
+    private static GameObject[] createGroup(MapGrid grid, int mapSize, int groupSize){
+        GameObject[] group = new GameObject[groupSize];
+        int side = (int) Math.ceil(Math.sqrt(groupSize));
+        int start = mapSize * MapGrid.SPACES_PER_TILE / 2 - side;
+
+        for(int i = 0; i < groupSize; i++){
+            int x = start + 2 * (i % side);
+            int y = start + 2 * (i / side);
+            group[i] = new GameObject(null, null, null, 9, x, y, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+            grid.placeUnit(group[i]);
+        }
+        return group;
+    }
+
+    /**
+     * Have every unit reserve its next step, then change every unit's path.
+     * @return nanoseconds spent processing the path changes
+     */
+    private static long groupMove(MapGrid grid, GameObject[] group){
+        /* Give each unit a path and let it reserve the first step */
+        for(GameObject unit : group){
+            unit.getPath().clear();
+            unit.getPath().add(Direction.North);
+            grid.moveUnitOneTile(unit);
+        }
+
+        /* New paths arrive for the whole group */
+        long start = System.nanoTime();
+        for(GameObject unit : group){
+            unit.setDirection(null);
+            grid.unitPathChanged(unit, unit.getPath());
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,167 @@
+package com.scriptrts.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small benchmark harness. Each benchmark is run in batches: the batch size is first calibrated
+ * so a batch takes a measurable amount of time, then a number of warm-up iterations let the JIT
+ * compile the code, and finally each measured iteration runs batches for a fixed amount of time.
+ * The time per operation is reported as the mean and standard deviation over the measured
+ * iterations, so numbers from before and after a change can be compared.
+ */
+public class Harness {
+
+    /**
+     * Work measured by a benchmark
+     */
+    public interface Task {
+        /**
+         * Perform a number of operations
+         * @param ops number of operations to perform
+         * @return any result of the work, so the JIT can't remove it
+         */
+        int run(int ops);
+    }
+
+    /**
+     * Number of warm-up iterations
+     */
+    private int warmups = 5;
+
+    /**
+     * Number of measured iterations
+     */
+    private int iterations = 10;
+
+    /**
+     * Length of one iteration in nanoseconds
+     */
+    private long iterationNanos = 200 * 1000000L;
+
+    /**
+     * Substrings of the names of the benchmarks to run (all are run if this is empty)
+     */
+    private List<String> filters = new ArrayList<String>();
+
+    /**
+     * Stream receiving results as comma-separated values, or null
+     */
+    private PrintStream csv;
+
+    /**
+     * Sink receiving benchmark results so the JIT can't remove the measured work
+     */
+    private static int sink = 0;
+
+    /**
+     * Set the number of warm-up and measured iterations
+     * @param warmups number of warm-up iterations
+     * @param iterations number of measured iterations
+     */
+    public void setIterations(int warmups, int iterations){
+        this.warmups = warmups;
+        this.iterations = Math.max(1, iterations);
+    }
+
+    /**
+     * Set how long each iteration runs
+     * @param millis iteration length in milliseconds
+     */
+    public void setIterationTime(int millis){
+        iterationNanos = millis * 1000000L;
+    }
+
+    /**
+     * Only run benchmarks whose name contains the given text
+     * @param filter part of a benchmark name
+     */
+    public void addFilter(String filter){
+        filters.add(filter);
+    }
+
+    /**
+     * Also write results as comma-separated values
+     * @param out stream to write to
+     */
+    public void setCsv(PrintStream out){
+        csv = out;
+        csv.println("benchmark,mean_ns_per_op,stddev_ns_per_op,min_ns_per_op,ops_per_iteration");
+    }
+
+    /**
+     * Check whether a benchmark will be run, so expensive setup can be skipped if not
+     * @param name benchmark name
+     * @return true if the benchmark is selected
+     */
+    public boolean selected(String name){
+        if(filters.isEmpty())
+            return true;
+        for(String filter : filters)
+            if(name.contains(filter))
+                return true;
+        return false;
+    }
+
+    /**
+     * Measure a benchmark and print the results
+     * @param name benchmark name
+     * @param task work to measure
+     */
+    public void measure(String name, Task task){
+        if(!selected(name))
+            return;
+
+        /* Double the batch until one batch takes at least a tenth of an iteration */
+        int batch = 1;
+        while(time(task, batch) < iterationNanos / 10 && batch < (1 << 30))
+            batch *= 2;
+
+        for(int i = 0; i < warmups; i++)
+            iteration(task, batch);
+
+        double[] results = new double[iterations];
+        for(int i = 0; i < iterations; i++)
+            results[i] = iteration(task, batch);
+
+        double mean = 0, min = Double.MAX_VALUE;
+        for(double r : results){
+            mean += r;
+            min = Math.min(min, r);
+        }
+        mean /= iterations;
+
+        double variance = 0;
+        for(double r : results)
+            variance += (r - mean) * (r - mean);
+        double stddev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        System.out.printf("%-36s %14.1f ns/op  +- %10.1f  (min %.1f, %d ops/batch)%n", name, mean, stddev, min, batch);
+        if(csv != null)
+            csv.printf("%s,%.1f,%.1f,%.1f,%d%n", name, mean, stddev, min, batch);
+    }
+
+    /**
+     * Run batches for one iteration
+     * @return nanoseconds per operation
+     */
+    private double iteration(Task task, int batch){
+        long elapsed = 0, ops = 0;
+        while(elapsed < iterationNanos){
+            elapsed += time(task, batch);
+            ops += batch;
+        }
+        return (double) elapsed / ops;
+    }
+
+    /**
+     * Time a single batch
+     * @return nanoseconds taken
+     */
+    private long time(Task task, int batch){
+        long start = System.nanoTime();
+        sink += task.run(batch);
+        return System.nanoTime() - start;
+    }
+}
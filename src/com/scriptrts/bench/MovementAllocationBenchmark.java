@@ -0,0 +1,119 @@
+package com.scriptrts.bench;
+
+import java.lang.management.ManagementFactory;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Checks that unit movement and neighbor queries on the unit grid don't allocate. Prints the
+ * number of bytes allocated per operation and exits with a non-zero status if any of the
+ * measured operations allocates, so it can be used as a regression check.
+ */
+public class MovementAllocationBenchmark {
+
+    /**
+     * Number of bytes of measurement noise tolerated over a whole run
+     */
+    private static final long TOLERANCE = 4096;
+
+    /**
+     * Thread bean used to read how many bytes the current thread has allocated
+     */
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Sink used to keep results alive so the JIT can't remove the measured work
+     */
+    private static int sink = 0;
+
+    /**
+     * Main entry point.
+     * @param args optional number of measured operations
+     */
+    public static void main(String... args) {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        MapGrid grid = new MapGrid(129);
+        GameObject unit = new GameObject(null, null, null, 9, 10, 10, Direction.East, UnitShape.SHAPE_5x5, UnitClass.Standard);
+        grid.placeUnit(unit);
+
+        /* Warm up, then measure */
+        neighbors(grid, ops);
+        placement(grid, unit, ops);
+        movement(grid, unit, ops / 100);
+
+        boolean ok = true;
+        ok &= report("getNeighbors", ops, neighbors(grid, ops));
+        ok &= report("canPlaceUnit", ops, placement(grid, unit, ops));
+        ok &= report("moveUnitOneTile", ops / 100, movement(grid, unit, ops / 100));
+
+        System.out.println(ok ? "No allocations." : "Allocation regression!");
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Print the allocation rate of an operation
+     * @return true if the operation didn't allocate
+     */
+    private static boolean report(String name, int ops, long bytes){
+        System.out.printf("%-16s %10.4f bytes/op (%d bytes over %d ops)%n", name, (double) bytes / ops, bytes, ops);
+        return bytes <= TOLERANCE;
+    }
+
+    /**
+     * Query neighbors all over the grid
+     * @return bytes allocated
+     */
+    private static long neighbors(MapGrid grid, int ops){
+        int[] xs = new int[8], ys = new int[8], dirs = new int[8];
+        int n = 129 * MapGrid.SPACES_PER_TILE;
+
+        long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for(int i = 0; i < ops; i++)
+            sink += grid.getNeighbors(i % n, (i / n) % n, xs, ys, dirs);
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    }
+
+    /**
+     * Test unit placement all over the grid
+     * @return bytes allocated
+     */
+    private static long placement(MapGrid grid, GameObject unit, int ops){
+        int n = 129 * MapGrid.SPACES_PER_TILE;
+
+        long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for(int i = 0; i < ops; i++)
+            if(grid.canPlaceUnit(unit, i % n, (i / n) % n, Direction.East))
+                sink++;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    }
+
+    /**
+     * Walk a unit back and forth across the grid one tile at a time
+     * @return bytes allocated while moving (not while building the paths)
+     */
+    private static long movement(MapGrid grid, GameObject unit, int ops){
+        int n = 129 * MapGrid.SPACES_PER_TILE;
+        int lap = n - 20;
+        long bytes = 0;
+
+        for(int done = 0; done < ops; done += lap){
+            /* Build the path for this lap outside of the measurement */
+            Direction d = (unit.getUnit().getX() < n / 2) ? Direction.East : Direction.West;
+            unit.getPath().clear();
+            for(int i = 0; i < lap; i++)
+                unit.getPath().add(d);
+
+            long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for(int i = 0; i <= lap; i++)
+                grid.moveUnitOneTile(unit);
+            bytes += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,137 @@
+package com.scriptrts.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.GameScheduler;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Hosts several headless games in one JVM on a shared scheduler, gives every unit in every game
+ * a move order, and checks that the games ran independently: each game ticked at its own rate,
+ * handed out its own unit IDs, and moved its own units. Exits with a non-zero status if any
+ * game failed these checks.
+ */
+public class ParallelGamesBenchmark {
+
+    /**
+     * Fraction of the expected ticks a game must have run to pass
+     */
+    private static final double MIN_TICK_FRACTION = 0.9;
+
+    /**
+     * Main entry point.
+     * @param args optional number of games, units per game, scheduler threads, and seconds to run
+     */
+    public static void main(String... args) throws InterruptedException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int units = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        /* Set up every game before any of them starts */
+        List<HeadlessGame> running = new ArrayList<HeadlessGame>();
+        List<GameObject[]> groups = new ArrayList<GameObject[]>();
+        for(int i = 0; i < games; i++){
+            HeadlessGame game = new HeadlessGame(65);
+            game.init();
+            running.add(game);
+            groups.add(createGroup(game, units));
+        }
+
+        GameScheduler scheduler = new GameScheduler(threads);
+        long cpuStart = processCpuTime();
+        long start = System.nanoTime();
+        for(HeadlessGame game : running)
+            scheduler.start(game);
+
+        /* Send every group to the far corner of its map */
+        for(int i = 0; i < games; i++){
+            HeadlessGame game = running.get(i);
+            int corner = game.getCurrentMap().getN() * MapGrid.SPACES_PER_TILE - 20;
+            synchronized(game){
+                for(GameObject unit : groups.get(i))
+                    unit.getUnit().setDestination(corner, corner);
+            }
+        }
+
+        Thread.sleep(seconds * 1000L);
+        for(HeadlessGame game : running)
+            scheduler.stop(game);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double cpu = (processCpuTime() - cpuStart) / 1e9;
+        scheduler.shutdown();
+
+        boolean ok = true;
+        for(int i = 0; i < games; i++)
+            ok &= report(i, running.get(i), groups.get(i), elapsed);
+
+        System.out.printf("%d games x %d units on %d threads: %.1f s CPU over %.1f s%n", games, units, threads, cpu, elapsed);
+        System.out.println(ok ? "All games ran independently." : "Some games failed!");
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Place a block of units near the corner of a game's map
+     * @return the placed units
+     */
+    private static GameObject[] createGroup(HeadlessGame game, int size){
+        MapGrid grid = game.getGameGrid();
+        GameObject[] group = new GameObject[size];
+        int side = (int) Math.ceil(Math.sqrt(size));
+
+        int placed = 0;
+        for(int k = 0; placed < size; k++){
+            int x = 20 + 2 * (k % side);
+            int y = 20 + 2 * (k / side);
+            GameObject unit = new GameObject(null, null, null, 30, x, y, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+
+            /* Skip spots taken by terrain */
+            if(!grid.canPlaceUnit(unit, x, y, Direction.East))
+                continue;
+
+            grid.placeUnit(unit);
+            game.getGameManager().addUnit(unit);
+            group[placed++] = unit;
+        }
+        return group;
+    }
+
+    /**
+     * Print what a game did and check it ran on its own
+     * @return true if the game passed
+     */
+    private static boolean report(int index, HeadlessGame game, GameObject[] group, double elapsed){
+        long ticks = game.getClock().getTickCount();
+        long expected = (long) (elapsed * game.getClock().getTickRate());
+
+        int moved = 0;
+        boolean idsOk = true;
+        for(int i = 0; i < group.length; i++){
+            if(group[i].getUnit().getX() > 40 || group[i].getUnit().getY() > 40)
+                moved++;
+            /* Each game numbers its own units from zero */
+            idsOk &= group[i].getID() == i && game.getGameManager().unitWithId(i) == group[i];
+        }
+
+        boolean ok = idsOk && moved > 0 && ticks >= expected * MIN_TICK_FRACTION;
+        System.out.printf("Game %d: %d/%d ticks, %d/%d units moved, ids %s%s%n",
+                index, ticks, expected, moved, group.length, idsOk ? "ok" : "WRONG", ok ? "" : "  FAILED");
+        return ok;
+    }
+
+    /**
+     * Get the CPU time used by this process
+     * @return CPU time in nanoseconds
+     */
+    private static long processCpuTime(){
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
@@ -0,0 +1,159 @@
+package com.scriptrts.bench;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Measures how fast a large battle ticks when units are moved serially and when they are moved
+ * region by region on fork/join pools of increasing size. Every unit wanders randomly across the
+ * map; every eighth unit is a 5x5 unit, so the counts of taken cells kept for square shapes are
+ * updated too. After each run the unit grid is checked: every unit must still be standing on its
+ * own tile, which fails if two units moved onto the same cell at once, and the counts of taken
+ * cells must match the cells when counted again, which fails if units moved at once lost each
+ * other's changes to them. Exits with a non-zero status if the check fails.
+ */
+public class ParallelUpdateBenchmark {
+
+    /**
+     * Number of ticks between refilling the units' paths
+     */
+    private static final int ROUND = 20;
+
+    /**
+     * One unit in this many is a 5x5 unit
+     */
+    private static final int LARGE_EVERY = 8;
+
+    /**
+     * Main entry point.
+     * @param args optional number of units, map size (map tiles), measured ticks, and largest pool size
+     */
+    public static void main(String... args) {
+        int units = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int mapSize = args.length > 1 ? Integer.parseInt(args[1]) : 129;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors available");
+
+        boolean ok = true;
+        double serial = run(units, mapSize, ticks, 0);
+        ok &= serial > 0;
+        for(int threads = 2; threads <= maxThreads; threads *= 2){
+            double time = run(units, mapSize, ticks, threads);
+            ok &= time > 0;
+            System.out.printf("  speedup over serial: %.2fx%n", serial / Math.abs(time));
+        }
+
+        System.out.println(ok ? "Grid consistent after every run." : "Grid corrupted!");
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Tick a fresh game full of wandering units
+     * @param threads size of the fork/join pool, or 0 to update serially
+     * @return milliseconds per tick, negated if the grid was left inconsistent
+     */
+    private static double run(int units, int mapSize, int ticks, int threads){
+        HeadlessGame game = new HeadlessGame(mapSize);
+        game.init();
+        Random random = new Random(42);
+        GameObject[] army = createArmy(game, units);
+
+        ForkJoinPool pool = null;
+        if(threads == 0)
+            game.getGameManager().setParallelUpdates(false);
+        else {
+            pool = new ForkJoinPool(threads);
+            game.getGameManager().setUpdatePool(pool);
+        }
+
+        /* Warm up, then measure */
+        tick(game, army, random, ticks);
+        long time = tick(game, army, random, ticks);
+
+        if(pool != null)
+            pool.shutdown();
+
+        double perTick = time / 1e6 / ticks;
+        boolean consistent = checkGrid(game, army);
+        System.out.printf("%-8s %d units: %.3f ms per tick%s%n", threads == 0 ? "serial" : threads + " threads",
+                army.length, perTick, consistent ? "" : "  GRID INCONSISTENT");
+        return consistent ? perTick : -perTick;
+    }
+
+    /**
+     * Spread units evenly over the map
+     * @return the placed units
+     */
+    private static GameObject[] createArmy(HeadlessGame game, int units){
+        MapGrid grid = game.getGameGrid();
+        int n = grid.getSize();
+        int spacing = Math.max(2, (int) Math.sqrt((double) (n - 20) * (n - 20) / units));
+
+        GameObject[] army = new GameObject[units];
+        int placed = 0;
+        for(int x = 10; x < n - 10 && placed < units; x += spacing)
+            for(int y = 10; y < n - 10 && placed < units; y += spacing){
+                UnitShape shape = placed % LARGE_EVERY == 0 ? UnitShape.SHAPE_5x5 : UnitShape.SHAPE_1x1;
+                GameObject unit = new GameObject(null, null, null, 30, x, y, Direction.East, shape, UnitClass.Standard);
+                if(!grid.canPlaceUnit(unit, x, y, Direction.East))
+                    continue;
+                grid.placeUnit(unit);
+                game.getGameManager().addUnit(unit);
+                army[placed++] = unit;
+            }
+
+        if(placed < units){
+            GameObject[] fewer = new GameObject[placed];
+            System.arraycopy(army, 0, fewer, 0, placed);
+            return fewer;
+        }
+        return army;
+    }
+
+    /**
+     * Run ticks, refilling the paths of idle units between rounds
+     * @return nanoseconds spent ticking
+     */
+    private static long tick(HeadlessGame game, GameObject[] army, Random random, int ticks){
+        Direction[] directions = Direction.values();
+        long total = 0;
+        for(int done = 0; done < ticks; done += ROUND){
+            /* Give idle units a new random walk outside of the measurement */
+            for(GameObject unit : army)
+                if(unit.getPath().isEmpty()){
+                    Direction d = directions[random.nextInt(directions.length)];
+                    for(int i = 0; i < ROUND; i++)
+                        unit.getPath().add(d);
+                }
+
+            long start = System.nanoTime();
+            for(int i = 0; i < ROUND; i++)
+                game.update();
+            total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    /**
+     * Check that every unit is standing on a tile of its own, and that the counts of taken cells
+     * match the cells
+     * @return true if the grid is consistent
+     */
+    private static boolean checkGrid(HeadlessGame game, GameObject[] army){
+        MapGrid grid = game.getGameGrid();
+        for(GameObject unit : army)
+            if(grid.getUnit(unit.getUnit().getX(), unit.getUnit().getY()) != unit)
+                return false;
+        return grid.isClearanceConsistent();
+    }
+}
@@ -0,0 +1,231 @@
+package com.scriptrts.bench;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+import com.scriptrts.game.path.Pathfinder;
+
+/**
+ * Checks and times the pathfinder on maps scattered with random obstacles, with A* and with jump
+ * point search, and counts the nodes each search expands. Each route is checked against a
+ * breadth-first search over the same moves: the path must start at the unit, every step must be
+ * one the unit could take, and the path must reach the destination exactly when the breadth-first
+ * search can, without being shorter than the shortest route. Exits with a non-zero status if any
+ * route fails.
+ */
+public class PathfinderCheck {
+
+    /**
+     * Number of map tiles along one edge of the test maps
+     */
+    private static final int MAP_SIZE = 64;
+
+    /**
+     * Largest distance along each axis between a unit and its destination, in unit tiles
+     */
+    private static final int RANGE = 30;
+
+    /**
+     * Main entry point.
+     * @param args optional number of maps, routes per map, and obstacle density (percent)
+     */
+    public static void main(String... args) {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int routes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int density = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+
+        /* The first pass of each search warms up the JIT, the second is timed */
+        boolean ok = true;
+        for(boolean jump : new boolean[]{false, true}){
+            System.out.println(jump ? "Jump point search:" : "A*:");
+            run(maps, routes, density, jump, false);
+            ok &= run(maps, routes, density, jump, true);
+        }
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Route units across a series of random maps
+     * @param jump whether to use jump point search
+     * @param report whether to print the results
+     * @return true if every route passed its checks
+     */
+    private static boolean run(int maps, int routes, int density, boolean jump, boolean report){
+        Random random = new Random(42);
+        int failures = 0, reached = 0, unreachable = 0;
+        long searchNanos = 0, pathSteps = 0, shortestSteps = 0, expanded = 0;
+
+        for(int m = 0; m < maps; m++){
+            HeadlessGame game = new HeadlessGame(MAP_SIZE);
+            game.setMapSeed(m);
+            game.init();
+            MapGrid grid = game.getGameGrid();
+            scatter(grid, random, density);
+
+            Pathfinder pathfinder = new Pathfinder(game);
+            pathfinder.setJumpPointSearch(jump);
+            int[] distance = new int[grid.getSize() * grid.getSize()];
+
+            for(int r = 0; r < routes; r++){
+                GameObject unit = placeUnit(grid, random);
+                int endX = clamp(unit.getUnit().getX() + random.nextInt(2 * RANGE + 1) - RANGE, grid.getSize());
+                int endY = clamp(unit.getUnit().getY() + random.nextInt(2 * RANGE + 1) - RANGE, grid.getSize());
+
+                /* Routes into an obstacle end next to it, so only pick free destinations */
+                if((endX == unit.getUnit().getX() && endY == unit.getUnit().getY()) || grid.spaceTakenFor(endX, endY, null)){
+                    grid.removeUnit(unit);
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                pathfinder.findRoute(unit, endX, endY);
+                searchNanos += System.nanoTime() - start;
+                expanded += pathfinder.getExpanded();
+
+                ArrayList<Point> path = pathfinder.getPath();
+                int shortest = shortestRoute(grid, unit, endX, endY, distance);
+                String error = check(grid, unit, path, endX, endY, shortest);
+                if(error != null){
+                    failures++;
+                    if(report)
+                        System.out.printf("Map %d route %d from (%d, %d) to (%d, %d): %s%n", m, r,
+                                unit.getUnit().getX(), unit.getUnit().getY(), endX, endY, error);
+                }
+                else if(shortest < 0)
+                    unreachable++;
+                else {
+                    reached++;
+                    pathSteps += path.size() - 1;
+                    shortestSteps += shortest;
+                }
+
+                pathfinder.reset();
+                grid.removeUnit(unit);
+            }
+        }
+
+        if(report){
+            System.out.printf("%d routes found, %d unreachable, %d failed%n", reached, unreachable, failures);
+            if(reached > 0)
+                System.out.printf("Paths %.2f%% longer than the shortest route on average%n",
+                        100.0 * (pathSteps - shortestSteps) / shortestSteps);
+            int searches = Math.max(1, reached + unreachable + failures);
+            System.out.printf("%.1f us per search%n", searchNanos / 1e3 / searches);
+            System.out.printf("%.1f nodes expanded per search%n", (double) expanded / searches);
+        }
+        return failures == 0;
+    }
+
+    /**
+     * Scatter single tile obstacles over the grid
+     */
+    private static void scatter(MapGrid grid, Random random, int density){
+        int n = grid.getSize();
+        for(int x = 0; x < n; x++)
+            for(int y = 0; y < n; y++)
+                if(random.nextInt(100) < density)
+                    grid.placeUnit(new GameObject(null, null, null, 0, x, y, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Building));
+    }
+
+    /**
+     * Place a unit to route on a random free tile
+     * @return the placed unit
+     */
+    private static GameObject placeUnit(MapGrid grid, Random random){
+        int n = grid.getSize();
+        GameObject unit = new GameObject(null, null, null, 30, 0, 0, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+        int x, y;
+        do {
+            x = random.nextInt(n);
+            y = random.nextInt(n);
+        } while(!grid.canPlaceUnit(unit, x, y, Direction.East));
+        grid.placeUnit(unit, x, y);
+        return unit;
+    }
+
+    /**
+     * Clamp a coordinate to the grid
+     */
+    private static int clamp(int c, int n){
+        return c < 0 ? 0 : (c >= n ? n - 1 : c);
+    }
+
+    /**
+     * Find the number of steps on the shortest route to a destination with a breadth-first search
+     * @param distance buffer with one entry per grid cell
+     * @return number of steps, or -1 if the destination can't be reached
+     */
+    private static int shortestRoute(MapGrid grid, GameObject unit, int endX, int endY, int[] distance){
+        int n = grid.getSize();
+        Arrays.fill(distance, -1);
+        int[] queue = new int[n * n];
+        int[] nx = new int[8], ny = new int[8], nd = new int[8];
+        Direction[] directions = Direction.values();
+
+        int head = 0, tail = 0;
+        int start = unit.getUnit().getX() * n + unit.getUnit().getY();
+        distance[start] = 0;
+        queue[tail++] = start;
+        while(head < tail){
+            int cell = queue[head++];
+            int x = cell / n, y = cell % n;
+            if(x == endX && y == endY)
+                return distance[cell];
+
+            int count = grid.getNeighbors(x, y, nx, ny, nd);
+            for(int i = 0; i < count; i++){
+                int next = nx[i] * n + ny[i];
+                Direction d = directions[nd[i]];
+                if(distance[next] < 0 && grid.canPlaceUnit(unit, x, y, d) && grid.canPlaceUnit(unit, nx[i], ny[i], d)){
+                    distance[next] = distance[cell] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check a path found by the pathfinder
+     * @param shortest length of the shortest route, or -1 if there is none
+     * @return description of what is wrong with the path, or null if it is fine
+     */
+    private static String check(MapGrid grid, GameObject unit, ArrayList<Point> path, int endX, int endY, int shortest){
+        if(path.isEmpty())
+            return "no path";
+
+        Point first = path.get(0);
+        if(first.x != unit.getUnit().getX() || first.y != unit.getUnit().getY())
+            return "path doesn't start at the unit";
+
+        for(int i = 1; i < path.size(); i++){
+            Point from = path.get(i - 1), to = path.get(i);
+            int dx = to.x - from.x, dy = to.y - from.y;
+            if(Math.abs(dx) > 1 || Math.abs(dy) > 1 || (dx == 0 && dy == 0))
+                return "step " + i + " isn't to a neighboring tile";
+
+            Direction d = MapGrid.getDirection(dx, dy);
+            if(!grid.canPlaceUnit(unit, from.x, from.y, d) || !grid.canPlaceUnit(unit, to.x, to.y, d))
+                return "step " + i + " is blocked";
+        }
+
+        Point last = path.get(path.size() - 1);
+        boolean arrived = last.x == endX && last.y == endY;
+        if(arrived && shortest < 0)
+            return "path reaches an unreachable destination";
+        if(!arrived && shortest >= 0)
+            return "path stops short of a reachable destination";
+        if(arrived && path.size() - 1 < shortest)
+            return "path is shorter than the shortest route";
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+package com.scriptrts.bench;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.SimulationClock;
+import com.scriptrts.game.UnitClass;
+import com.scriptrts.game.UnitShape;
+import com.scriptrts.game.path.PathHandler;
+
+/**
+ * Compares routing units on pathfinder threads with routing them on the game thread under a
+ * budget of cell expansions per tick. Units scattered over the map are all sent somewhere else
+ * every so often, and the benchmark reports how long ticks take and how many ticks units wait
+ * for their routes. Ticks are run at the default tick rate, so routes found on worker threads
+ * arrive after as many ticks as they would in a game. With worker threads the searches don't
+ * show up in the tick time, but they need cores of their own. The first tick, in which the
+ * cluster graph and the reachability index are built, is left out of the tick times.
+ */
+public class SlicedRoutingBenchmark {
+
+    /**
+     * Size of the map, in map tiles
+     */
+    private static final int MAP_SIZE = 129;
+
+    /**
+     * Number of ticks between orders
+     */
+    private static final int ORDER_EVERY = 50;
+
+    /**
+     * Number of ticks run
+     */
+    private static final int TICKS = 300;
+
+    /**
+     * Length of a tick, in nanoseconds
+     */
+    private static final long TICK_NANOS = 1000000000L / SimulationClock.DEFAULT_TICK_RATE;
+
+    /**
+     * Number of searches under way at once on the game thread
+     */
+    private static final int SEARCHES = 4;
+
+    /**
+     * Main entry point.
+     * @param args optional number of units
+     */
+    public static void main(String... args) {
+        int units = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        /* The first run of each warms up the JIT */
+        for(int budget : new int[]{0, 2000, 10000}){
+            run(units, budget, false);
+            run(units, budget, true);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Run the game with units being sent across the map
+     * @param budget cells expanded per tick on the game thread, or zero to use pathfinder threads
+     * @param report whether to print the results
+     */
+    private static void run(int count, int budget, boolean report){
+        HeadlessGame game = new HeadlessGame(MAP_SIZE);
+        game.setMapSeed(3);
+        game.init();
+        MapGrid grid = game.getGameGrid();
+        PathHandler handler = game.getPathHandler();
+        if(budget > 0)
+            handler.setTimeSlicing(SEARCHES, budget);
+
+        Random random = new Random(5);
+        int n = grid.getSize();
+        List<GameObject> group = new ArrayList<GameObject>();
+        while(group.size() < count){
+            int x = random.nextInt(n), y = random.nextInt(n);
+            GameObject unit = new GameObject(null, null, null, 30, x, y, Direction.East, UnitShape.SHAPE_1x1, UnitClass.Standard);
+            if(!grid.canPlaceUnit(unit, x, y, Direction.East))
+                continue;
+            grid.placeUnit(unit);
+            game.getGameManager().addUnit(unit);
+            group.add(unit);
+        }
+
+        long[] tickTimes = new long[TICKS];
+        long waited = 0, routed = 0;
+        int[] orderedAt = new int[count];
+        Arrays.fill(orderedAt, -1);
+        for(int tick = 0; tick < TICKS; tick++){
+            if(tick % ORDER_EVERY == 0)
+                for(int i = 0; i < count; i++){
+                    Point destination = new Point(random.nextInt(n), random.nextInt(n));
+                    group.get(i).getUnit().setDestination(destination);
+                    orderedAt[i] = tick;
+                }
+
+            long start = System.nanoTime();
+            game.update();
+            tickTimes[tick] = System.nanoTime() - start;
+            sleep(start + TICK_NANOS - System.nanoTime());
+
+            for(int i = 0; i < count; i++)
+                if(orderedAt[i] >= 0 && !handler.isPending(group.get(i))){
+                    waited += tick + 1 - orderedAt[i];
+                    routed++;
+                    orderedAt[i] = -1;
+                }
+        }
+        handler.shutdown();
+
+        if(report){
+            long[] sorted = Arrays.copyOfRange(tickTimes, 1, TICKS);
+            Arrays.sort(sorted);
+            long total = 0;
+            for(long t : sorted)
+                total += t;
+            System.out.printf("%s: %.0f us mean tick, %.0f us 99th percentile, %.0f us worst; %d routes, %.1f ticks waited on average%n",
+                    budget == 0 ? "Pathfinder threads" : "Game thread, " + budget + " cells per tick",
+                    total / 1e3 / sorted.length, sorted[sorted.length * 99 / 100] / 1e3, sorted[sorted.length - 1] / 1e3,
+                    routed, routed == 0 ? 0.0 : (double) waited / routed);
+        }
+    }
+
+    /**
+     * Sleep until the next tick is due
+     * @param nanos time left until then
+     */
+    private static void sleep(long nanos){
+        if(nanos <= 0)
+            return;
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.awt.Point;
 import java.util.Queue;
 
 import com.scriptrts.game.GameObject;
+import com.scriptrts.game.Path;
+import com.scriptrts.game.path.FlowField;
 
 /**
  * Order a unit to move to a given location
@@ -14,6 +16,32 @@ public class MoveOrder extends Order implements Comparable<MoveOrder> {
      */
     private Point point;
 
+    /**
+     * Flow field shared by the group given this order, or null if the unit finds its own route
+     */
+    private FlowField flowField;
+
+    /**
+     * Number of updates between attempts to get a stalled unit moving again
+     */
+    private int retryFrequency = 20;
+
+    /**
+     * Counter to determine when to retry
+     */
+    private int retry = 0;
+
+    /**
+     * Most attempts to get a stalled unit moving again, so a unit which can't reach the point
+     * doesn't keep searching for a route
+     */
+    private static final int MAX_RETRIES = 10;
+
+    /**
+     * Number of attempts made so far
+     */
+    private int retries = 0;
+
     /**
      * Create a new move order
      */
@@ -21,6 +49,16 @@ public class MoveOrder extends Order implements Comparable<MoveOrder> {
         this.point = point;
     }
 
+    /**
+     * Create a new move order for a unit in a group, which follows a flow field shared by the group
+     * @param point where to move
+     * @param flowField flow field leading to the point
+     */
+    public MoveOrder(Point point, FlowField flowField){
+        this(point);
+        this.flowField = flowField;
+    }
+
     /**
      * Check whether this order is equivalent to another.
      */
@@ -49,7 +87,49 @@ public class MoveOrder extends Order implements Comparable<MoveOrder> {
      * Start performing this order.
      */
     public void perform(GameObject unit, Queue<Order> orders){
-        unit.getUnit().setDestination(point);
+        if(!followFlowField(unit))
+            unit.getUnit().setDestination(point);
+    }
+
+    /**
+     * Route the next leg of a long route once the unit has finished walking the last one, and
+     * every so often route a unit which has stopped short of the point again (back onto the flow
+     * field, if it has one).
+     */
+    public void update(GameObject unit){
+        boolean idle = unit.getDirection() == null && (unit.getPath() == null || unit.getPath().isEmpty());
+        if(!idle)
+            return;
+
+        if(unit.getUnit().isRoutePartial())
+            unit.getUnit().setDestination(point);
+        else if(++retry >= retryFrequency && retries < MAX_RETRIES){
+            retry = 0;
+            retries++;
+            if(!followFlowField(unit) && !unit.getGame().getPathHandler().isPending(unit))
+                unit.getUnit().setDestination(point);
+        }
+    }
+
+    /**
+     * Read the unit's whole route off the group's flow field and give it to the unit as a path.
+     * The unit walks that path like any other, rather than looking up its direction on the field
+     * at every step, so the field saves the group its searches but isn't read again until the
+     * unit next stalls. The field is laid out here, on the tick thread, when the first unit of
+     * the group starts the order.
+     * @return false if the unit has to find its own route instead
+     */
+    private boolean followFlowField(GameObject unit){
+        /* The field is only laid out for units which fit in one tile */
+        if(flowField == null || unit.getUnitShape() == null || unit.getUnitShape().getRadius() > 0)
+            return false;
+
+        Path path = flowField.getPath(unit.getUnit().getX(), unit.getUnit().getY());
+        if(path == null)
+            return false;
+
+        unit.getUnit().setDestination(point, path);
+        return true;
     }
 
     public Point getPoint(){
@@ -33,6 +33,8 @@ import com.scriptrts.core.ui.OverlayPane;
 import com.scriptrts.core.ui.TopBar;
 import com.scriptrts.core.ui.UnitPainter;
 import com.scriptrts.game.Game;
+import com.scriptrts.game.GameScheduler;
+import com.scriptrts.game.SimulationClock;
 import com.scriptrts.net.GameClient;
 import com.scriptrts.net.GameServer;
 import com.scriptrts.script.Script;
@@ -99,6 +101,11 @@ public class Main extends JPanel {
      */
     private static boolean fpsLogging = false;
 
+    /**
+     * Simulation ticks per second. The simulation runs at this fixed rate regardless of the frame rate.
+     */
+    private static int tickRate = SimulationClock.DEFAULT_TICK_RATE;
+
     /**
      * Counter used for logging FPS. Represents time when paint() was called.
      */
@@ -173,6 +180,11 @@ public class Main extends JPanel {
      */
     private static GameServer server;
 
+    /**
+     * Scheduler running the game simulation on its own thread, so frames only handle input and paint
+     */
+    private static GameScheduler scheduler;
+
     /**
      * Game client connecting to a server
      */
@@ -196,6 +208,7 @@ public class Main extends JPanel {
 
         /* Create game and server */
         game = new Game(128, window.getWidth(), window.getHeight());
+        game.setTickRate(tickRate);
         game.init();
         if(serverIP == null){
             server = new GameServer();
@@ -204,6 +217,7 @@ public class Main extends JPanel {
         } else {
             server = null;
             client = new GameClient(serverIP);
+            game.setGameClient(client);
         }
     }
 
@@ -307,7 +321,14 @@ public class Main extends JPanel {
         */
         panel.startGame();
 
-        /* Start game loop */
+        /* Run the simulation at its fixed tick rate on a thread of its own */
+        scheduler = new GameScheduler(1);
+        if(server != null)
+            server.startSimulation(scheduler);
+        else
+            scheduler.start(panel.game);
+
+        /* Start game loop. Each frame handles input and repaints (interpolating between ticks). */
         float fps = Main.getFPS();
         final TimerTask updateTask = new TimerTask(){
             public void run(){
@@ -342,6 +363,7 @@ public class Main extends JPanel {
         CmdLineParser.Option fogOfWarOpt = parser.addBooleanOption('w', "fog-of-war");
         CmdLineParser.Option fullscreenOpt = parser.addBooleanOption('f', "fullscreen");
         CmdLineParser.Option fpsLogOpt = parser.addBooleanOption('l', "logfps");
+        CmdLineParser.Option tickRateOpt = parser.addIntegerOption('t', "tickrate");
         CmdLineParser.Option noMapDebugOpt = parser.addBooleanOption("nomapdebug");
         CmdLineParser.Option noUnitDebugOpt = parser.addBooleanOption("nounitdebug");
         CmdLineParser.Option noMaskOpt = parser.addBooleanOption("nomasking");
@@ -394,6 +416,7 @@ public class Main extends JPanel {
         DEBUG = (Boolean) parser.getOptionValue(debugOpt, Boolean.FALSE);
         FULLSCREEN = (Boolean) parser.getOptionValue(fullscreenOpt, Boolean.FALSE);
         fpsLogging = (Boolean) parser.getOptionValue(fpsLogOpt,  Boolean.FALSE);
+        tickRate = (Integer) parser.getOptionValue(tickRateOpt, SimulationClock.DEFAULT_TICK_RATE);
         Script.DISABLE = (Boolean) parser.getOptionValue(noScriptOpt,  Boolean.FALSE);
         MapPainter.NO_MASKING = (Boolean) parser.getOptionValue(noMaskOpt,  Boolean.FALSE);
         MapPainter.USE_FOG_OF_WAR = (Boolean) parser.getOptionValue(fogOfWarOpt, Boolean.FALSE);
@@ -513,8 +536,9 @@ public class Main extends JPanel {
 
 
     /**
-     * Get the frames per second (FPS) that this game should run at
-     * @return fps number of frames and updates per second
+     * Get the frames per second (FPS) that this game should be drawn at. The simulation runs at its
+     * own fixed tick rate (see SimulationClock).
+     * @return fps number of frames per second
      */
     public static int getFPS(){
         return 30;
@@ -770,9 +794,10 @@ public class Main extends JPanel {
         if(!paused){
             boolean inOverlay = overlay.isVisible() && overlay.getBounds().contains(manager.getMouseLocation());
             boolean inTopBar = topBar.isVisible() && topBar.getBounds().getBounds().contains(manager.getMouseLocation());
-            game.handleInput(!console.hasFocus(), !inOverlay && !inTopBar);
+            synchronized(game){
+                game.handleInput(!console.hasFocus(), !inOverlay && !inTopBar);
+            }
         }
-        game.update();
     }
 
     /**
@@ -806,7 +831,9 @@ public class Main extends JPanel {
             }
         }
 
-        /* Paint the game */
-        game.paint((Graphics2D) g);
+        /* Paint the game, holding it so a tick can't change it halfway through */
+        synchronized(game){
+            game.paint((Graphics2D) g);
+        }
     }
 }
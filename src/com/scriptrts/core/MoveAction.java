@@ -7,6 +7,7 @@ import com.scriptrts.control.MoveOrder;
 import com.scriptrts.control.Selection;
 import com.scriptrts.core.ui.InputManager;
 import com.scriptrts.game.GameObject;
+import com.scriptrts.game.path.FlowField;
 
 public class MoveAction extends ClickAction {
 
@@ -16,12 +17,13 @@ public class MoveAction extends ClickAction {
 		/*
 		 * If Shift is held down, queue the order to move; else override.
 		 */
+		FlowField field = Main.getGame().getPathHandler().createFlowField(unitTile, Selection.current().getList());
 		if(InputManager.getInputManager().getKeyCodeFlag(KeyEvent.VK_SHIFT))
 				for(GameObject s : Selection.current().getList())
-					s.getUnit().getOrderHandler().queueOrder(new MoveOrder(unitTile));
+					s.getUnit().getOrderHandler().queueOrder(new MoveOrder(unitTile, field));
 		else
 			for(GameObject s : Selection.current().getList())
-				s.getUnit().getOrderHandler().order(new MoveOrder(unitTile));
+				s.getUnit().getOrderHandler().order(new MoveOrder(unitTile, field));
 		return true;
 	}
 
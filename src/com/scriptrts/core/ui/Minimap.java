@@ -60,6 +60,11 @@ public class Minimap extends JPanel {
      */
     private static boolean changedMinimap = true;
 
+    /**
+     * Change count of the unit grid when the minimap was last drawn
+     */
+    private int gridChanges = -1;
+
     /**
      * Create a new minimap
      * @param viewport to show on minimap
@@ -97,6 +102,11 @@ public class Minimap extends JPanel {
         graphics.drawImage(minimapImage, 0, 0, null);
 
 
+        /* Redraw when units have been placed or removed since the last redraw */
+        MapGrid grid = Main.getGame().getGameGrid();
+        if(grid != null && grid.getChangeCount() != gridChanges)
+            changedMinimap = true;
+
         if(changedMinimap && Main.getGame().getCurrentMap() != null)
             redrawMinimap();
 
@@ -123,6 +133,7 @@ public class Minimap extends JPanel {
     private void redrawMinimap(){
         /* After this redraw, no more updated needed until next change */
         changedMinimap = false;
+        gridChanges = Main.getGame().getGameGrid().getChangeCount();
         
         if(image == null)
         	image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
@@ -20,6 +20,7 @@ import com.scriptrts.core.Main;
 import com.scriptrts.game.Direction;
 import com.scriptrts.game.GameObject;
 import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.SimulationClock;
 import com.scriptrts.game.Sprite;
 import com.scriptrts.game.UnitClass;
 import com.scriptrts.util.ResourceManager;
@@ -69,6 +70,17 @@ public class UnitPainter {
 		grid = g;
 	}
 
+	/**
+	 * Find how far a unit has moved from its current tile towards the next one, interpolated
+	 * between simulation ticks so movement is smooth at any frame rate.
+	 * @param unit which unit to check
+	 * @return progress towards the next tile (0 to 1)
+	 */
+	private double getMovementProgress(GameObject unit){
+		SimulationClock clock = Main.getGame().getClock();
+		return unit.getAnimationCounter(clock.getAlpha(), clock.getTickRate());
+	}
+
 	/**
 	 * Get the coordinates of the back point on the unit.
 	 * @param unit which unit to get the back point of
@@ -228,7 +240,7 @@ public class UnitPainter {
 	 */
 	private void paintUnit(Graphics2D graphics, GameObject unit, int tileLocX, int tileLocY){
 		/* How far the unit has moved from its current tile to its destination */
-		double percentMovedFromTile = unit.getAnimationCounter();
+		double percentMovedFromTile = getMovementProgress(unit);
 
 		int tileX = mapPainter.getTileWidth();
 		int tileY = mapPainter.getTileHeight();
@@ -571,7 +583,7 @@ public class UnitPainter {
 		int tileLocY = y;
 
 
-		double percentMovedFromTile = unit.getAnimationCounter();
+		double percentMovedFromTile = getMovementProgress(unit);
 
 		/* Find the back point of the tile it's currently placed in */
 		Point backStartSubtile = getTileBackLocation(unit);
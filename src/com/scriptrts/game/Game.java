@@ -24,6 +24,7 @@ import com.scriptrts.core.ui.InputManager;
 import com.scriptrts.core.ui.MapPainter;
 import com.scriptrts.core.ui.UnitPainter;
 import com.scriptrts.core.ui.Viewport;
+import com.scriptrts.game.path.FlowField;
 import com.scriptrts.util.ResourceManager;
 
 /**
@@ -123,6 +124,7 @@ public class Game extends HeadlessGame {
 
 		/* Create the player */
 		player = new Player("Player-One", Color.MAGENTA);
+		player.createVisibilityGrid(n * MapGrid.SPACES_PER_TILE);
 		addPlayer(player);
 
 		/* Create painters */
@@ -404,13 +406,15 @@ public class Game extends HeadlessGame {
 					Point unitTile = unitPainter.unitTileAtPoint(point, viewport);  
 					/* If there is no unit at destination, move there */
 					if(getGameGrid().getUnit(unitTile.x, unitTile.y) == null){
+						/* One flow field leads the whole group there */
+						FlowField field = getPathHandler().createFlowField(unitTile, Selection.current().getList());
 						for(GameObject unit : Selection.current().getList()){
 							if(!unit.getUnit().isStandard())
 								continue;
 							if(manager.getKeyCodeFlag(KeyEvent.VK_SHIFT))
-								unit.getUnit().getOrderHandler().queueOrder(new MoveOrder(unitTile));
+								unit.getUnit().getOrderHandler().queueOrder(new MoveOrder(unitTile, field));
 							else
-								unit.getUnit().getOrderHandler().order(new MoveOrder(unitTile));
+								unit.getUnit().getOrderHandler().order(new MoveOrder(unitTile, field));
 						}
 					} else {
 						GameObject unitAtPoint = grid.getUnit(unitTile.x, unitTile.y);
@@ -427,13 +431,14 @@ public class Game extends HeadlessGame {
 						}
 						/* Otherwise issue a move order */
 						else{
+							FlowField field = getPathHandler().createFlowField(unitTile, Selection.current().getList());
 							for(GameObject unit : Selection.current().getList()){
 								if(!unit.getUnit().isStandard())
 									continue;
 								if(manager.getKeyCodeFlag(KeyEvent.VK_SHIFT))
-									unit.getUnit().getOrderHandler().queueOrder(new MoveOrder(unitTile));
+									unit.getUnit().getOrderHandler().queueOrder(new MoveOrder(unitTile, field));
 								else
-									unit.getUnit().getOrderHandler().order(new MoveOrder(unitTile));
+									unit.getUnit().getOrderHandler().order(new MoveOrder(unitTile, field));
 							}
 						}
 					}
@@ -519,10 +524,6 @@ public class Game extends HeadlessGame {
 				increment = SCROLLING_DISTANCE;
 			}
 
-			/* Update path handler */
-			//TODO probably not the right place for this, but it works
-			pathHandler.update();
-
 		}
 	}
 
@@ -646,6 +647,14 @@ public class Game extends HeadlessGame {
 		return player;
 	}
 
+	/**
+	 * Whether this game displays its units
+	 * @return true, since units are drawn
+	 */
+	public boolean hasGraphics(){
+		return true;
+	}
+
 	/**
 	 * Get the viewport used to display the map.
 	 * @return viewport used to draw map
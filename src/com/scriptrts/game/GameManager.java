@@ -5,14 +5,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-
-import com.scriptrts.core.Main;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
  * Manages and update units and their positions and statistics
  */
 public class GameManager {
+    /**
+     * Minimum number of units for which an update is split across threads. Below this the
+     * cost of splitting up the work outweighs the gain.
+     */
+    private static final int PARALLEL_THRESHOLD = 1000;
+
     /**
      * Current running game instance
      */
@@ -23,6 +28,11 @@ public class GameManager {
      */
     private HashMap<Integer, GameObject> allUnits = new HashMap<Integer, GameObject>();
 
+    /**
+     * Structure-of-arrays store holding the state of all live units, iterated every tick
+     */
+    private UnitStore store = new UnitStore(100);
+
     /**
      * All updated units
      */
@@ -33,6 +43,26 @@ public class GameManager {
      */
     private List<GameObject> newUnits = new ArrayList<GameObject>(100);
 
+    /**
+     * Next unit ID to give out
+     */
+    private int nextUnitId = 0;
+
+    /**
+     * Whether large numbers of units may be updated in parallel
+     */
+    private boolean parallelUpdates = true;
+
+    /**
+     * Pool used to update units in parallel
+     */
+    private ForkJoinPool updatePool = ForkJoinPool.commonPool();
+
+    /**
+     * Splits the unit update into regions of the map which can be processed in parallel
+     */
+    private RegionUpdater regions = new RegionUpdater(this);
+
     /**
      * Create a new unit manager
      * @param g game instance for which units are being managed
@@ -43,12 +73,48 @@ public class GameManager {
     }
 
     /**
-     * Add a unit to the manager
+     * Add a unit to the manager. A unit without an ID is given the next free one; a unit which
+     * already has one (such as a unit sent over the network) keeps it.
      * @param u unit to add
      */
     public void addUnit(GameObject u){
+        int id = u.getID();
+        if(id == Unit.NO_ID)
+            u.getUnit().setId(nextUnitId++);
+        else if(id >= nextUnitId)
+            nextUnitId = id + 1;
+
         allUnits.put(u.getID(), u);
         newUnits.add(u);
+        store.attach(u);
+        u.setGame(game);
+    }
+
+    /**
+     * Remove a unit from the manager. This does not remove it from the unit grid.
+     * @param u unit to remove
+     */
+    public void removeUnit(GameObject u){
+        if(allUnits.remove(u.getID()) != null)
+            store.detach(u);
+        if(game.getPathHandler() != null)
+            game.getPathHandler().cancel(u);
+    }
+
+    /**
+     * Get the number of units currently managed
+     * @return number of live units
+     */
+    public int getUnitCount(){
+        return store.size();
+    }
+
+    /**
+     * Get the store holding the state of all live units
+     * @return unit store
+     */
+    public UnitStore getUnitStore(){
+        return store;
     }
 
     /**
@@ -124,78 +190,130 @@ public class GameManager {
      */
     public void update(){
         MapGrid grid = game.getGameGrid();
-        int n = game.getCurrentMap().getN() * MapGrid.SPACES_PER_TILE;
 
-        
+        /* Loop over all live units; units added during the tick are updated on the next one */
+        int count = store.size();
 
-        /* Loop over all unit positions, update where there are units */
-        for(int i = 0; i < n; i++){
-            for(int j = 0; j < n; j++){
-                if(grid.getUnit(i, j) != null && grid.getUnit(i, j).getUnit().getX() == i && grid.getUnit(i, j).getUnit().getY() == j)
-                    updateUnit(i, j, grid);
-            }
+        /* Large numbers of units are moved in parallel, region by region. Only an authoritative
+         * game moves units, so a client has nothing worth splitting up. A step listener decides
+         * each step as it is taken, so it keeps the moves on this thread. */
+        if(parallelUpdates && count >= PARALLEL_THRESHOLD && game.isAuthoritative() && updatePool.getParallelism() > 1
+                && !grid.hasStepListener()){
+            regions.update(updatePool, grid, count, game.getClock().getTickRate());
+            return;
+        }
+
+        for(int slot = 0; slot < count && slot < store.size(); slot++){
+            int prevX = store.x[slot], prevY = store.y[slot];
+            int tilesMoved = moveUnit(slot, grid, null);
+            finishUnit(slot, tilesMoved, prevX, prevY);
         }
     }
 
     /**
-     * Update the unit at the given location 
-     * @param i x coordinate in unit grid
-     * @param j y coordinate in unit grid
+     * Move the unit in a given store slot. This only touches the unit itself and the cells of the
+     * unit grid near it, so units far enough apart can be moved at the same time.
+     * @param slot slot of the unit in the unit store
+     * @param grid unit grid the unit is on
+     * @param moves buffer for the working state of the grid while the unit moves, which units
+     *              moved at the same time mustn't share, or null to use the grid's own
+     * @return number of tiles the unit's animation advanced by
      */
-    private void updateUnit(int i, int j, MapGrid grid){
-        /* Get fps */
-        int fps = Main.getFPS();
+    int moveUnit(int slot, MapGrid grid, MoveBuffer moves){
+        /* Get simulation ticks per second */
+        int tickRate = game.getClock().getTickRate();
 
-        GameObject unit = grid.getUnit(i, j);
-
-        boolean needsVisibilityUpdate = false;
+        UnitStore store = this.store;
+        GameObject unit = store.getObject(slot);
 
         /* Unit speed is in subtiles per second */
-        int uSpeed = unit.getUnit().getSpeed();
+        int uSpeed = store.speed[slot];
+        boolean moving = store.direction[slot] != UnitStore.NO_DIRECTION;
+
+        int tilesMoved = 0;
 
-        int prevX = unit.getUnit().getX(), prevY = unit.getUnit().getY();
-        
         /* For a moving unit, move it */
-        if(unit.getUnit().getSpeed() != 0 && unit.getDirection() != null) {
-            double subtilesMovedPerFrame = (double)(uSpeed) /* subtiles per second */ / fps /* times seconds */;
+        if(uSpeed != 0 && moving) {
+            double subtilesMovedPerTick = (double)(uSpeed) /* subtiles per second */ / tickRate /* times seconds */;
             
-            int tilesMoved = unit.incrementAnimationCounter(subtilesMovedPerFrame);
-
-            needsVisibilityUpdate = tilesMoved > 0;
-
-            /* Move it however many tiles it wants to be moved if this is the server;
-             * the client will change positions when the server sends updated data. */
-            if(Main.getGameServer() != null){
-                while(tilesMoved > 0){
-                    grid.moveUnitOneTile(unit);
-                    tilesMoved--;
-                    setUnitUpdated(unit);
-                }
+            tilesMoved = store.incrementAnimationCounter(slot, subtilesMovedPerTick);
+
+            /* Move it however many tiles it wants to be moved if this game is authoritative;
+             * a client will change positions when the server sends updated data. */
+            if(game.isAuthoritative()){
+                for(int i = 0; i < tilesMoved; i++)
+                    grid.moveUnitOneTile(unit, moves);
             }
         }
 
         /* For a unit which could move, but is standing still, update it every time in case it wants an update */
-        else if(unit.getUnit().getSpeed() > 0 && unit.getDirection() == null){
-            grid.moveUnitOneTile(unit);
+        else if(uSpeed > 0 && !moving){
+            grid.moveUnitOneTile(unit, moves);
         }
 
+        return tilesMoved;
+    }
+
+    /**
+     * Finish updating the unit in a given store slot after it has moved: record the update,
+     * refresh visibility, and run its orders. This is always run on the tick's own thread.
+     * @param slot slot of the unit in the unit store
+     * @param tilesMoved number of tiles the unit's animation advanced by
+     * @param prevX x coordinate of the unit before it moved
+     * @param prevY y coordinate of the unit before it moved
+     */
+    void finishUnit(int slot, int tilesMoved, int prevX, int prevY){
+        GameObject unit = store.getObject(slot);
+
+        if(game.isAuthoritative())
+            for(int i = 0; i < tilesMoved; i++)
+                setUnitUpdated(unit);
+
         /* If the unit moved, set its new position to visible */
-        if(needsVisibilityUpdate)
+        if(tilesMoved > 0)
         	setVisibleTiles(unit, prevX, prevY);
 
         unit.progressSpriteAnimation();
         unit.getUnit().getOrderHandler().update();
     }
+
+    /**
+     * Set whether large numbers of units may be updated in parallel
+     * @param parallel true to allow parallel updates
+     */
+    public void setParallelUpdates(boolean parallel){
+        parallelUpdates = parallel;
+    }
+
+    /**
+     * Set the pool used to update units in parallel
+     * @param pool fork/join pool to run region updates on
+     */
+    public void setUpdatePool(ForkJoinPool pool){
+        updatePool = pool;
+    }
     
+    /**
+     * Update the local player's visibility after a unit moves
+     * @param unit unit which moved
+     * @param prevX previous x coordinate of the unit
+     * @param prevY previous y coordinate of the unit
+     */
     public void setVisibleTiles(GameObject unit, int prevX, int prevY){
+        /* Headless games have no local player whose view needs updating */
+        Player player = game.getPlayer();
+        if(player == null || player.getVisibilityGrid() == null)
+            return;
+
     	/* Retrieve the visibility grid */
-        byte[][] vGrid = Main.getGame().getPlayer().getVisibilityGrid();
+        byte[][] vGrid = player.getVisibilityGrid();
+        MapGrid grid = game.getGameGrid();
         for(Point p : unit.getShape(unit.getFacingDirection())){
-        	for(Point tile : unit.getUnit().getVisibleTiles(prevX + p.x, prevY + p.y)){
+        	for(Point tile : unit.getUnit().getVisibleTiles(grid, prevX + p.x, prevY + p.y)){
         		if(tile != null)
         			vGrid[tile.x][tile.y] = 1;
         	}
-        	for(Point tile : unit.getUnit().getVisibleTiles(unit.getUnit().getX() + p.x, unit.getUnit().getY() + p.y)){
+        	for(Point tile : unit.getUnit().getVisibleTiles(grid, unit.getUnit().getX() + p.x, unit.getUnit().getY() + p.y)){
         		if(tile != null)
         			vGrid[tile.x][tile.y] = 2;
         	}
@@ -1,10 +1,9 @@
 package com.scriptrts.game;
 
 import java.awt.Color;
-import java.io.IOException;
-
-import com.scriptrts.core.Main;
-import com.scriptrts.util.ResourceManager;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -49,6 +48,11 @@ public class GameMap {
 	 */
 	private Player terrainPlayer;
 
+	/**
+	 * Locations of the volcanos placed on the map, in unit tiles
+	 */
+	private List<Point> volcanoes = new ArrayList<Point>();
+
 	/**
 	 * Create a new map.
 	 * @param n size of the map along one edge.
@@ -86,6 +90,32 @@ public class GameMap {
 		return origN;
 	}	
 
+	/**
+	 * Seed the random number generator used to generate the map, so that the same seed
+	 * always produces the same map
+	 * @param seed random seed
+	 */
+	public void setSeed(long seed){
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Get the player owning the terrain objects on this map
+	 * @return terrain player
+	 */
+	public Player getTerrainPlayer(){
+		return terrainPlayer;
+	}
+
+	/**
+	 * Get where volcanos were placed when the map was generated. The game places the
+	 * corresponding objects on its unit grid.
+	 * @return volcano locations, in unit tiles
+	 */
+	public List<Point> getVolcanoes(){
+		return volcanoes;
+	}
+
 	/**
 	 * Generate random map using diamond-square algorithm described
 	 * at http://www.gameprogrammer.com/fractal.html.  Each point
@@ -251,14 +281,12 @@ public class GameMap {
 						}
 	}
 
+	/**
+	 * Add a volcano to the map
+	 * @param i x coordinate of the volcano, in unit tiles
+	 * @param j y coordinate of the volcano, in unit tiles
+	 */
 	public void addVolcano(int i, int j){
-		try{
-			Sprite[] sprites = ResourceManager.loadSpriteSet("volcano.sprite", null);
-			GameObject volcano = new GameObject(terrainPlayer, sprites, null, 0, i, j, Direction.North, UnitShape.SHAPE_VOLCANO, UnitClass.Terrain);
-			Main.getGame().grid.placeUnit(volcano);
-			//Main.getGame().gameManager.addUnit(volcano);
-		} catch(IOException e){
-			e.printStackTrace();
-		}
+		volcanoes.add(new Point(i, j));
 	}
 }
@@ -2,11 +2,8 @@ package com.scriptrts.game;
 
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import com.scriptrts.control.OrderHandler;
-import com.scriptrts.core.Main;
 
 /**
  * Unit class which only implements most basic functions.
@@ -33,26 +30,10 @@ public class GameObject {
      */
     private Unit unit;
 
-    /**
-     * The direction in which the unit used to be moving. This is used to determine which direction the
-     * unit is facing, even when the direction of movement is null (because unit is stationary).
-     */
-    private Direction previousDirection;
-
-    /**
-     * The direction in which the unit is moving.
-     */
-    private Direction direction;
-
     /** 
      * The path the unit is taking, defined by a list of directions to follow.
      */
-    private Queue<Direction> path = new LinkedList<Direction>();
-
-    /**
-     * How far the unit has progressed in its current tile movement.
-     */
-    private double animCounter = 0;
+    private Path path = new Path();
 
     /**
      * How far the current sprite animation has progressed (in frames)
@@ -64,6 +45,16 @@ public class GameObject {
      */
     private UnitShape shape;
 
+    /**
+     * Handle identifying this unit in the packed cells of the map grid (zero until first placed)
+     */
+    int gridHandle = 0;
+
+    /**
+     * Game managing this unit (null until the unit is added to a game manager)
+     */
+    private transient HeadlessGame game;
+
 
     /**
      * Create a new unit
@@ -79,8 +70,8 @@ public class GameObject {
     public GameObject(Player p, Sprite[] sprites, BufferedImage artImg, int speed, int x, int y, Direction direction, UnitShape unitShape, UnitClass unitClass) {
         this.unit = new Unit(p, speed, x, y, new OrderHandler(this), unitClass);
         this.sprites = sprites;
-        this.direction = null;
-        previousDirection = direction;
+        setDirection(null);
+        setPreviousDirection(direction);
         state = SpriteState.Idle;
         shape = unitShape;
         this.art = artImg;
@@ -149,9 +140,9 @@ public class GameObject {
         state = sourceObj.state;
         unit.setId(source.getId());
         unit.setSpeed(source.getSpeed());
-        setDirection(sourceObj.direction);
-        previousDirection = sourceObj.previousDirection;
-        animCounter = 0;
+        setDirection(sourceObj.getDirection());
+        setPreviousDirection(sourceObj.getPreviousDirection());
+        setAnimationCounter(0);
     }
 
     public void setParameters(Player p, int ux, int uy, SpriteState ustate, int uID, int uspd, Direction udir,
@@ -163,8 +154,8 @@ public class GameObject {
         unit.setSpeed(uspd);
         state = ustate;
         setDirection(udir);
-        previousDirection = uPrevDir;
-        animCounter = 0;
+        setPreviousDirection(uPrevDir);
+        setAnimationCounter(0);
     }
     /**
      * Checks whether this unit can pass over another unit.
@@ -190,7 +181,30 @@ public class GameObject {
      * @return how many far the animation has progressed (double from 0 to 1)
      */
     public double getAnimationCounter(){
-        return animCounter;
+        return unit.store.animCounter[unit.slot];
+    }
+
+    /**
+     * Find how far the animation has progressed, including the movement that will happen during
+     * the part of the current simulation tick that has already elapsed. Used to draw moving units
+     * smoothly when the frame rate is higher than the simulation tick rate.
+     * @param alpha fraction of a simulation tick elapsed since the last tick (0 to 1)
+     * @param tickRate simulation ticks per second
+     * @return interpolated animation progress (double from 0 to 1)
+     */
+    public double getAnimationCounter(double alpha, int tickRate){
+        double counter = getAnimationCounter();
+        if(getDirection() != null)
+            counter += alpha * unit.getSpeed() / tickRate;
+        return Math.min(counter, 1);
+    }
+
+    /**
+     * Set how far the animation has progressed
+     * @param counter how far the animation has progressed (double from 0 to 1)
+     */
+    private void setAnimationCounter(double counter){
+        unit.store.animCounter[unit.slot] = counter;
     }
 
     /**
@@ -199,24 +213,24 @@ public class GameObject {
      * @return how many tile movements it finished 
      * */
     public int incrementAnimationCounter(double inc){
-        animCounter += inc;
-
-        if(animCounter >= 1){
-            int retVal = (int) (animCounter);
-            animCounter -= retVal;
-            return retVal;
-        }
-
-        return 0;
+        return unit.store.incrementAnimationCounter(unit.slot, inc);
+    }
 
+    /**
+     * Get how many steps of the current path the unit has already taken
+     * @return number of directions consumed from the current path
+     */
+    public int getPathOffset(){
+        return unit.store.pathOffset[unit.slot];
     }
 
     /**
      * Update the direction based on the path the unit wants to take.
      */
     public void updateDirection(){
+        Direction direction = getDirection();
         if(direction != null)
-            previousDirection = direction;
+            setPreviousDirection(direction);
 
         /* If we have no more directions, stop. */
         if(path == null || path.peek() == null){
@@ -224,6 +238,7 @@ public class GameObject {
         }
         else {
             setDirection(path.poll());
+            unit.store.pathOffset[unit.slot]++;
         }
     }
 
@@ -245,7 +260,7 @@ public class GameObject {
      * Get the path this unit is going to take
      * @return the path this unit will take, as a queue
      */
-    public Queue<Direction> getPath(){
+    public Path getPath(){
         return path;
     }
 
@@ -253,19 +268,21 @@ public class GameObject {
      * Set the path this unit is going to take
      * @param path the new path to take
      */
-    public void setPath(Queue<Direction> path){
+    public void setPath(Path path){
 
         /* Client */
-        if(Main.getGameClient() != null){
-            Main.getGameClient().sendPathChangedNotification(this, path);
+        if(game != null && game.getGameClient() != null){
+            game.getGameClient().sendPathChangedNotification(this, path);
         } 
         
         /* Server */
         else {
             this.path =  path;
+            unit.store.pathOffset[unit.slot] = 0;
             setDirection(null);
             /* Notify the unit grid that the path has changed */
-            Main.getGame().getGameGrid().unitPathChanged(this, path);
+            if(game != null)
+                game.getGameGrid().unitPathChanged(this, path);
         }
     }
 
@@ -273,7 +290,7 @@ public class GameObject {
      * Clear the unit path
      */
     public void clearPath(){
-        setPath(new LinkedList<Direction>());
+        setPath(new Path());
     }
 
     /**
@@ -283,19 +300,35 @@ public class GameObject {
     public void addToPath(Direction d){
             path.add(d);
 
-        if(Main.getGameClient() != null)
-            Main.getGameClient().sendPathAppendedNotification(this, d);
+        if(game != null && game.getGameClient() != null)
+            game.getGameClient().sendPathAppendedNotification(this, d);
     }
 
     /**
      * Append to the path this unit will take
      * @param additionalPath the additional path to append to the end of the current path
      */
-    public void addToPath(Queue<Direction> additionalPath){
+    public void addToPath(Path additionalPath){
         while(additionalPath != null && additionalPath.peek() != null)
             addToPath(additionalPath.poll());
     }
 
+    /**
+     * Get the game managing this unit
+     * @return game, or null if the unit hasn't been added to one
+     */
+    public HeadlessGame getGame(){
+        return game;
+    }
+
+    /**
+     * Set the game managing this unit
+     * @param game game whose manager the unit was added to
+     */
+    void setGame(HeadlessGame game){
+        this.game = game;
+    }
+
     /**
      * Get the unit ID
      * @return unique id of unit
@@ -396,7 +429,7 @@ public class GameObject {
      * @return the direction
      */
     public Direction getDirection() {
-        return direction;
+        return UnitStore.toDirection(unit.store.direction[unit.slot]);
     }
 
     /**
@@ -412,7 +445,23 @@ public class GameObject {
      * @param direction the direction to set
      */
     public void setDirection(Direction direction) {
-        this.direction = direction;
+        unit.store.direction[unit.slot] = UnitStore.toByte(direction);
+    }
+
+    /**
+     * Get the direction this unit was last moving in
+     * @return the previous direction
+     */
+    public Direction getPreviousDirection() {
+        return UnitStore.toDirection(unit.store.previousDirection[unit.slot]);
+    }
+
+    /**
+     * Set the direction this unit was last moving in
+     * @param direction the previous direction to set
+     */
+    private void setPreviousDirection(Direction direction) {
+        unit.store.previousDirection[unit.slot] = UnitStore.toByte(direction);
     }
 
     /**
@@ -429,10 +478,11 @@ public class GameObject {
      * @return direction this unit is facing in
      */
     public Direction getFacingDirection(){
-        if(direction != null)
-            return direction;
-        else
-            return previousDirection;
+        UnitStore store = unit.store;
+        byte facing = store.direction[unit.slot];
+        if(facing == UnitStore.NO_DIRECTION)
+            facing = store.previousDirection[unit.slot];
+        return UnitStore.toDirection(facing);
     }
     
     /**
@@ -458,6 +508,14 @@ public class GameObject {
     public void setUnitShape(UnitShape unitShape){
     	shape = unitShape;
     }
+
+    /**
+     * Get the shape of this unit in every direction
+     * @return unit shape
+     */
+    public UnitShape getUnitShape(){
+        return shape;
+    }
     
     /**
      * Similar to clone(), but not a general-purpose clone.
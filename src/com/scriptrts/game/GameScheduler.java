@@ -0,0 +1,100 @@
+package com.scriptrts.game;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the simulations of any number of headless games on a shared pool of threads. Each game
+ * is advanced at its own tick rate, and a game is only ever updated by one thread at a time, so
+ * one server process can host many matches without a thread per match.
+ */
+public class GameScheduler {
+    /**
+     * Threads running the game ticks
+     */
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Scheduled tasks of each running game
+     */
+    private Map<HeadlessGame, ScheduledFuture<?>> running = new HashMap<HeadlessGame, ScheduledFuture<?>>();
+
+    /**
+     * Create a new scheduler
+     * @param threads number of threads to run games on
+     */
+    public GameScheduler(int threads){
+        super();
+
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory(){
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r){
+                return new Thread(r, "Simulation-" + (count++));
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Create a new scheduler with a thread per available processor
+     */
+    public GameScheduler(){
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Start running a game. The game must already be initialized.
+     * @param game game to run
+     */
+    public synchronized void start(final HeadlessGame game){
+        if(running.containsKey(game))
+            return;
+
+        long period = game.getClock().getTickNanos();
+        ScheduledFuture<?> task = executor.scheduleAtFixedRate(new Runnable(){
+            public void run(){
+                /* Requests from clients synchronize on the game too */
+                synchronized(game){
+                    try {
+                        game.advance();
+                    } catch (Exception e){
+                        /* An exception would silently cancel the game's future ticks */
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, 0, period, TimeUnit.NANOSECONDS);
+        running.put(game, task);
+    }
+
+    /**
+     * Stop running a game. A tick already in progress is allowed to finish.
+     * @param game game to stop
+     */
+    public synchronized void stop(HeadlessGame game){
+        ScheduledFuture<?> task = running.remove(game);
+        if(task != null)
+            task.cancel(false);
+    }
+
+    /**
+     * Get the number of games currently running
+     * @return number of running games
+     */
+    public synchronized int getGameCount(){
+        return running.size();
+    }
+
+    /**
+     * Stop all games and the threads running them
+     */
+    public synchronized void shutdown(){
+        running.clear();
+        executor.shutdownNow();
+    }
+}
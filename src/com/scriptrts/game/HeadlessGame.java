@@ -1,9 +1,15 @@
 package com.scriptrts.game;
 
+import java.awt.Point;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import com.scriptrts.game.path.PathHandler;
+import com.scriptrts.game.path.PathWorkers;
+import com.scriptrts.net.GameClient;
+import com.scriptrts.util.ResourceManager;
 
 /**
  * Headless game run by the servers and extended by the graphical game
@@ -35,6 +41,22 @@ public class HeadlessGame {
      */
     protected GameManager gameManager;
 
+    /**
+     * Fixed-timestep clock driving the simulation
+     */
+    protected SimulationClock clock = new SimulationClock();
+
+    /**
+     * Connection to the server running this game, or null if this game is authoritative
+     * (hosting a server or running on its own)
+     */
+    protected GameClient client;
+
+    /**
+     * Seed used to generate the map
+     */
+    protected long mapSeed = new Random().nextLong();
+
     /**
      * All players currently connected
      */
@@ -62,20 +84,114 @@ public class HeadlessGame {
     	
         /* Create and populate map with tiles */
         map = new GameMap(n);
+        map.setSeed(mapSeed);
         map.generateMap(.64, 2);
+        for(Point p : map.getVolcanoes())
+            addVolcano(p.x, p.y);
+
+        /* Create path handler, routing on the workers shared by every game */
+        pathHandler = new PathHandler(this);
+        pathHandler.setWorkers(PathWorkers.commonPool());
+    }
+
+    /**
+     * Place a volcano on the unit grid
+     * @param x x coordinate of the volcano, in unit tiles
+     * @param y y coordinate of the volcano, in unit tiles
+     */
+    protected void addVolcano(int x, int y){
+        try {
+            Sprite[] sprites = hasGraphics() ? ResourceManager.loadSpriteSet("volcano.sprite", null) : null;
+            GameObject volcano = new GameObject(map.getTerrainPlayer(), sprites, null, 0, x, y, Direction.North, UnitShape.SHAPE_VOLCANO, UnitClass.Terrain);
+            grid.placeUnit(volcano);
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Whether this game displays its units. A headless game never loads sprites or images.
+     * @return true if unit graphics should be loaded
+     */
+    public boolean hasGraphics(){
+        return false;
+    }
+
+    /**
+     * Get the player playing this game locally
+     * @return the local player, or null if nobody is playing this game locally
+     */
+    public Player getPlayer(){
+        return null;
+    }
+
+    /**
+     * Set the seed used to generate the map, so the game always starts on the same map. This
+     * must be called before the game is initialized.
+     * @param seed random seed
+     */
+    public void setMapSeed(long seed){
+        mapSeed = seed;
+    }
 
-        /* Create path handler */
-        pathHandler = new PathHandler();
-        /* Set number of pathfinders used */
-        pathHandler.setNumPathfinders(10);
+    /**
+     * Set the simulation tick rate. This replaces the simulation clock, so it should be
+     * called before the game starts running.
+     * @param tickRate simulation ticks per second
+     */
+    public void setTickRate(int tickRate){
+        clock = new SimulationClock(tickRate);
     }
 
     /**
-     * Update the game state
+     * Get the clock driving the simulation
+     * @return simulation clock
+     */
+    public SimulationClock getClock(){
+        return clock;
+    }
+
+    /**
+     * Run however many simulation ticks are due according to the simulation clock
+     * @return number of ticks run
+     */
+    public int advance(){
+        return clock.advance(this);
+    }
+
+    /**
+     * Update the game state by a single simulation tick
      */
     public void update(){
         /* Update all units */
         gameManager.update();
+
+        /* Hand out the routes found since the last tick */
+        pathHandler.update();
+    }
+
+    /**
+     * Set the connection to the server running this game
+     * @param client client connection, or null if this game is authoritative
+     */
+    public void setGameClient(GameClient client){
+        this.client = client;
+    }
+
+    /**
+     * Get the connection to the server running this game
+     * @return client connection, or null if this game is authoritative
+     */
+    public GameClient getGameClient(){
+        return client;
+    }
+
+    /**
+     * Whether this game owns the simulation, as opposed to mirroring a server's
+     * @return true if units are moved by this game
+     */
+    public boolean isAuthoritative(){
+        return client == null;
     }
 
     /**
@@ -1,14 +1,63 @@
 package com.scriptrts.game;
 
 import java.awt.Point;
-import java.util.Queue;
-
-import com.scriptrts.core.ui.Minimap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Stores the locations of all the units on the map.
  */
 public class MapGrid {
+    /**
+     * Receives notice when an object which never moves, such as a building or a volcano, is
+     * placed on or removed from the grid
+     */
+    public interface StaticObjectListener {
+        /**
+         * Called after a static object has been placed or removed
+         * @param minX smallest x coordinate covered by the object
+         * @param minY smallest y coordinate covered by the object
+         * @param maxX largest x coordinate covered by the object
+         * @param maxY largest y coordinate covered by the object
+         */
+        void staticObjectChanged(int minX, int minY, int maxX, int maxY);
+    }
+
+    /**
+     * Decides what happens to a unit whose next step is blocked
+     */
+    public interface BlockedUnitListener {
+        /**
+         * Called when a unit can't take the next step of its path. The unit has already been
+         * stopped, but still has its path. Always called on the tick's own thread; when units
+         * are moved in parallel, that is once the tasks moving them are done.
+         * @param unit the blocked unit
+         * @return true if the unit should keep its path (possibly a new one), false to clear it
+         */
+        boolean unitBlocked(GameObject unit);
+    }
+
+    /**
+     * Decides when a unit takes the next step of its path
+     */
+    public interface StepListener {
+        /**
+         * Called when a unit is about to take the next step of its path. The listener may give
+         * the unit a new path, whose first step is taken instead.
+         * @param unit the unit about to step
+         * @return true if the unit should step now, false to hold it where it is for this tick
+         */
+        boolean unitStepping(GameObject unit);
+
+        /**
+         * Called when a unit is given a new path
+         * @param unit the unit whose path changed
+         */
+        void pathChanged(GameObject unit);
+    }
+
     /** 
      * How many of the smallest unit can fit along one side of each map tile
      */
@@ -20,15 +69,164 @@ public class MapGrid {
     private int n;
 
     /**
-     * Array of units representing the map.
+     * Unit grid x offset of one step in each direction, indexed by Direction.ordinal()
+     */
+    private final static int[] OFFSET_X = {0, 1, 1, 1, 0, -1, -1, -1};
+
+    /**
+     * Unit grid y offset of one step in each direction, indexed by Direction.ordinal()
+     */
+    private final static int[] OFFSET_Y = {1, 1, 0, -1, -1, -1, 0, 1};
+
+    /**
+     * Bit set in a cell when the unit owning the cell is standing on it, as opposed to only having reserved it
+     */
+    private final static int OCCUPIED = 1;
+
+    /**
+     * Packed occupancy of every unit tile, stored row-major (index i * n + j). A value of zero means
+     * the tile is free; otherwise the value is the grid handle of the owning unit shifted left by one,
+     * with the OCCUPIED bit set if the unit is on the tile rather than just reserving it.
+     */
+    private int[] cells;
+
+    /**
+     * Units placed on this grid, indexed by grid handle, or null for handles not in use. Handle
+     * zero is never used.
+     */
+    private GameObject[] units = new GameObject[64];
+
+    /**
+     * Next grid handle never given out before
+     */
+    private int nextHandle = 1;
+
+    /**
+     * Handles of units which have left the grid, in the order they left. Only the entries from
+     * releasedHead up to releasedCount are in use.
+     */
+    private int[] released = new int[64];
+
+    /**
+     * Version of the first snapshot in which each released handle no longer appears, by position in released
+     */
+    private int[] releasedAt = new int[64];
+
+    /**
+     * Position in released of the handle released longest ago, and one past the latest
+     */
+    private int releasedHead, releasedCount;
+
+    /**
+     * Cell indices reserved (but not occupied) by each unit, indexed by grid handle. Only the first
+     * reservationCounts[handle] entries of each array are in use.
+     */
+    private int[][] reservations = new int[64][];
+
+    /**
+     * Number of reserved cells tracked for each unit, indexed by grid handle
+     */
+    private int[] reservationCounts = new int[64];
+
+    /**
+     * Number of times a unit has been placed on or removed from a tile, so views of the grid
+     * (such as the minimap) can tell when they are out of date
+     */
+    private int changeCount = 0;
+
+    /**
+     * Largest shape radius for which taken cells are counted, so the counts fit in a byte
+     */
+    private final static int MAX_CLEARANCE_RADIUS = 5;
+
+    /**
+     * Number of taken cells within each radius of every unit tile, indexed by radius and then by
+     * cell index. Only kept for the radii of square unit shapes placed so far; the others are null.
+     */
+    private byte[][] clearance = new byte[MAX_CLEARANCE_RADIUS + 1][];
+
+    /**
+     * Largest radius for which taken cells are counted, or zero if none are. A change to a cell
+     * changes the counts this far from it.
+     */
+    private int clearanceRadius;
+
+    /**
+     * Working state of the units moved by the grid itself, rather than by parallel tasks
+     */
+    private MoveBuffer serialMoves = new MoveBuffer(false);
+
+    /**
+     * Latest copy of the unit placement published for other threads to search, or null if none
+     * has been published yet
+     */
+    private volatile MapGrid snapshot;
+
+    /**
+     * Earlier snapshots, kept to be brought up to date and published again once no thread is
+     * searching them any more
+     */
+    private List<MapGrid> spareSnapshots = new ArrayList<MapGrid>();
+
+    /**
+     * Number of snapshots published so far. For a snapshot, the number of snapshots published
+     * up to and including it, when it was last brought up to date.
+     */
+    private int version;
+
+    /**
+     * Number of threads searching this snapshot (null for the grid itself)
+     */
+    private AtomicInteger readers;
+
+    /**
+     * Number of snapshots for which the cells changed in between are remembered. A spare
+     * snapshot older than this is copied whole instead.
+     */
+    private final static int CHANGE_LOGS = 8;
+
+    /**
+     * Indices of the cells taken or freed in between snapshots, each logged once. Changes
+     * made after snapshot v was published and before snapshot v + 1 go in entry (v + 1) % CHANGE_LOGS.
+     */
+    private int[][] changeLogs = new int[CHANGE_LOGS][64];
+
+    /**
+     * Number of entries in use in each change log
      */
-    private GameObject[][] grid;
+    private int[] changeLogSizes = new int[CHANGE_LOGS];
 
     /**
-     * Array holding reservations: if null, this tile is unreserved; if non-null, the tile
-     * is reserved for the unit which is in the tile location.
+     * Version of the next snapshot as of the last time each cell was logged as changed, by cell
+     * index, so units moving back and forth don't log the same cells over and over
      */
-    private GameObject[][] reserved;
+    private int[] logged;
+
+    /**
+     * First and last column of each row whose counts of taken cells need copying into a snapshot
+     * being brought up to date
+     */
+    private int[] dirtyRowStart, dirtyRowEnd;
+
+    /**
+     * Whether any cell has been taken or freed since the latest snapshot was published
+     */
+    private boolean snapshotStale = true;
+
+    /**
+     * Listeners told when static objects are placed or removed
+     */
+    private List<StaticObjectListener> staticListeners = new ArrayList<StaticObjectListener>();
+
+    /**
+     * Listener deciding what happens to blocked units, or null to just stop them
+     */
+    private BlockedUnitListener blockedListener;
+
+    /**
+     * Listener deciding when units step, or null to step them as soon as they can
+     */
+    private StepListener stepListener;
 
     /**
      * Create a new unit grid.
@@ -36,8 +234,286 @@ public class MapGrid {
      */
     public MapGrid(int n) {
         this.n = n * SPACES_PER_TILE;
-        grid = new GameObject[this.n][this.n];
-        reserved = new GameObject[this.n][this.n];
+        cells = new int[this.n * this.n];
+    }
+
+    /**
+     * Create an empty snapshot of a grid
+     * @param grid grid the snapshot is taken of
+     */
+    private MapGrid(MapGrid grid){
+        n = grid.n;
+        cells = new int[n * n];
+        readers = new AtomicInteger();
+    }
+
+    /**
+     * Publish a snapshot of where the units are now, for searches running on other threads.
+     * Called by the game thread, which is the only thread that changes the grid. Nothing is
+     * copied if no cell has been taken or freed since the last snapshot. Otherwise an earlier
+     * snapshot which no thread is searching any more is reused, and only the cells changed since
+     * it was last published are copied into it.
+     */
+    public void publishSnapshot(){
+        if(snapshot != null && !snapshotStale)
+            return;
+
+        MapGrid next = null;
+        for(int i = 0; i < spareSnapshots.size() && next == null; i++)
+            if(spareSnapshots.get(i).readers.get() == 0)
+                next = spareSnapshots.remove(i);
+        if(next == null)
+            next = new MapGrid(this);
+        if(dirtyRowStart == null){
+            dirtyRowStart = new int[n];
+            dirtyRowEnd = new int[n];
+            logged = new int[n * n];
+        }
+
+        version++;
+        next.updateFrom(this);
+        next.version = version;
+
+        MapGrid previous = snapshot;
+        snapshot = next;
+        if(previous != null)
+            spareSnapshots.add(previous);
+
+        /* Start remembering the changes made before the next snapshot */
+        changeLogSizes[(version + 1) % CHANGE_LOGS] = 0;
+        snapshotStale = false;
+    }
+
+    /**
+     * Bring this snapshot up to date with the grid it is taken of
+     * @param grid grid the snapshot is taken of
+     */
+    private void updateFrom(MapGrid grid){
+        units = grid.units;
+        changeCount = grid.changeCount;
+
+        boolean whole = version == 0 || grid.version - version >= CHANGE_LOGS;
+        for(int r = 1; r <= MAX_CLEARANCE_RADIUS; r++)
+            if(grid.clearance[r] != null && clearance[r] == null){
+                clearance[r] = new byte[n * n];
+                whole = true;
+            }
+
+        if(whole){
+            System.arraycopy(grid.cells, 0, cells, 0, cells.length);
+            for(int r = 1; r <= MAX_CLEARANCE_RADIUS; r++)
+                if(clearance[r] != null)
+                    System.arraycopy(grid.clearance[r], 0, clearance[r], 0, cells.length);
+            return;
+        }
+
+        int radius = 0;
+        for(int r = 1; r <= MAX_CLEARANCE_RADIUS; r++)
+            if(clearance[r] != null)
+                radius = r;
+        int[] rowStart = grid.dirtyRowStart, rowEnd = grid.dirtyRowEnd;
+        Arrays.fill(rowStart, n);
+        Arrays.fill(rowEnd, -1);
+
+        /* Copy each changed cell, and note the stretch of each row whose counts of taken cells it changed */
+        for(int v = version + 1; v <= grid.version; v++){
+            int[] log = grid.changeLogs[v % CHANGE_LOGS];
+            int size = grid.changeLogSizes[v % CHANGE_LOGS];
+            for(int k = 0; k < size; k++){
+                int index = log[k];
+                cells[index] = grid.cells[index];
+                if(radius == 0)
+                    continue;
+                int x = index / n, y = index % n;
+                for(int i = Math.max(0, x - radius); i <= Math.min(n - 1, x + radius); i++){
+                    rowStart[i] = Math.min(rowStart[i], y - radius);
+                    rowEnd[i] = Math.max(rowEnd[i], y + radius);
+                }
+            }
+        }
+
+        for(int i = 0; i < n && radius > 0; i++){
+            if(rowEnd[i] < 0)
+                continue;
+            int start = Math.max(0, rowStart[i]), length = Math.min(n - 1, rowEnd[i]) - start + 1;
+            for(int r = 1; r <= radius; r++)
+                if(clearance[r] != null)
+                    System.arraycopy(grid.clearance[r], i * n + start, clearance[r], i * n + start, length);
+        }
+    }
+
+    /**
+     * Remember that a cell has been taken or freed since the latest snapshot was published. A
+     * parallel move only notes the cell in its buffer, for finishMoves to log.
+     * @param index cell index
+     * @param moves buffer of the move which changed the cell
+     */
+    private void logChange(int index, MoveBuffer moves){
+        if(moves.parallel){
+            if(moves.changedCount == moves.changedCells.length)
+                moves.changedCells = Arrays.copyOf(moves.changedCells, moves.changedCount * 2);
+            moves.changedCells[moves.changedCount++] = index;
+            return;
+        }
+
+        snapshotStale = true;
+        if(snapshot == null || logged[index] == version + 1)
+            return;
+        logged[index] = version + 1;
+
+        int slot = (version + 1) % CHANGE_LOGS;
+        int size = changeLogSizes[slot];
+        if(size == changeLogs[slot].length)
+            changeLogs[slot] = Arrays.copyOf(changeLogs[slot], size * 2);
+        changeLogs[slot][size] = index;
+        changeLogSizes[slot] = size + 1;
+    }
+
+    /**
+     * Take the changes to state shared by the whole grid which parallel moves held back in a
+     * buffer, and let the blocked unit listener deal with the units they stopped. Called on the tick's own thread once the tasks using the buffer are done, and
+     * before the next snapshot is published.
+     * @param moves buffer of a parallel task
+     */
+    void finishMoves(MoveBuffer moves){
+        for(int k = 0; k < moves.changedCount; k++)
+            logChange(moves.changedCells[k], serialMoves);
+        moves.changedCount = 0;
+        changeCount += moves.changes;
+        moves.changes = 0;
+
+        /* A unit moving several tiles in a tick may have been stopped more than once */
+        for(int k = 0; k < moves.blocked.size(); k++){
+            GameObject unit = moves.blocked.get(k);
+            if(k == 0 || moves.blocked.get(k - 1) != unit)
+                blockedUnit(unit);
+        }
+        moves.blocked.clear();
+    }
+
+    /**
+     * Start searching the latest published snapshot of the unit placement. A snapshot isn't
+     * changed while any thread is searching it, so the search sees the units where they all were
+     * at one moment, however they move in the meantime. The snapshot must not be changed, and
+     * must be handed back with releaseSnapshot when the search is done.
+     * @return latest snapshot, or this grid if none has been published yet
+     */
+    public MapGrid acquireSnapshot(){
+        while(true){
+            MapGrid latest = snapshot;
+            if(latest == null)
+                return this;
+
+            /* Once counted as a reader, the snapshot is only safe to use if it was still the latest */
+            latest.readers.incrementAndGet();
+            if(latest == snapshot)
+                return latest;
+            latest.readers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Finish searching a snapshot, so it can be brought up to date and published again
+     * @param grid snapshot returned by acquireSnapshot
+     */
+    public void releaseSnapshot(MapGrid grid){
+        if(grid != this)
+            grid.readers.decrementAndGet();
+    }
+
+    /**
+     * Get the number of snapshots published so far. A change made to the grid now is first
+     * included in the snapshot after that many. For a snapshot, the number of snapshots
+     * published up to and including it.
+     * @return snapshot version
+     */
+    public int getVersion(){
+        return version;
+    }
+
+    /**
+     * Get the grid handle of a unit, registering the unit with this grid if it doesn't have one
+     * yet. Handles are only given out on the tick's own thread: units moved in parallel are
+     * registered before the moves start (see registerUnit), so the arrays indexed by handle are
+     * never replaced while a parallel move is writing to them.
+     * @param unit unit to look up
+     * @return the unit's grid handle
+     */
+    private int handleOf(GameObject unit){
+        if(unit.gridHandle != 0)
+            return unit.gridHandle;
+
+        int handle;
+        if(releasedHead < releasedCount && isReusable(releasedAt[releasedHead]))
+            handle = released[releasedHead++];
+        else {
+            if(nextHandle == units.length){
+                units = Arrays.copyOf(units, units.length * 2);
+                reservations = Arrays.copyOf(reservations, units.length);
+                reservationCounts = Arrays.copyOf(reservationCounts, units.length);
+            }
+            handle = nextHandle++;
+        }
+        units[handle] = unit;
+        unit.gridHandle = handle;
+        return handle;
+    }
+
+    /**
+     * Give a unit its grid handle now, if it doesn't have one yet, so moving it later never has
+     * to. Called on the tick's own thread before units are moved in parallel.
+     * @param unit unit which may be moved
+     */
+    void registerUnit(GameObject unit){
+        handleOf(unit);
+    }
+
+    /**
+     * Take back the handle of a unit which has left the grid, so it can be given to another unit
+     * and the grid no longer keeps the unit reachable. Snapshots taken before the unit left may
+     * still name the handle, so it is only given out again once none of them can be searched.
+     * @param unit unit which has left the grid
+     */
+    private void releaseHandle(GameObject unit){
+        int handle = unit.gridHandle;
+        units[handle] = null;
+        reservationCounts[handle] = 0;
+        unit.gridHandle = 0;
+
+        if(releasedHead == releasedCount)
+            releasedHead = releasedCount = 0;
+        if(releasedCount == released.length){
+            /* Move the handles still waiting to the front, making room if half are still waiting */
+            int waiting = releasedCount - releasedHead;
+            if(waiting * 2 > released.length){
+                released = Arrays.copyOf(released, released.length * 2);
+                releasedAt = Arrays.copyOf(releasedAt, released.length);
+            }
+            System.arraycopy(released, releasedHead, released, 0, waiting);
+            System.arraycopy(releasedAt, releasedHead, releasedAt, 0, waiting);
+            releasedHead = 0;
+            releasedCount = waiting;
+        }
+        released[releasedCount] = handle;
+        releasedAt[releasedCount++] = version + 1;
+    }
+
+    /**
+     * Check whether a handle released for the first time from the snapshot of a given version can
+     * be given out again: every snapshot which may still be searched must be at least that recent
+     */
+    private boolean isReusable(int since){
+        MapGrid latest = snapshot;
+        if(latest == null)
+            return true;
+        if(latest.version < since)
+            return false;
+
+        /* Earlier snapshots can't gain new searches, only finish the ones under way */
+        for(MapGrid spare : spareSnapshots)
+            if(spare.version < since && spare.readers.get() > 0)
+                return false;
+        return true;
     }
 
     /**
@@ -45,6 +521,19 @@ public class MapGrid {
      * @return true if movement successful, false if movement was stalled
      */
     public void moveUnitOneTile(GameObject unit){
+        moveUnitOneTile(unit, serialMoves);
+    }
+
+    /**
+     * Attempt to move the unit onto its destination tile, keeping the working state of the move
+     * in a buffer of the caller's. Units moved at the same time must use different buffers.
+     * @param unit unit to move
+     * @param moves buffer to keep the working state of the move in, or null to use the grid's own
+     */
+    void moveUnitOneTile(GameObject unit, MoveBuffer moves){
+        if(moves == null)
+            moves = serialMoves;
+
         /* Get the direction the unit is currently moving in, the direction in which 
          * it should move after this method is finished, and the direction it will turn
          * in after the next move is finished
@@ -52,10 +541,6 @@ public class MapGrid {
         Direction current = unit.getDirection();
         Direction next = unit.getNextDirection();
 
-        /* Get the offsets for each of the directions retrieved above */
-        Point currentOffset = getDirectionOffset(current);
-        Point nextOffset = getDirectionOffset(next);
-
         /* If the unit is stationary and isn't going to start moving */
         if(current == null && next == null){
             /* Just update the direction so that on the next call, this unit might start moving */
@@ -65,10 +550,24 @@ public class MapGrid {
 
         /* If the unit is moving, move it */
         if(current != null){
-            removeUnit(unit);
-            unit.getUnit().setX(unit.getUnit().getX() + currentOffset.x);
-            unit.getUnit().setY(unit.getUnit().getY() + currentOffset.y);
-            placeUnit(unit);
+            moves.deferClearance = true;
+            removeUnit(unit, moves);
+            unit.getUnit().setX(unit.getUnit().getX() + OFFSET_X[current.ordinal()]);
+            unit.getUnit().setY(unit.getUnit().getY() + OFFSET_Y[current.ordinal()]);
+            placeUnit(unit, moves);
+
+            /* The unit has moved onto the tiles it reserved, so drop any leftover reservations */
+            releaseReservations(unit, moves);
+            flushClearance(moves);
+        }
+
+        /* The step listener may hold the unit back for now, or give it a new path to follow */
+        if(next != null && stepListener != null){
+            if(!stepListener.unitStepping(unit)){
+                unit.setDirection(null);
+                return;
+            }
+            next = unit.getNextDirection();
         }
 
         /* If the unit wants to move */
@@ -77,61 +576,41 @@ public class MapGrid {
              *     turn in the direction it wants to move in AND
              *     move in the direction it wants to move in (after turning)
              */
-            if(canPlaceUnit(unit, unit.getUnit().getX(), unit.getUnit().getY(), next) && 
-            		canPlaceUnit(unit, unit.getUnit().getX() + nextOffset.x, unit.getUnit().getY() + nextOffset.y, next)){
-                placeReservation(unit, unit.getUnit().getX(), unit.getUnit().getY(), next);
+            int x = unit.getUnit().getX(), y = unit.getUnit().getY();
+            if(canPlaceUnit(unit, x, y, next) && 
+            		canPlaceUnit(unit, x + OFFSET_X[next.ordinal()], y + OFFSET_Y[next.ordinal()], next)){
+                moves.deferClearance = true;
+                placeReservation(unit, x, y, next, moves);
 
                 /* Re-orient the unit in its new facing direction */
-                removeUnit(unit);
+                removeUnit(unit, moves);
                 unit.updateDirection();
-                placeUnit(unit);
+                placeUnit(unit, moves);
+                flushClearance(moves);
             }
             else
-                   stopUnit(unit);
+                   stopUnit(unit, moves);
         } else {
             unit.updateDirection();
         }
     }
 
     /**
-     * Find the offset in the given direction on the unit grid
+     * Find the x offset of one step in the given direction on the unit grid
      * @param d direction in which to move
-     * @return point with x, y offsets
-     */
-    private Point getDirectionOffset(Direction d){
-        int delX = 0, delY = 0;
-        if(d != null)
-            switch(d){
-                case North:
-                    delY = 1; 
-                    break;
-                case Northeast:
-                    delX = delY = 1; 
-                    break;
-                case East:
-                    delX = 1; 
-                    break;
-                case Southeast:
-                    delX = 1;
-                    delY = -1; 
-                    break;
-                case South:
-                    delY = -1;
-                    break;
-                case Southwest:
-                    delY = -1;
-                    delX = -1;
-                    break;
-                case West:
-                    delX = -1; 
-                    break;
-                case Northwest:
-                default:
-                    delX = -1;
-                    delY = 1;
-                    break;
-            }
-        return new Point(delX, delY);
+     * @return x offset (zero if the direction is null)
+     */
+    public static int getOffsetX(Direction d){
+        return d == null ? 0 : OFFSET_X[d.ordinal()];
+    }
+
+    /**
+     * Find the y offset of one step in the given direction on the unit grid
+     * @param d direction in which to move
+     * @return y offset (zero if the direction is null)
+     */
+    public static int getOffsetY(Direction d){
+        return d == null ? 0 : OFFSET_Y[d.ordinal()];
     }
 
     /**
@@ -141,10 +620,13 @@ public class MapGrid {
      * @return unit at specified coordinates
      */
     public GameObject getUnit(int i, int j){
-    	if(this.contains(i, j))
-    		return grid[i][j];
-    	else
+    	if(!this.contains(i, j))
     		return null;
+
+    	int cell = cells[i * n + j];
+    	if((cell & OCCUPIED) == 0)
+    		return null;
+    	return units[cell >>> 1];
     }
 
     /**
@@ -152,19 +634,19 @@ public class MapGrid {
      * @param i x coordinate of spot
      * @param j y coordinate of spot
      * @param unit the unit for which to check. If this is null, then it checks whether this spot is taken for any unit.
+     * @return true if the spot is occupied or reserved by another unit, or is off the grid
      */
     public boolean spaceTakenFor(int i, int j, GameObject unit){
+        if(!this.contains(i, j))
+            return true;
+
+        int cell = cells[i * n + j];
+
         /* If the unit for which we're checking is null, then just check if this space is taken at all */
         if(unit == null)
-            return reserved[i][j] != null;
+            return cell != 0;
 
-        boolean empty = (reserved[i][j] == null);
-        if(empty)
-            return false;
-        else if(reserved[i][j] == unit)
-            return false;
-        else
-            return true;
+        return cell != 0 && (cell >>> 1) != unit.gridHandle;
     }
 
     /**
@@ -185,48 +667,74 @@ public class MapGrid {
      * @param unit the unit 
      */
     public void placeUnit(GameObject unit){
+        placeUnit(unit, serialMoves);
+    }
+
+    /**
+     * Place a unit in its position, keeping the working state in a buffer
+     */
+    private void placeUnit(GameObject unit, MoveBuffer moves){
         Point[] points = unit.getCurrentShape();
 
+        UnitShape shape = unit.getUnitShape();
+        if(shape != null && shape.isSquare())
+            trackClearance(shape.getRadius());
+
         for(Point p : points)
-            setUnit(unit, unit.getUnit().getX() + p.x, unit.getUnit().getY() + p.y);
+            setUnit(unit, unit.getUnit().getX() + p.x, unit.getUnit().getY() + p.y, moves);
+
+        if(!staticListeners.isEmpty() && !unit.isMovable())
+            staticObjectChanged(unit);
     }
 
     /**
-     * Remove a unit from a location. This removes the entire unit, not just the center.
+     * Remove a unit from a location. This removes the entire unit, not just the center, along
+     * with the cells it has reserved, and the unit's grid handle is given up until it is placed again.
      * @param unit the unit 
      */
     public void removeUnit(GameObject unit){
+        removeUnit(unit, serialMoves);
+        if(unit.gridHandle != 0){
+            releaseReservations(unit, serialMoves);
+            releaseHandle(unit);
+        }
+    }
+
+    /**
+     * Remove a unit from its location, keeping the working state in a buffer
+     */
+    private void removeUnit(GameObject unit, MoveBuffer moves){
         Point[] points = unit.getCurrentShape();
         for(Point p : points)
-            setUnit(null, unit.getUnit().getX() + p.x, unit.getUnit().getY() + p.y);
+            setUnit(null, unit.getUnit().getX() + p.x, unit.getUnit().getY() + p.y, moves);
+
+        if(!staticListeners.isEmpty() && !unit.isMovable())
+            staticObjectChanged(unit);
     }
 
     /**
-     * Get the neighbors of a point
-     * @return the neighbors of a given point
+     * Get the neighbors of a point. Neighbors are written into the caller's buffers in order of
+     * Direction.ordinal(), skipping any which are off the grid, so nothing is allocated.
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     * @param neighborX buffer of at least 8 entries receiving neighbor x coordinates
+     * @param neighborY buffer of at least 8 entries receiving neighbor y coordinates
+     * @param neighborDir buffer of at least 8 entries receiving the ordinal of the direction to each neighbor
+     * @return number of neighbors written
      */
-    public Point[] getNeighbors(int x, int y){
-        Point[] neighbors;
+    public int getNeighbors(int x, int y, int[] neighborX, int[] neighborY, int[] neighborDir){
         int count = 0;
-        if(!this.contains(x,y))
-            return null;
-        if(x == 0 || x == n - 1)
-            if(y == 0 || y == n - 1)
-                neighbors = new Point[3];
-            else
-                neighbors = new Point[5];
-        else if(y == 0 || y == n - 1)
-            neighbors = new Point[5];
-        else
-            neighbors = new Point[8];
-        for(int i = x - 1; i <= x + 1; i++)
-            for(int j = y - 1; j <= y + 1; j++){
-                if(this.contains(i,j) && !(x == i && y == j)){
-                    neighbors[count] = new Point(i,j);
-                    count++;
-                }
+        for(int d = 0; d < OFFSET_X.length; d++){
+            int i = x + OFFSET_X[d];
+            int j = y + OFFSET_Y[d];
+            if(this.contains(i, j)){
+                neighborX[count] = i;
+                neighborY[count] = j;
+                neighborDir[count] = d;
+                count++;
             }
-        return neighbors;
+        }
+        return count;
     }
 
     /**
@@ -240,19 +748,17 @@ public class MapGrid {
     /**
      * Tell the unit grid that the path of this unit has changed.
      * @param unit unit for which path has changed
-     * @param previousPath previous path this unit had
+     * @param newPath path this unit has now
      */
-    public void unitPathChanged(GameObject unit, Queue<Direction> newPath){
+    public void unitPathChanged(GameObject unit, Path newPath){
         /* Clear all reservations */
-        for(int i = 0; i < reserved.length; i++)
-            for(int j = 0; j < reserved[i].length; j++)
-                if(reserved[i][j] == unit){
-                    reserved[i][j] = null;
-                    grid[i][j] = null;
-                }
+        releaseReservations(unit, serialMoves);
 
         /* Reserve where the unit is */
         placeUnit(unit);
+
+        if(stepListener != null)
+            stepListener.pathChanged(unit);
     }
 
 
@@ -261,13 +767,99 @@ public class MapGrid {
      * @param unit the unit 
      * @param i x coordinate of spot
      * @param j y coordinate of spot
+     * @throws IndexOutOfBoundsException if the spot is off the grid
      */
     public void setUnit(GameObject unit, int i, int j){
-        grid[i][j] = unit;
-        Minimap.updateMinimap();
+        setUnit(unit, i, j, serialMoves);
+    }
+
+    /**
+     * Set a location in the unit grid to a given unit, keeping the working state in a buffer
+     */
+    private void setUnit(GameObject unit, int i, int j, MoveBuffer moves){
+        /* A flat index would wrap onto the next row, so check both coordinates */
+        if(!this.contains(i, j))
+            throw new IndexOutOfBoundsException("Unit tile (" + i + ", " + j + ") is off the " + n + "x" + n + " grid");
+
+        /* Occupy (and reserve) or free this location (depending on whether unit == null) */
+        int index = i * n + j;
+        boolean wasTaken = cells[index] != 0;
+        cells[index] = (unit == null) ? 0 : (handleOf(unit) << 1) | OCCUPIED;
+        if(moves.parallel)
+            moves.changes++;
+        else
+            changeCount++;
+        logChange(index, moves);
+
+        if(wasTaken != (unit != null))
+            updateClearance(i, j, unit != null ? 1 : -1, moves);
+    }
+
+    /**
+     * Register a listener to be told when static objects are placed on or removed from the grid
+     * @param listener listener to add
+     */
+    public void addStaticObjectListener(StaticObjectListener listener){
+        staticListeners.add(listener);
+    }
+
+    /**
+     * Set the listener deciding what happens to units whose next step is blocked
+     * @param listener listener to use, or null to stop blocked units and clear their paths
+     */
+    public void setBlockedUnitListener(BlockedUnitListener listener){
+        blockedListener = listener;
+    }
+
+    /**
+     * Set the listener deciding when units take the next step of their paths
+     * @param listener listener to use, or null to step units as soon as they can
+     */
+    public void setStepListener(StepListener listener){
+        stepListener = listener;
+    }
+
+    /**
+     * Check whether a listener decides when units step. Its decisions can't wait for the moves
+     * to finish, so units aren't moved in parallel while one is set.
+     * @return true if a step listener is set
+     */
+    boolean hasStepListener(){
+        return stepListener != null;
+    }
+
+    /**
+     * Tell the static object listeners that a unit which never moves was placed or removed
+     * @param unit the static unit
+     */
+    private void staticObjectChanged(GameObject unit){
+        int x = unit.getUnit().getX(), y = unit.getUnit().getY();
+        int minX = x, minY = y, maxX = x, maxY = y;
+        for(Point p : unit.getCurrentShape()){
+            minX = Math.min(minX, x + p.x);
+            minY = Math.min(minY, y + p.y);
+            maxX = Math.max(maxX, x + p.x);
+            maxY = Math.max(maxY, y + p.y);
+        }
 
-        /* Reserve or unreserve this location (depending on whether unit == null) */
-        reserved[i][j] = unit;
+        for(StaticObjectListener listener : staticListeners)
+            listener.staticObjectChanged(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Get how many times tiles have been occupied or freed
+     * @return number of changes to unit placement so far
+     */
+    public int getChangeCount(){
+        return changeCount;
+    }
+
+    /**
+     * Get the size of the unit grid
+     * @return length of the grid along one edge, in unit tiles
+     */
+    public int getSize(){
+        return n;
     }
 
     /**
@@ -289,20 +881,32 @@ public class MapGrid {
      * @return whether we can place the unit there without interfering with other units
      */
     public boolean canPlaceUnit(GameObject unit, int x, int y, Direction orientation){
-        Point[] points = unit.getShape(orientation);
+        /* Square shapes can usually be decided from the number of taken cells around the location */
+        UnitShape shape = unit.getUnitShape();
+        if(shape != null && shape.isSquare() && shape.getRadius() > 0 && shape.getRadius() <= MAX_CLEARANCE_RADIUS){
+            int r = shape.getRadius();
+            byte[] counts = clearance[r];
+            if(counts != null){
+                if(x - r < 0 || y - r < 0 || x + r >= n || y + r >= n)
+                    return false;
+                if(counts[x * n + y] == 0)
+                    return true;
 
-        for(Point p : points){
-        	try{
-        		if(spaceTakenFor(x + p.x, y + p.y, unit))
-        			return false;
-        	}
-        	
-        	//If it goes off the map, return false
-        	catch(ArrayIndexOutOfBoundsException e){
-        		return false;
-        	}
+                /* The cells counted can only be the unit's own if the unit (or its reservation) is close enough.
+                 * The unit may have moved on since a snapshot was taken, so snapshots always check the points. */
+                int ux = unit.getUnit().getX(), uy = unit.getUnit().getY();
+                if(unit.gridHandle == 0 || (readers == null && Math.max(Math.abs(x - ux), Math.abs(y - uy)) > 2 * r + 1))
+                    return false;
+            }
         }
 
+        Point[] points = unit.getShape(orientation);
+
+        /* Any point that is taken or off the map means the unit can't be placed */
+        for(Point p : points)
+            if(spaceTakenFor(x + p.x, y + p.y, unit))
+                return false;
+
         return true;
     }
 
@@ -312,35 +916,227 @@ public class MapGrid {
      * @param x x coordinate of current unit location
      * @param y y coordinate of current unit location
      * @param direction direction in which unit will move (and orientation of unit)
+     * @param moves buffer keeping the working state of the move
      */
-    private void placeReservation(GameObject unit, int x, int y, Direction direction){
+    private void placeReservation(GameObject unit, int x, int y, Direction direction, MoveBuffer moves){
         Point[] points = unit.getShape(direction);
-        Point offset = getDirectionOffset(direction);
+        int offsetX = OFFSET_X[direction.ordinal()], offsetY = OFFSET_Y[direction.ordinal()];
+        int handle = handleOf(unit);
+        int reservation = handle << 1;
+
+        /* Make sure there is room to record every reserved cell */
+        int count = reservationCounts[handle];
+        int[] reserved = reservations[handle];
+        if(reserved == null || reserved.length < count + points.length){
+            reserved = (reserved == null) ? new int[points.length] : Arrays.copyOf(reserved, count + points.length);
+            reservations[handle] = reserved;
+        }
 
         for(Point p : points){
-            int resX = x + p.x + offset.x;
-            int resY = y + p.y + offset.y;
-            if(reserved[resX][resY] == null)
-                reserved[resX][resY] = unit;
+            int rx = x + p.x + offsetX, ry = y + p.y + offsetY;
+            if(!this.contains(rx, ry))
+                continue;
+            int index = rx * n + ry;
+            if(cells[index] == 0){
+                cells[index] = reservation;
+                reserved[count++] = index;
+                logChange(index, moves);
+                updateClearance(index / n, index % n, 1, moves);
+            }
+        }
+        reservationCounts[handle] = count;
+    }
+
+    /**
+     * Free all the cells a unit has reserved but is not standing on. This only touches the cells
+     * recorded for the unit when they were reserved, instead of searching the whole grid.
+     * @param unit unit whose reservations to release
+     * @param moves buffer keeping the working state of the move
+     */
+    private void releaseReservations(GameObject unit, MoveBuffer moves){
+        int handle = unit.gridHandle;
+        if(handle == 0)
+            return;
+
+        int reservation = handle << 1;
+        int[] reserved = reservations[handle];
+        int count = reservationCounts[handle];
+        for(int i = 0; i < count; i++){
+            /* Skip cells the unit has since moved onto, or which were freed and taken by another unit */
+            if(cells[reserved[i]] == reservation){
+                cells[reserved[i]] = 0;
+                logChange(reserved[i], moves);
+                updateClearance(reserved[i] / n, reserved[i] % n, -1, moves);
+            }
         }
+        reservationCounts[handle] = 0;
     }
 
     /**
-     * Stop the unit and reroute it if necessary.
+     * Start counting the taken cells around every unit tile for a shape radius, if they aren't
+     * counted already. The counts are then kept up to date as cells are taken and freed, which
+     * costs one update per cell within the radius; a freed cell needs no search, unlike a
+     * distance-to-nearest-obstacle map.
+     * @param r radius of a square unit shape
+     */
+    private void trackClearance(int r){
+        if(r <= 0 || r > MAX_CLEARANCE_RADIUS || clearance[r] != null)
+            return;
+
+        /* The new counts are taken from the cells as they are now, so bring the others up to date too */
+        applyPendingClearance(serialMoves);
+        clearance[r] = countTaken(r);
+        clearanceRadius = Math.max(clearanceRadius, r);
+    }
+
+    /**
+     * Count the taken cells within a radius of every unit tile
+     * @param r radius
+     * @return counts, by cell index
+     */
+    private byte[] countTaken(int r){
+        /* Count the taken cells in each window from running sums over the grid */
+        int m = n + 1;
+        int[] sums = new int[m * m];
+        for(int i = 0; i < n; i++)
+            for(int j = 0; j < n; j++)
+                sums[(i + 1) * m + j + 1] = (cells[i * n + j] != 0 ? 1 : 0)
+                    + sums[i * m + j + 1] + sums[(i + 1) * m + j] - sums[i * m + j];
+
+        byte[] counts = new byte[n * n];
+        for(int i = 0; i < n; i++)
+            for(int j = 0; j < n; j++){
+                int x0 = Math.max(0, i - r), y0 = Math.max(0, j - r);
+                int x1 = Math.min(n, i + r + 1), y1 = Math.min(n, j + r + 1);
+                counts[i * n + j] = (byte) (sums[x1 * m + y1] - sums[x0 * m + y1] - sums[x1 * m + y0] + sums[x0 * m + y0]);
+            }
+        return counts;
+    }
+
+    /**
+     * Check that the counts of taken cells kept up to date as units move match the cells, by
+     * counting them all again. Meant for checking that units moved at the same time didn't lose
+     * each other's changes.
+     * @return true if every count kept matches the cells
+     */
+    public boolean isClearanceConsistent(){
+        for(int r = 1; r <= MAX_CLEARANCE_RADIUS; r++)
+            if(clearance[r] != null && !Arrays.equals(clearance[r], countTaken(r)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Get the largest radius within which taken cells are counted. Taking or freeing a cell
+     * changes the counts of the cells this far from it.
+     * @return radius, or zero if no counts are kept
+     */
+    int getClearanceRadius(){
+        return clearanceRadius;
+    }
+
+    /**
+     * Update the taken cell counts around a cell which was taken or freed
+     * @param x x coordinate of the cell
+     * @param y y coordinate of the cell
+     * @param change 1 if the cell was taken, -1 if it was freed
+     * @param moves buffer in which to hold the change back, if the move under way holds changes back
+     */
+    private void updateClearance(int x, int y, int change, MoveBuffer moves){
+        if(clearanceRadius == 0)
+            return;
+
+        if(moves.deferClearance){
+            if(moves.pendingClearance == null)
+                moves.pendingClearance = new int[n * n];
+            if(moves.pendingCount == moves.pendingCells.length)
+                moves.pendingCells = Arrays.copyOf(moves.pendingCells, moves.pendingCount * 2);
+            int index = x * n + y;
+            moves.pendingCells[moves.pendingCount++] = index;
+            moves.pendingClearance[index] += change;
+            return;
+        }
+
+        for(int r = 1; r <= MAX_CLEARANCE_RADIUS; r++){
+            byte[] counts = clearance[r];
+            if(counts == null)
+                continue;
+
+            int x0 = Math.max(0, x - r), x1 = Math.min(n - 1, x + r);
+            int y0 = Math.max(0, y - r), y1 = Math.min(n - 1, y + r);
+            for(int i = x0; i <= x1; i++)
+                for(int j = y0; j <= y1; j++)
+                    counts[i * n + j] += change;
+        }
+    }
+
+    /**
+     * Apply the changes to the taken cell counts held back while a unit moved, and stop holding
+     * them back
+     */
+    private void flushClearance(MoveBuffer moves){
+        applyPendingClearance(moves);
+        moves.deferClearance = false;
+    }
+
+    /**
+     * Apply the changes to the taken cell counts held back in a buffer so far. Cells which were
+     * freed and taken again cancel out and cost nothing.
+     */
+    private void applyPendingClearance(MoveBuffer moves){
+        boolean deferred = moves.deferClearance;
+        moves.deferClearance = false;
+        for(int k = 0; k < moves.pendingCount; k++){
+            int index = moves.pendingCells[k];
+            int change = moves.pendingClearance[index];
+            if(change != 0){
+                moves.pendingClearance[index] = 0;
+                updateClearance(index / n, index % n, change, moves);
+            }
+        }
+        moves.pendingCount = 0;
+        moves.deferClearance = deferred;
+    }
+
+    /**
+     * Stop the unit and reroute it if necessary. Unless the blocked unit listener keeps the
+     * unit's path, the path is cleared. A parallel move only stops the unit, and leaves the rest
+     * to finishMoves, since the listener may search for a new path or change other units.
      * @param unit unit to stop
+     * @param moves buffer of the move which found the unit blocked
      */
-    private void stopUnit(GameObject unit){
+    private void stopUnit(GameObject unit, MoveBuffer moves){
         unit.setDirection(null);
-        unit.clearPath();
+        if(moves.parallel){
+            moves.blocked.add(unit);
+            return;
+        }
+        blockedUnit(unit);
+    }
+
+    /**
+     * Let the blocked unit listener reroute a stopped unit, or clear its path
+     * @param unit unit which was stopped
+     */
+    private void blockedUnit(GameObject unit){
+        if(blockedListener == null || !blockedListener.unitBlocked(unit))
+            unit.clearPath();
     }
         
 	/**
 	 * Get direction of p2 relative to p1
 	 */
 	public Direction getDirection(Point p1, Point p2){
-		int dx = p2.x - p1.x;
-		int dy = p2.y - p1.y;
+		return getDirection(p2.x - p1.x, p2.y - p1.y);
+	}
 
+	/**
+	 * Get the direction of a step with the given offsets
+	 * @param dx x offset
+	 * @param dy y offset
+	 * @return direction of the step, or null if there is no movement
+	 */
+	public static Direction getDirection(int dx, int dy){
 		if(dx < 0){
 			if(dy < 0) return Direction.Southwest;
 			else if(dy == 0) return Direction.West;
@@ -370,8 +1166,7 @@ public class MapGrid {
 		if(this.getUnit(p.x, p.y) == null)
 			return p;
 		else{
-			Point delta = getDirectionOffset(d);
-			p.translate(delta.x, delta.y);
+			p.translate(getOffsetX(d), getOffsetY(d));
 			return getFirstUnoccupiedTile(p, d);
 		}
 	}
@@ -0,0 +1,71 @@
+package com.scriptrts.game;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Working state kept by the unit grid while it moves units. The grid has one buffer for units
+ * it moves itself, and each task moving units in parallel has one of its own, so units moved at
+ * the same time never share any of it. A parallel task's buffer also holds on to the changes to
+ * state shared by the whole grid, such as the log of cells changed since the last snapshot, and
+ * the units it found blocked, until the grid takes them on the tick's own thread.
+ */
+class MoveBuffer {
+    /**
+     * Whether the moves run alongside others, so changes to state shared by the whole grid are
+     * held here instead of being made straight away
+     */
+    final boolean parallel;
+
+    /**
+     * Whether changes to the taken cell counts are being held back until a unit has finished
+     * moving, since most of the cells it leaves are taken again straight away
+     */
+    boolean deferClearance;
+
+    /**
+     * Net change held back for each cell, by cell index (null until a change is held back)
+     */
+    int[] pendingClearance;
+
+    /**
+     * Indices of the cells with changes held back, possibly more than once. Only the first
+     * pendingCount entries are in use.
+     */
+    int[] pendingCells = new int[64];
+
+    /**
+     * Number of entries in use in pendingCells
+     */
+    int pendingCount;
+
+    /**
+     * Indices of the cells taken or freed by parallel moves, possibly more than once. Only the
+     * first changedCount entries are in use.
+     */
+    int[] changedCells = new int[64];
+
+    /**
+     * Number of entries in use in changedCells
+     */
+    int changedCount;
+
+    /**
+     * Number of times parallel moves placed a unit on or removed one from a tile
+     */
+    int changes;
+
+    /**
+     * Units stopped by parallel moves because their next step was blocked, in the order they were
+     * stopped, whose blocked unit listener is yet to be told
+     */
+    List<GameObject> blocked = new ArrayList<GameObject>();
+
+    /**
+     * Create a new buffer
+     * @param parallel whether the moves run alongside others
+     */
+    MoveBuffer(boolean parallel){
+        this.parallel = parallel;
+    }
+}
@@ -0,0 +1,216 @@
+package com.scriptrts.game;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Path a unit follows, as a queue of directions. Directions are packed three bits each, 21 to a
+ * long, and taking a step only moves a cursor, so a path of a few hundred steps takes a few
+ * hundred bytes and following it never allocates.
+ */
+public class Path extends AbstractQueue<Direction> {
+    /**
+     * Number of bits used by each direction
+     */
+    private static final int BITS = 3;
+
+    /**
+     * Number of directions packed into each word
+     */
+    private static final int PER_WORD = 64 / BITS;
+
+    /**
+     * Mask selecting one direction from a word
+     */
+    private static final long MASK = (1L << BITS) - 1;
+
+    /**
+     * All directions, indexed by ordinal
+     */
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /**
+     * Words shared by every path which has never had a direction added
+     */
+    private static final long[] NO_WORDS = new long[0];
+
+    /**
+     * Packed directions, the first in the lowest bits of the first word
+     */
+    private long[] words;
+
+    /**
+     * Index of the next direction to take
+     */
+    private int head;
+
+    /**
+     * Number of directions added, including those already taken
+     */
+    private int tail;
+
+    /**
+     * Create a new empty path
+     */
+    public Path(){
+        words = NO_WORDS;
+    }
+
+    /**
+     * Create a new empty path with room for some directions
+     * @param capacity number of directions the path can hold before it has to grow
+     */
+    public Path(int capacity){
+        words = new long[(capacity + PER_WORD - 1) / PER_WORD];
+    }
+
+    /**
+     * Create a path from directions packed by pack()
+     * @param packed packed directions
+     * @param length number of directions packed
+     */
+    public Path(long[] packed, int length){
+        if(length < 0 || length > packed.length * PER_WORD)
+            throw new IllegalArgumentException("Packed path too short for " + length + " directions");
+        words = packed;
+        tail = length;
+
+        /* Clear any bits past the last direction, so directions added later land on zeros */
+        int last = (length + PER_WORD - 1) / PER_WORD;
+        Arrays.fill(words, last, words.length, 0);
+        if(length % PER_WORD != 0)
+            words[last - 1] &= (1L << (length % PER_WORD * BITS)) - 1;
+    }
+
+    /**
+     * Get the number of words pack() uses for a number of directions
+     * @param length number of directions
+     * @return number of longs holding them
+     */
+    public static int wordsFor(int length){
+        return (length + PER_WORD - 1) / PER_WORD;
+    }
+
+    /**
+     * Add a direction to the end of the path
+     * @param d direction to add
+     * @return true
+     */
+    public boolean offer(Direction d){
+        if(d == null)
+            throw new NullPointerException();
+        if(tail == words.length * PER_WORD)
+            grow();
+        words[tail / PER_WORD] |= (long) d.ordinal() << (tail % PER_WORD * BITS);
+        tail++;
+        return true;
+    }
+
+    /**
+     * Add the directions of another path which haven't been taken yet, from one of them on
+     * @param other path whose directions to add
+     * @param from number of the other path's directions to skip
+     */
+    public void append(Path other, int from){
+        for(int i = other.head + from; i < other.tail; i++)
+            offer(other.at(i));
+    }
+
+    /**
+     * Get the next direction to take without taking it
+     * @return next direction, or null if the path is over
+     */
+    public Direction peek(){
+        return head == tail ? null : at(head);
+    }
+
+    /**
+     * Take the next direction
+     * @return next direction, or null if the path is over
+     */
+    public Direction poll(){
+        if(head == tail)
+            return null;
+        return at(head++);
+    }
+
+    /**
+     * Get a direction still to be taken
+     * @param i number of directions before it
+     * @return direction
+     */
+    public Direction get(int i){
+        if(i < 0 || i >= tail - head)
+            throw new IndexOutOfBoundsException("Step " + i + " of a path with " + (tail - head) + " left");
+        return at(head + i);
+    }
+
+    /**
+     * Get the number of directions still to be taken
+     */
+    public int size(){
+        return tail - head;
+    }
+
+    /**
+     * Remove every direction, keeping the room they took
+     */
+    public void clear(){
+        Arrays.fill(words, 0, (tail + PER_WORD - 1) / PER_WORD, 0);
+        head = tail = 0;
+    }
+
+    /**
+     * Pack the directions still to be taken, for sending over the network
+     * @return packed directions, which Path(long[], int) turns back into a path of size() directions
+     */
+    public long[] pack(){
+        Path copy = new Path(size());
+        copy.append(this, 0);
+        return copy.words;
+    }
+
+    /**
+     * Iterate over the directions still to be taken, without taking them
+     */
+    public Iterator<Direction> iterator(){
+        return new Iterator<Direction>(){
+            /**
+             * Index of the next direction to return
+             */
+            private int next = head;
+
+            public boolean hasNext(){
+                return next < tail;
+            }
+
+            public Direction next(){
+                if(next >= tail)
+                    throw new NoSuchElementException();
+                return at(next++);
+            }
+        };
+    }
+
+    /**
+     * Get the direction at an index, counting the directions already taken
+     */
+    private Direction at(int index){
+        return DIRECTIONS[(int) (words[index / PER_WORD] >>> (index % PER_WORD * BITS) & MASK)];
+    }
+
+    /**
+     * Make room for more directions, dropping the words which only hold directions already taken
+     */
+    private void grow(){
+        int taken = head / PER_WORD;
+        int used = (tail + PER_WORD - 1) / PER_WORD - taken;
+        long[] grown = new long[Math.max(2, 2 * used)];
+        System.arraycopy(words, taken, grown, 0, used);
+        words = grown;
+        head -= taken * PER_WORD;
+        tail -= taken * PER_WORD;
+    }
+}
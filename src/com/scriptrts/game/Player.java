@@ -2,8 +2,6 @@ package com.scriptrts.game;
 
 import java.awt.Color;
 
-import com.scriptrts.core.Main;
-
 public class Player {
     /* Available default colors */
     public static Color[] COLORS = {
@@ -27,7 +25,8 @@ public class Player {
 
     /**
      * Stores visibility data about each map tile. 0 means unexplored,
-     * 1 means no recent data, 2 means visible to some unit
+     * 1 means no recent data, 2 means visible to some unit. Only allocated
+     * for the player playing locally.
      */
     private byte[][] visibilityGrid;
     
@@ -35,19 +34,28 @@ public class Player {
         this.name = name;
         this.color = color;
         this.id = id;
-
-        int n = Main.getGame().n * MapGrid.SPACES_PER_TILE;
-        visibilityGrid = new byte[n][n];
     }
     
     public Player(String name, Color color) {
         this(name, color, (int)(Math.random() * 100000));
     }
 
+    /**
+     * Get what this player can see of the unit grid
+     * @return visibility of each unit tile, or null if visibility isn't tracked
+     */
     public byte[][] getVisibilityGrid() {
         return visibilityGrid;
     }
 
+    /**
+     * Start tracking visibility for this player
+     * @param n size of the unit grid along one edge
+     */
+    public void createVisibilityGrid(int n){
+        visibilityGrid = new byte[n][n];
+    }
+
     /**
      * Get player name
      * @return player name
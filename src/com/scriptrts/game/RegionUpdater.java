@@ -0,0 +1,269 @@
+package com.scriptrts.game;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Moves a game's units in parallel by splitting the unit grid into square regions. Regions are
+ * colored like a two-by-two checkerboard and each color is processed in its own phase, so any
+ * two regions being processed at the same time have a whole region between them. A unit moved
+ * in parallel only takes, frees or recounts cells within MAX_REACH of its center, which is less
+ * than half a region, so units in different regions of the same phase never touch the same cell
+ * or count, even when a unit moves across its region's border. Units which could reach farther,
+ * because they are large or fast, are moved afterwards on the tick's own thread.
+ *
+ * Moves in different regions do share state kept for the whole grid: the log of changed cells
+ * and the units found blocked. Each task keeps those in its own move buffer, and the grid takes
+ * them on the tick's own thread after each phase. Units are only moved in parallel while no step
+ * listener is set, since it must decide each step as it is taken.
+ */
+class RegionUpdater {
+    /**
+     * Length of a region along one edge, in unit tiles
+     */
+    static final int REGION_SIZE = 8 * MapGrid.SPACES_PER_TILE;
+
+    /**
+     * How far from its center a unit may reach while moving for it to be moved in parallel,
+     * counting the counts of taken cells it changes: each unit must stay within half a region
+     * so that two units a region apart can't touch the same cell or count.
+     */
+    private static final int MAX_REACH = REGION_SIZE / 2 - 1;
+
+    /**
+     * Number of units handled by one task before the work is split further
+     */
+    private static final int GRAIN = 256;
+
+    /**
+     * Region index given to units which have to be moved serially
+     */
+    private static final int SERIAL = -1;
+
+    /**
+     * Manager whose units are updated
+     */
+    private GameManager manager;
+
+    /**
+     * Unit grid being updated this tick
+     */
+    private MapGrid grid;
+
+    /**
+     * Region of each unit, indexed by store slot
+     */
+    private int[] regionOf = new int[0];
+
+    /**
+     * Store slots sorted by region
+     */
+    private int[] order = new int[0];
+
+    /**
+     * Index into order of the first unit of each region (with one extra entry marking the end)
+     */
+    private int[] regionStart = new int[0];
+
+    /**
+     * Regions of the phase being processed
+     */
+    private int[] phaseRegions = new int[0];
+
+    /**
+     * Slots of the units moved serially
+     */
+    private int[] serial = new int[0];
+
+    /**
+     * Result of moving each unit, and its position before moving, indexed by store slot
+     */
+    private int[] tilesMoved = new int[0], prevX = new int[0], prevY = new int[0];
+
+    /**
+     * Buffers for the working state of the grid not in use by any task. Each task takes one while
+     * it moves its units, so tasks running at once never share one.
+     */
+    private ConcurrentLinkedQueue<MoveBuffer> buffers = new ConcurrentLinkedQueue<MoveBuffer>();
+
+    /**
+     * Create a new region updater
+     * @param manager manager whose units are updated
+     */
+    RegionUpdater(GameManager manager){
+        super();
+        this.manager = manager;
+    }
+
+    /**
+     * Update all units for one tick
+     * @param pool pool to run region tasks on
+     * @param grid unit grid the units are on
+     * @param count number of units in the store
+     * @param tickRate simulation ticks per second
+     */
+    void update(ForkJoinPool pool, MapGrid grid, int count, int tickRate){
+        this.grid = grid;
+        UnitStore store = manager.getUnitStore();
+
+        int regionsPerRow = (grid.getSize() + REGION_SIZE - 1) / REGION_SIZE;
+        int regions = regionsPerRow * regionsPerRow;
+        ensureCapacity(count, regions);
+
+        /* Find each unit's region; counts go one past the region so the prefix sum gives starts */
+        Arrays.fill(regionStart, 0, regions + 1, 0);
+        int serialCount = 0;
+        for(int slot = 0; slot < count; slot++){
+            int x = store.x[slot], y = store.y[slot];
+            prevX[slot] = x;
+            prevY[slot] = y;
+
+            /* Grid handles are only given out on this thread, so give any unit without one its handle now */
+            grid.registerUnit(store.getObject(slot));
+
+            if(reach(store, slot, tickRate) > MAX_REACH){
+                regionOf[slot] = SERIAL;
+                serial[serialCount++] = slot;
+                continue;
+            }
+
+            int rx = clamp(x / REGION_SIZE, regionsPerRow), ry = clamp(y / REGION_SIZE, regionsPerRow);
+            int region = ry * regionsPerRow + rx;
+            regionOf[slot] = region;
+            regionStart[region + 1]++;
+        }
+        for(int r = 0; r < regions; r++)
+            regionStart[r + 1] += regionStart[r];
+
+        /* Sort slots by region, using phaseRegions as the fill cursor of each region */
+        System.arraycopy(regionStart, 0, phaseRegions, 0, regions);
+        for(int slot = 0; slot < count; slot++)
+            if(regionOf[slot] != SERIAL)
+                order[phaseRegions[regionOf[slot]]++] = slot;
+
+        /* Move each color of region in its own phase */
+        for(int color = 0; color < 4; color++){
+            int phaseCount = 0;
+            for(int ry = color >> 1; ry < regionsPerRow; ry += 2)
+                for(int rx = color & 1; rx < regionsPerRow; rx += 2){
+                    int region = ry * regionsPerRow + rx;
+                    if(regionStart[region + 1] > regionStart[region])
+                        phaseRegions[phaseCount++] = region;
+                }
+
+            if(phaseCount > 0)
+                pool.invoke(new RegionTask(0, phaseCount));
+
+            /* Log the cells the tasks changed, which they couldn't do at the same time */
+            for(MoveBuffer moves : buffers)
+                grid.finishMoves(moves);
+        }
+
+        /* Units which reach too far are moved one at a time */
+        for(int i = 0; i < serialCount; i++)
+            tilesMoved[serial[i]] = manager.moveUnit(serial[i], grid, null);
+
+        /* Record updates and run orders on this thread, since they touch shared state */
+        for(int slot = 0; slot < count && slot < store.size(); slot++)
+            manager.finishUnit(slot, tilesMoved[slot], prevX[slot], prevY[slot]);
+
+        this.grid = null;
+    }
+
+    /**
+     * Find how far from its center a unit may touch the grid while moving this tick
+     * @return reach in unit tiles
+     */
+    private int reach(UnitStore store, int slot, int tickRate){
+        UnitShape shape = store.getObject(slot).getUnitShape();
+        if(shape == null)
+            return Integer.MAX_VALUE;
+
+        /* Each step moves one tile and reserves the tile beyond it, and each cell taken or freed
+         * changes the counts of taken cells around it */
+        int steps = (store.speed[slot] + tickRate - 1) / tickRate + 1;
+        return shape.getRadius() + steps + 1 + grid.getClearanceRadius();
+    }
+
+    /**
+     * Clamp a region coordinate to the grid
+     */
+    private static int clamp(int r, int regionsPerRow){
+        return r < 0 ? 0 : (r >= regionsPerRow ? regionsPerRow - 1 : r);
+    }
+
+    /**
+     * Make sure the buffers can hold a given number of units and regions
+     */
+    private void ensureCapacity(int count, int regions){
+        if(regionOf.length < count){
+            int size = Math.max(count, regionOf.length * 2);
+            regionOf = new int[size];
+            order = new int[size];
+            serial = new int[size];
+            tilesMoved = new int[size];
+            prevX = new int[size];
+            prevY = new int[size];
+        }
+        if(regionStart.length < regions + 1){
+            regionStart = new int[regions + 1];
+            phaseRegions = new int[regions + 1];
+        }
+    }
+
+    /**
+     * Task moving the units of a range of the current phase's regions, splitting the range in
+     * half while it holds more than a grain's worth of units
+     */
+    private class RegionTask extends RecursiveAction {
+        /**
+         * Tasks are never serialized, but RecursiveAction is Serializable
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Range of phaseRegions handled by this task
+         */
+        private final int from, to;
+
+        /**
+         * Create a task for a range of regions
+         * @param from first index into phaseRegions
+         * @param to index into phaseRegions after the last region
+         */
+        RegionTask(int from, int to){
+            super();
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Move the units, or split the work if there is too much of it
+         */
+        protected void compute(){
+            int units = 0;
+            for(int i = from; i < to && units <= GRAIN; i++)
+                units += regionStart[phaseRegions[i] + 1] - regionStart[phaseRegions[i]];
+
+            if(units > GRAIN && to - from > 1){
+                int mid = (from + to) >>> 1;
+                invokeAll(new RegionTask(from, mid), new RegionTask(mid, to));
+                return;
+            }
+
+            MoveBuffer moves = buffers.poll();
+            if(moves == null)
+                moves = new MoveBuffer(true);
+            for(int i = from; i < to; i++){
+                int region = phaseRegions[i];
+                for(int k = regionStart[region]; k < regionStart[region + 1]; k++){
+                    int slot = order[k];
+                    tilesMoved[slot] = manager.moveUnit(slot, grid, moves);
+                }
+            }
+            buffers.add(moves);
+        }
+    }
+}
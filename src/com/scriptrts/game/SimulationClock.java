@@ -0,0 +1,159 @@
+package com.scriptrts.game;
+
+/**
+ * Fixed-timestep clock that advances a game's simulation at a constant tick rate, independent
+ * of how often it is called. Elapsed real time is accumulated and the game is updated once for
+ * every whole tick that has passed; whatever is left over is exposed as a fraction of a tick so
+ * rendering can interpolate between simulation states.
+ */
+public class SimulationClock {
+    /**
+     * Tick rate used when none is specified, in ticks per second
+     */
+    public static final int DEFAULT_TICK_RATE = 30;
+
+    /**
+     * Maximum number of ticks run in a single call to advance. If the simulation falls further
+     * behind than this, the extra time is dropped and the game slows down instead of stalling.
+     */
+    private static final int MAX_CATCH_UP_TICKS = 5;
+
+    /**
+     * Simulation ticks per second
+     */
+    private final int tickRate;
+
+    /**
+     * Length of one tick in nanoseconds
+     */
+    private final long tickNanos;
+
+    /**
+     * Real time that has elapsed but not yet been simulated, in nanoseconds
+     */
+    private volatile long accumulator = 0;
+
+    /**
+     * Time of the previous call to advance, or -1 if the clock hasn't started
+     */
+    private long lastTime = -1;
+
+    /**
+     * Time the last tick was simulated, or -1 if none has been
+     */
+    private volatile long lastTickTime = -1;
+
+    /**
+     * Total number of ticks simulated
+     */
+    private volatile long tickCount = 0;
+
+    /**
+     * Create a new simulation clock
+     * @param tickRate simulation ticks per second
+     */
+    public SimulationClock(int tickRate){
+        super();
+        if(tickRate <= 0)
+            throw new IllegalArgumentException("Tick rate must be positive: " + tickRate);
+
+        this.tickRate = tickRate;
+        this.tickNanos = 1000000000L / tickRate;
+    }
+
+    /**
+     * Create a new simulation clock running at the default tick rate
+     */
+    public SimulationClock(){
+        this(DEFAULT_TICK_RATE);
+    }
+
+    /**
+     * Run as many simulation ticks as have elapsed since the last call.
+     * @param game game to update
+     * @return number of ticks run
+     */
+    public int advance(HeadlessGame game){
+        return advance(game, System.nanoTime());
+    }
+
+    /**
+     * Run as many simulation ticks as have elapsed since the last call.
+     * @param game game to update
+     * @param now current time in nanoseconds
+     * @return number of ticks run
+     */
+    public int advance(HeadlessGame game, long now){
+        /* The first call only starts the clock */
+        if(lastTime < 0){
+            lastTime = now;
+            return 0;
+        }
+
+        long acc = accumulator + (now - lastTime);
+        lastTime = now;
+
+        int ticks = 0;
+        while(acc >= tickNanos && ticks < MAX_CATCH_UP_TICKS){
+            game.update();
+            acc -= tickNanos;
+            ticks++;
+        }
+
+        /* Drop time we couldn't catch up on */
+        if(acc >= tickNanos)
+            acc %= tickNanos;
+
+        accumulator = acc;
+        if(ticks > 0)
+            lastTickTime = now;
+        tickCount += ticks;
+        return ticks;
+    }
+
+    /**
+     * Get how far real time has progressed into the next tick, for interpolation. This is measured
+     * from when the last tick was simulated, so it keeps moving while another thread drives the
+     * clock and the caller only reads it.
+     * @return fraction of a tick (0 to 1) elapsed since the last simulation tick
+     */
+    public double getAlpha(){
+        long last = lastTickTime;
+        if(last < 0)
+            return 0;
+
+        return Math.min(1.0, (double) (System.nanoTime() - last) / tickNanos);
+    }
+
+    /**
+     * Get how long to wait until the next tick is due
+     * @return nanoseconds until the next tick
+     */
+    public long nanosUntilNextTick(){
+        return Math.max(0, tickNanos - accumulator);
+    }
+
+    /**
+     * Get the simulation tick rate
+     * @return ticks per second
+     */
+    public int getTickRate(){
+        return tickRate;
+    }
+
+    /**
+     * Get the length of one simulation tick
+     * @return nanoseconds per tick
+     */
+    public long getTickNanos(){
+        return tickNanos;
+    }
+
+    /**
+     * Get the number of ticks simulated so far
+     * @return total ticks
+     */
+    public long getTickCount(){
+        return tickCount;
+    }
+}
@@ -3,9 +3,7 @@ package com.scriptrts.game;
 import java.awt.Point;
 
 import com.scriptrts.control.OrderHandler;
-import com.scriptrts.core.Main;
 import com.scriptrts.game.path.PathHandler;
-import com.scriptrts.game.path.Pathfinder;
 
 
 /**
@@ -13,24 +11,24 @@ import com.scriptrts.game.path.Pathfinder;
  */
 public class Unit extends UnitType {
     /**
-     * Unit ID counter
+     * ID of a unit which hasn't been given one by a game yet
      */
-    private static int idCounter = 0;
+    public static final int NO_ID = -1;
 
     /**
-     * Unit ID
+     * Unit ID, unique within the game managing the unit
      */
-    private int id;
+    private int id = NO_ID;
 
     /**
-     * The unit's movement speed
+     * Store holding this unit's movement state (location, speed, direction, path progress)
      */
-    private int speed;
+    transient UnitStore store;
 
     /**
-     * The unit's location on the map 
+     * Slot of this unit in its unit store
      */
-    private int x, y;
+    transient int slot;
 
     /**
      * Player who controls this unit
@@ -41,6 +39,11 @@ public class Unit extends UnitType {
      */
     private Point destination;
 
+    /**
+     * Whether the unit's current path only covers the first leg of the way to its destination
+     */
+    private volatile boolean routePartial;
+
     /**
      * The current remaining hitpoints of the unit
      */
@@ -52,7 +55,7 @@ public class Unit extends UnitType {
     private boolean alive = true;
 
     /**
-     * Path handler used to route this unit
+     * Path handler used to route this unit (looked up when the unit is first routed)
      */
     private PathHandler pathHandler;
 
@@ -72,14 +75,12 @@ public class Unit extends UnitType {
     public Unit(Player p, int s, int x, int y, OrderHandler orderHandler, UnitClass unitClass){
     	super();
     	this.player = p;
-    	this.speed = s;
-        this.x = x;
-        this.y = y;
+        UnitStore.bindDetached(this);
+    	setSpeed(s);
+        setX(x);
+        setY(y);
     	this.orderHandler = orderHandler;
     	this.unitClass = unitClass;
-    	pathHandler = Main.getGame().getPathHandler();
-        this.id = idCounter;
-        idCounter++;
         
         hitpoints = 10;
         health = (int) (Math.random() * hitpoints);
@@ -109,21 +110,52 @@ public class Unit extends UnitType {
      */
     public void setDestination(Point p){
         destination = p;
+        routePartial = false;
 
-        GameObject gameObj = Main.getGame().getGameManager().unitWithId(getId());
+        GameObject gameObj = orderHandler.getUnit();
         if(gameObj.getPath() != null){
         	gameObj.clearPath();
         }
 
-        if(!pathHandler.isEmpty()){
-            Pathfinder pathfinder = pathHandler.remove();
-            pathfinder.setUnit(gameObj);
-            pathfinder.setDestination(p.x, p.y);
-            Thread runner = new Thread(pathfinder);
-            runner.setPriority(Thread.MIN_PRIORITY);
-            runner.start();
-        } else
-            pathHandler.addPath(gameObj, p);
+        getPathHandler().requestPath(gameObj, p);
+    }
+
+    /**
+     * Whether the unit's path stops short of its destination because long routes are found one
+     * leg at a time. Once the unit has walked the path, setting the destination again routes the next leg.
+     * @return true if there is more of the route to find
+     */
+    public boolean isRoutePartial(){
+        return routePartial;
+    }
+
+    /**
+     * Set whether the unit's path only covers the first leg of the way to its destination
+     * @param partial true if there is more of the route to find
+     */
+    public void setRoutePartial(boolean partial){
+        routePartial = partial;
+    }
+
+    /**
+     * Set the unit destination, along a route which has already been found
+     * @param p new unit destination
+     * @param path directions leading from the unit to the destination
+     */
+    public void setDestination(Point p, Path path){
+        destination = p;
+        routePartial = false;
+        getPathHandler().cancel(orderHandler.getUnit());
+        orderHandler.getUnit().setPath(path);
+    }
+
+    /**
+     * Get the path handler routing this unit
+     */
+    private PathHandler getPathHandler(){
+        if(pathHandler == null)
+            pathHandler = orderHandler.getUnit().getGame().getPathHandler();
+        return pathHandler;
     }
 
     /**
@@ -182,13 +214,14 @@ public class Unit extends UnitType {
     
     /**
      * Returns the visible tiles for this unit's visibility radius about the point x, y
+     * @param grid unit grid the unit is on
      */
-    public Point[] getVisibleTiles(int x, int y){
+    public Point[] getVisibleTiles(MapGrid grid, int x, int y){
     	Point[] visibleTiles = new Point[(int) Math.pow(2 * visibilityRadius + 1, 2)];
     	int count = 0;
     	for(int i = x - visibilityRadius; i <= x + visibilityRadius; i++){
     		for(int j = y - visibilityRadius; j <= y + visibilityRadius; j++){
-    			if(Main.getGame().getGameGrid().contains(i, j))
+    			if(grid.contains(i, j))
     				visibleTiles[count] = new Point(i, j);
     			count++;
     		}
@@ -238,7 +271,7 @@ public class Unit extends UnitType {
      * @return the speed
      */
     public int getSpeed() {
-        return speed;
+        return store.speed[slot];
     }
 
     /**
@@ -246,7 +279,7 @@ public class Unit extends UnitType {
      * @param speed the speed to set
      */
     public void setSpeed(int speed) {
-        this.speed = speed;
+        store.speed[slot] = speed;
     }
 
     /**
@@ -254,7 +287,7 @@ public class Unit extends UnitType {
      * @return the x
      */
     public int getX() {
-        return x;
+        return store.x[slot];
     }
 
     /**
@@ -262,7 +295,7 @@ public class Unit extends UnitType {
      * @param x the x to set
      */
     public void setX(int x) {
-        this.x = x;
+        store.x[slot] = x;
     }
 
     /**
@@ -270,7 +303,7 @@ public class Unit extends UnitType {
      * @return the y
      */
     public int getY() {
-        return y;
+        return store.y[slot];
     }
 
     /**
@@ -278,7 +311,7 @@ public class Unit extends UnitType {
      * @param y the y to set
      */
     public void setY(int y) {
-        this.y = y;
+        store.y[slot] = y;
     }
     
     /**
@@ -286,6 +319,6 @@ public class Unit extends UnitType {
      * @return Point p -- the location of this unit
      */
     public Point getLocation(){
-        return new Point(x, y);
+        return new Point(getX(), getY());
     }
 }
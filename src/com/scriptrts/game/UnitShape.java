@@ -1,6 +1,8 @@
 package com.scriptrts.game;
 
 import java.awt.Point;
+import java.util.Arrays;
+import java.util.HashSet;
 
 
 /**
@@ -13,6 +15,21 @@ public class UnitShape {
      * of the unit when it is facing in each of the 8 directions.
      */
     Point[][] shapes = new Point[8][];
+
+    /**
+     * Largest distance (along either axis) of any point of the shape from the unit center
+     */
+    private int radius;
+
+    /**
+     * Whether the shape covers the same points whichever way the unit faces
+     */
+    private boolean symmetric = true;
+
+    /**
+     * Whether the shape is a solid square centered on the unit, the same in every direction
+     */
+    private boolean square;
     static Point[] p7 = new Point[]{new Point(-3,-3), new Point(-3,-2), new Point(-3,-1), new Point(-3,0), new Point(-3,1), new Point(-3,2), new Point(-3,3), new Point(-2,-3), new Point(-2,-2), new Point(-2,-1), new Point(-2,0), new Point(-2,1), new Point(-2,2), new Point(-2,3), new Point(-1,-3), new Point(-1,-2), new Point(-1,-1), new Point(-1,0), new Point(-1,1), new Point(-1,2), new Point(-1,3), new Point(0,-3), new Point(0,-2), new Point(0,-1), new Point(0,0), new Point(0,1), new Point(0,2), new Point(0,3), new Point(1,-3), new Point(1,-2), new Point(1,-1), new Point(1,0), new Point(1,1), new Point(1,2), new Point(1,3), new Point(2,-3), new Point(2,-2), new Point(2,-1), new Point(2,0), new Point(2,1), new Point(2,2), new Point(2,3), new Point(3,-3), new Point(3,-2), new Point(3,-1), new Point(3,0), new Point(3,1), new Point(3,2), new Point(3,3)};
     static Point[] p5 = new Point[]{new Point(-2,-2), new Point(-2,-1), new Point(-2,0), new Point(-2,1), new Point(-2,2), new Point(-1,-2), new Point(-1,-1), new Point(-1,0), new Point(-1,1), new Point(-1,2), new Point(0,-2), new Point(0,-1), new Point(0,0), new Point(0,1), new Point(0,2), new Point(1,-2), new Point(1,-1), new Point(1,0), new Point(1,1), new Point(1,2), new Point(2,-2), new Point(2,-1), new Point(2,0), new Point(2,1), new Point(2,2)};
     
@@ -91,6 +108,18 @@ public class UnitShape {
     public UnitShape(Point[][] shps){
         super();
         shapes = shps;
+
+        for(Point[] shape : shapes)
+            if(shape != null)
+                for(Point p : shape)
+                    radius = Math.max(radius, Math.max(Math.abs(p.x), Math.abs(p.y)));
+
+        for(Point[] shape : shapes)
+            if(shape == null || shape.length != shapes[0].length || !Arrays.asList(shape).containsAll(Arrays.asList(shapes[0])))
+                symmetric = false;
+
+        int side = 2 * radius + 1;
+        square = symmetric && new HashSet<Point>(Arrays.asList(shapes[0])).size() == side * side;
     }
 
     /**
@@ -109,4 +138,30 @@ public class UnitShape {
     public int getSize(){
         return getShape(Direction.North).length;
     }
+
+    /**
+     * Check whether the shape covers the same points whichever way the unit faces, so whether a
+     * unit fits somewhere doesn't depend on its direction
+     * @return true if the shape is the same in every direction
+     */
+    public boolean isSymmetric(){
+        return symmetric;
+    }
+
+    /**
+     * Check whether the shape is a solid square centered on the unit, so the unit grid can tell
+     * whether it fits somewhere without looking at each of its points
+     * @return true if the shape covers every point within its radius of the center, in every direction
+     */
+    public boolean isSquare(){
+        return square;
+    }
+
+    /**
+     * Get how far this shape extends from the unit center in any direction
+     * @return largest offset of any point of the shape, along either axis
+     */
+    public int getRadius(){
+        return radius;
+    }
 }
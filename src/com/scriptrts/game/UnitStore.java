@@ -0,0 +1,227 @@
+package com.scriptrts.game;
+
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage for the unit state used by the simulation every tick.
+ * Each unit is bound to a dense slot, and its position, speed, movement direction, animation counter
+ * and path progress are kept in primitive arrays indexed by that slot. Units and game objects
+ * read and write their state through the store instead of holding it in their own fields.
+ */
+public class UnitStore {
+    /**
+     * Marker stored in the direction arrays when there is no direction
+     */
+    public static final byte NO_DIRECTION = -1;
+
+    /**
+     * All directions, indexed by ordinal (cached so lookups don't clone the values array)
+     */
+    static final Direction[] DIRECTIONS = Direction.values();
+
+    /**
+     * Unit location, in unit tile coordinates
+     */
+    int[] x, y;
+
+    /**
+     * Unit movement speed, in unit tiles per second
+     */
+    int[] speed;
+
+    /**
+     * Ordinal of the direction the unit is moving in, or NO_DIRECTION if stationary
+     */
+    byte[] direction;
+
+    /**
+     * Ordinal of the direction the unit was last moving in, used as the facing direction when stationary
+     */
+    byte[] previousDirection;
+
+    /**
+     * How far the unit has progressed in its current tile movement (0 to 1)
+     */
+    double[] animCounter;
+
+    /**
+     * Number of steps of the current path that the unit has already taken
+     */
+    int[] pathOffset;
+
+    /**
+     * Game object bound to each slot
+     */
+    GameObject[] objects;
+
+    /**
+     * Number of slots in use. Slots 0 through count - 1 are always occupied.
+     */
+    int count = 0;
+
+    /**
+     * Create a new unit store
+     * @param capacity initial number of slots
+     */
+    public UnitStore(int capacity){
+        super();
+        x = new int[capacity];
+        y = new int[capacity];
+        speed = new int[capacity];
+        direction = new byte[capacity];
+        previousDirection = new byte[capacity];
+        animCounter = new double[capacity];
+        pathOffset = new int[capacity];
+        objects = new GameObject[capacity];
+    }
+
+    /**
+     * Allocate a slot for a unit which isn't part of any game yet.
+     * @param unit unit to bind to a private one-slot store
+     */
+    static void bindDetached(Unit unit){
+        UnitStore store = new UnitStore(1);
+        unit.store = store;
+        unit.slot = store.allocate(null);
+    }
+
+    /**
+     * Allocate a new, zeroed slot at the end of the store
+     * @param obj game object bound to the slot (may be null)
+     * @return index of the allocated slot
+     */
+    private int allocate(GameObject obj){
+        if(count == objects.length)
+            grow();
+
+        int slot = count;
+        x[slot] = 0;
+        y[slot] = 0;
+        speed[slot] = 0;
+        direction[slot] = NO_DIRECTION;
+        previousDirection[slot] = NO_DIRECTION;
+        animCounter[slot] = 0;
+        pathOffset[slot] = 0;
+        objects[slot] = obj;
+        count++;
+        return slot;
+    }
+
+    /**
+     * Double the capacity of all the arrays
+     */
+    private void grow(){
+        int capacity = Math.max(1, objects.length * 2);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        direction = Arrays.copyOf(direction, capacity);
+        previousDirection = Arrays.copyOf(previousDirection, capacity);
+        animCounter = Arrays.copyOf(animCounter, capacity);
+        pathOffset = Arrays.copyOf(pathOffset, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+    }
+
+    /**
+     * Copy a slot's state from one store into another
+     */
+    private static void copySlot(UnitStore from, int fromSlot, UnitStore to, int toSlot){
+        to.x[toSlot] = from.x[fromSlot];
+        to.y[toSlot] = from.y[fromSlot];
+        to.speed[toSlot] = from.speed[fromSlot];
+        to.direction[toSlot] = from.direction[fromSlot];
+        to.previousDirection[toSlot] = from.previousDirection[fromSlot];
+        to.animCounter[toSlot] = from.animCounter[fromSlot];
+        to.pathOffset[toSlot] = from.pathOffset[fromSlot];
+    }
+
+    /**
+     * Move a game object's state into this store, binding it to a new slot.
+     * @param obj game object to attach
+     */
+    public void attach(GameObject obj){
+        Unit unit = obj.getUnit();
+        if(unit.store == this)
+            return;
+
+        int slot = allocate(obj);
+        copySlot(unit.store, unit.slot, this, slot);
+        unit.store = this;
+        unit.slot = slot;
+    }
+
+    /**
+     * Move a game object's state out of this store into a private store, freeing its slot.
+     * The last slot is moved into the freed one to keep the store dense.
+     * @param obj game object to detach
+     */
+    public void detach(GameObject obj){
+        Unit unit = obj.getUnit();
+        if(unit.store != this)
+            return;
+
+        int slot = unit.slot;
+        UnitStore.bindDetached(unit);
+        copySlot(this, slot, unit.store, unit.slot);
+
+        count--;
+        if(slot != count){
+            copySlot(this, count, this, slot);
+            objects[slot] = objects[count];
+            objects[slot].getUnit().slot = slot;
+        }
+        objects[count] = null;
+    }
+
+    /**
+     * Get the number of units in the store
+     * @return number of occupied slots
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * Get the game object bound to a slot
+     * @param slot slot index
+     * @return game object in that slot
+     */
+    public GameObject getObject(int slot){
+        return objects[slot];
+    }
+
+    /**
+     * Convert a direction to the byte stored in the direction arrays
+     * @param d direction (may be null)
+     * @return direction ordinal, or NO_DIRECTION
+     */
+    static byte toByte(Direction d){
+        return d == null ? NO_DIRECTION : (byte) d.ordinal();
+    }
+
+    /**
+     * Convert a stored direction byte back into a direction
+     * @param b direction ordinal, or NO_DIRECTION
+     * @return direction, or null
+     */
+    static Direction toDirection(byte b){
+        return b == NO_DIRECTION ? null : DIRECTIONS[b];
+    }
+
+    /**
+     * Increment the animation counter of a slot
+     * @param slot slot index
+     * @param inc how much to increment the counter by
+     * @return how many tile movements were finished
+     */
+    int incrementAnimationCounter(int slot, double inc){
+        double counter = animCounter[slot] + inc;
+        int finished = 0;
+        if(counter >= 1){
+            finished = (int) counter;
+            counter -= finished;
+        }
+        animCounter[slot] = counter;
+        return finished;
+    }
+}
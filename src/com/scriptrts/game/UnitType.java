@@ -6,11 +6,6 @@ import java.util.List;
  * Unit object for unit types
  */
 public class UnitType {
-    /**
-     * Counter used to initialize IDs of new units 
-     */
-    protected static int idCounter = 0;
-
     /**
      * ID of this unit (unique)
      */
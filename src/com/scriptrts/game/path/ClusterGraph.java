@@ -0,0 +1,682 @@
+package com.scriptrts.game.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+
+/**
+ * Abstract graph used for hierarchical pathfinding (HPA*). The unit grid is split into square
+ * clusters of map tiles. Wherever two neighboring clusters share an open stretch of border, a
+ * pair of entrance cells (one on each side) joins them, and the distances between the entrances
+ * of each cluster are precomputed. A long route is first found on this small graph of entrances
+ * and then refined on the unit grid one leg at a time.
+ *
+ * Only objects which never move (buildings and terrain such as volcanoes) are treated as
+ * obstacles here; moving units are left to the unit grid search that refines each leg. The graph
+ * listens to the unit grid, and when a static object is placed or removed only the clusters
+ * around it are rebuilt, the next time a route is requested once the latest published snapshot
+ * of the unit grid includes the change. Clusters are rebuilt from that snapshot, never from the
+ * grid the game thread is changing.
+ *
+ * Each thread routing across the graph does so with its own Search, so searches on different
+ * threads run at the same time, and only wait for each other while clusters are rebuilt. The
+ * game thread only marks clusters to be rebuilt, and never waits for a search.
+ *
+ * Routes are found for units which fit in a single unit tile; larger units still refine their
+ * legs with their real shape. Every step costs the same here, whatever the terrain: the graph
+ * only picks the cell each leg heads for, and the legs themselves are searched over the terrain
+ * costs.
+ */
+public class ClusterGraph implements MapGrid.StaticObjectListener {
+	/**
+	 * Length of a cluster along one edge, in unit tiles
+	 */
+	public static final int CLUSTER_SIZE = 8 * MapGrid.SPACES_PER_TILE;
+
+	/**
+	 * Open stretches of border at least this long get an entrance at each end instead of one in the middle
+	 */
+	private static final int SPLIT_LENGTH = 6;
+
+	/**
+	 * Unit grid the graph is built over
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Number of clusters along one edge of the grid
+	 */
+	private int clustersPerRow;
+
+	/**
+	 * For each cluster, version of the first unit grid snapshot including its latest change, or
+	 * zero if the cluster is up to date
+	 */
+	private AtomicIntegerArray dirty;
+
+	/**
+	 * Whether any cluster may need to be rebuilt
+	 */
+	private volatile boolean anyDirty;
+
+	/**
+	 * Lock held by searches while they read the graph, and by rebuilds while they change it
+	 */
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Whether each cell is taken by an object which never moves, as of the last rebuild of its cluster
+	 */
+	private boolean[] blocked;
+
+	/**
+	 * Entrance cells of each cluster, as cell indices (x * n + y)
+	 */
+	private int[][] entrances;
+
+	/**
+	 * Cells across the border from each entrance of each cluster
+	 */
+	private int[][][] partners;
+
+	/**
+	 * Distance between every pair of entrances of each cluster, indexed by i * entrances + j,
+	 * or -1 if one can't be reached from the other inside the cluster
+	 */
+	private int[][] distances;
+
+	/**
+	 * Index of each cell in its cluster's entrance list, or -1 if the cell isn't an entrance
+	 */
+	private int[] entranceIndex;
+
+	/**
+	 * Distances found by the breadth-first search of a cluster being rebuilt, indexed by cell within the cluster
+	 */
+	private int[] localDistance = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+
+	/**
+	 * Queue used by the breadth-first search of a cluster being rebuilt
+	 */
+	private int[] localQueue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+
+	/**
+	 * Create a new cluster graph over a unit grid. The graph is built the first time a route is requested.
+	 * @param grid unit grid to route on
+	 */
+	public ClusterGraph(MapGrid grid){
+		this.grid = grid;
+		n = grid.getSize();
+		clustersPerRow = (n + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+
+		int clusters = clustersPerRow * clustersPerRow;
+		dirty = new AtomicIntegerArray(clusters);
+		for(int k = 0; k < clusters; k++)
+			dirty.set(k, grid.getVersion() + 1);
+		anyDirty = true;
+		blocked = new boolean[n * n];
+		entrances = new int[clusters][0];
+		partners = new int[clusters][0][];
+		distances = new int[clusters][0];
+		entranceIndex = new int[n * n];
+		Arrays.fill(entranceIndex, -1);
+
+		grid.addStaticObjectListener(this);
+	}
+
+	/**
+	 * Mark the clusters around a changed static object to be rebuilt once the next snapshot of
+	 * the unit grid is published. Clusters just across a border from the object are included,
+	 * since their entrances may have changed. Called by the game thread.
+	 */
+	public void staticObjectChanged(int minX, int minY, int maxX, int maxY){
+		int version = grid.getVersion() + 1;
+		int fromX = Math.max(0, minX - 1) / CLUSTER_SIZE, toX = Math.min(n - 1, maxX + 1) / CLUSTER_SIZE;
+		int fromY = Math.max(0, minY - 1) / CLUSTER_SIZE, toY = Math.min(n - 1, maxY + 1) / CLUSTER_SIZE;
+		for(int cx = fromX; cx <= toX; cx++)
+			for(int cy = fromY; cy <= toY; cy++)
+				dirty.set(cx * clustersPerRow + cy, version);
+		anyDirty = true;
+	}
+
+	/**
+	 * Get the number of clusters along one edge of the grid
+	 * @return clusters per row
+	 */
+	public int getClustersPerRow(){
+		return clustersPerRow;
+	}
+
+	/**
+	 * Get the total number of entrances in the graph, building it first if needed
+	 * @return number of entrances
+	 */
+	public int getEntranceCount(){
+		update();
+		lock.readLock().lock();
+		try {
+			int total = 0;
+			for(int[] e : entrances)
+				total += e.length;
+			return total;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Create the buffers for a thread to search the graph with
+	 * @return new search
+	 */
+	public Search newSearch(){
+		return new Search();
+	}
+
+	/**
+	 * Rebuild the clusters whose changes the latest snapshot of the unit grid includes, waiting
+	 * for the searches under way to finish first
+	 */
+	private void update(){
+		if(!anyDirty)
+			return;
+		lock.writeLock().lock();
+		try {
+			rebuild();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rebuild every cluster marked as dirty whose change the latest snapshot of the unit grid
+	 * includes. Called with the write lock held.
+	 */
+	private void rebuild(){
+		if(!anyDirty)
+			return;
+		anyDirty = false;
+
+		/* Before any snapshot is published, the grid itself is all there is to read */
+		MapGrid snapshot = grid.acquireSnapshot();
+		int published = (snapshot == grid) ? Integer.MAX_VALUE : snapshot.getVersion();
+
+		/* Claim the clusters to rebuild; those changed again meanwhile wait for a later snapshot */
+		int[] claimed = new int[dirty.length()];
+		int count = 0;
+		for(int k = 0; k < dirty.length(); k++){
+			int version = dirty.get(k);
+			if(version == 0)
+				continue;
+			if(version > published || !dirty.compareAndSet(k, version, 0)){
+				anyDirty = true;
+				continue;
+			}
+			copyBlocked(snapshot, k);
+			claimed[count++] = k;
+		}
+		grid.releaseSnapshot(snapshot);
+
+		/* Entrances of every claimed cluster first, since distances need the final entrance lists */
+		for(int i = 0; i < count; i++)
+			findEntrances(claimed[i]);
+		for(int i = 0; i < count; i++)
+			findDistances(claimed[i]);
+	}
+
+	/**
+	 * Note which cells of a cluster are taken by objects which never move
+	 * @param source snapshot of the unit grid to read
+	 * @param k cluster to read
+	 */
+	private void copyBlocked(MapGrid source, int k){
+		int cx = k / clustersPerRow, cy = k % clustersPerRow;
+		int x0 = cx * CLUSTER_SIZE, y0 = cy * CLUSTER_SIZE;
+		int x1 = Math.min(n, x0 + CLUSTER_SIZE), y1 = Math.min(n, y0 + CLUSTER_SIZE);
+		for(int x = x0; x < x1; x++)
+			for(int y = y0; y < y1; y++){
+				GameObject unit = source.getUnit(x, y);
+				blocked[x * n + y] = unit != null && !unit.isMovable();
+			}
+	}
+
+	/**
+	 * Find the entrances along all four borders of a cluster
+	 */
+	private void findEntrances(int k){
+		for(int cell : entrances[k])
+			entranceIndex[cell] = -1;
+
+		int cx = k / clustersPerRow, cy = k % clustersPerRow;
+		int x0 = cx * CLUSTER_SIZE, y0 = cy * CLUSTER_SIZE;
+		int x1 = Math.min(n, x0 + CLUSTER_SIZE), y1 = Math.min(n, y0 + CLUSTER_SIZE);
+
+		List<Integer> cells = new ArrayList<Integer>();
+		List<List<Integer>> across = new ArrayList<List<Integer>>();
+
+		/* Borders along y (with the clusters before and after in x), then along x */
+		if(x0 > 0)
+			border(x0, y0, x0 - 1, y0, 0, 1, y1 - y0, cells, across);
+		if(x1 < n)
+			border(x1 - 1, y0, x1, y0, 0, 1, y1 - y0, cells, across);
+		if(y0 > 0)
+			border(x0, y0, x0, y0 - 1, 1, 0, x1 - x0, cells, across);
+		if(y1 < n)
+			border(x0, y1 - 1, x0, y1, 1, 0, x1 - x0, cells, across);
+
+		int[] e = new int[cells.size()];
+		int[][] p = new int[cells.size()][];
+		for(int i = 0; i < e.length; i++){
+			e[i] = cells.get(i);
+			entranceIndex[e[i]] = i;
+			List<Integer> list = across.get(i);
+			p[i] = new int[list.size()];
+			for(int j = 0; j < p[i].length; j++)
+				p[i][j] = list.get(j);
+		}
+		entrances[k] = e;
+		partners[k] = p;
+	}
+
+	/**
+	 * Find the entrances along one border of a cluster. Both clusters sharing a border find the
+	 * same entrances, each from its own side.
+	 * @param x x coordinate of the first cell on this cluster's side of the border
+	 * @param y y coordinate of the first cell on this cluster's side of the border
+	 * @param ox x coordinate of the first cell on the other side of the border
+	 * @param oy y coordinate of the first cell on the other side of the border
+	 * @param dx x step along the border
+	 * @param dy y step along the border
+	 * @param length length of the border
+	 * @param cells entrance cells found so far
+	 * @param across cells across the border from each entrance found so far
+	 */
+	private void border(int x, int y, int ox, int oy, int dx, int dy, int length,
+			List<Integer> cells, List<List<Integer>> across){
+		int run = 0;
+		for(int i = 0; i <= length; i++){
+			boolean open = i < length && !isBlocked(x + i * dx, y + i * dy) && !isBlocked(ox + i * dx, oy + i * dy);
+			if(open){
+				run++;
+				continue;
+			}
+			if(run > 0){
+				int first = i - run, last = i - 1;
+				if(run < SPLIT_LENGTH)
+					entrance((first + last) / 2, x, y, ox, oy, dx, dy, cells, across);
+				else {
+					entrance(first, x, y, ox, oy, dx, dy, cells, across);
+					entrance(last, x, y, ox, oy, dx, dy, cells, across);
+				}
+			}
+			run = 0;
+		}
+	}
+
+	/**
+	 * Record an entrance at a position along a border
+	 */
+	private void entrance(int i, int x, int y, int ox, int oy, int dx, int dy,
+			List<Integer> cells, List<List<Integer>> across){
+		int cell = (x + i * dx) * n + (y + i * dy);
+		int other = (ox + i * dx) * n + (oy + i * dy);
+
+		/* A corner cell can be an entrance on two borders */
+		int index = cells.indexOf(cell);
+		if(index < 0){
+			cells.add(cell);
+			across.add(new ArrayList<Integer>());
+			index = cells.size() - 1;
+		}
+		across.get(index).add(other);
+	}
+
+	/**
+	 * Find the distances between every pair of entrances of a cluster
+	 */
+	private void findDistances(int k){
+		int[] e = entrances[k];
+		int[] d = new int[e.length * e.length];
+		for(int i = 0; i < e.length; i++){
+			search(k, e[i] / n, e[i] % n, localDistance, localQueue);
+			for(int j = 0; j < e.length; j++)
+				d[i * e.length + j] = localDistance[local(k, e[j] / n, e[j] % n)];
+		}
+		distances[k] = d;
+	}
+
+	/**
+	 * Breadth-first search from a cell over the unblocked cells of its cluster
+	 * @param localDistance filled in with the distance to each cell within the cluster, or -1
+	 * @param localQueue queue to use for the search
+	 */
+	private void search(int k, int x, int y, int[] localDistance, int[] localQueue){
+		int cx = k / clustersPerRow, cy = k % clustersPerRow;
+		int x0 = cx * CLUSTER_SIZE, y0 = cy * CLUSTER_SIZE;
+		int x1 = Math.min(n, x0 + CLUSTER_SIZE), y1 = Math.min(n, y0 + CLUSTER_SIZE);
+
+		Arrays.fill(localDistance, -1);
+		int head = 0, tail = 0;
+		int first = (x - x0) * CLUSTER_SIZE + (y - y0);
+		localDistance[first] = 0;
+		localQueue[tail++] = first;
+
+		while(head < tail){
+			int l = localQueue[head++];
+			int lx = x0 + l / CLUSTER_SIZE, ly = y0 + l % CLUSTER_SIZE;
+			for(int ddx = -1; ddx <= 1; ddx++)
+				for(int ddy = -1; ddy <= 1; ddy++){
+					int nx = lx + ddx, ny = ly + ddy;
+					if((ddx == 0 && ddy == 0) || nx < x0 || nx >= x1 || ny < y0 || ny >= y1)
+						continue;
+					int next = (nx - x0) * CLUSTER_SIZE + (ny - y0);
+					if(localDistance[next] < 0 && !isBlocked(nx, ny)){
+						localDistance[next] = localDistance[l] + 1;
+						localQueue[tail++] = next;
+					}
+				}
+		}
+	}
+
+	/**
+	 * Whether a cell is taken by an object which never moves, as of the last rebuild of its cluster
+	 */
+	private boolean isBlocked(int x, int y){
+		return blocked[x * n + y];
+	}
+
+	/**
+	 * Find the cluster containing a cell
+	 */
+	private int clusterOf(int x, int y){
+		return (x / CLUSTER_SIZE) * clustersPerRow + (y / CLUSTER_SIZE);
+	}
+
+	/**
+	 * Index of a cell within its cluster
+	 */
+	private int local(int k, int x, int y){
+		return (x - (k / clustersPerRow) * CLUSTER_SIZE) * CLUSTER_SIZE + (y - (k % clustersPerRow) * CLUSTER_SIZE);
+	}
+
+	/**
+	 * Buffers for routing across the graph, which each thread searching it needs its own of
+	 */
+	public class Search {
+		/**
+		 * Distances found by the breadth-first search of the start's or goal's cluster, indexed by cell within the cluster
+		 */
+		private int[] localDistance = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+
+		/**
+		 * Queue used by the breadth-first search of the start's or goal's cluster
+		 */
+		private int[] localQueue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+
+		/**
+		 * Distance from the start of the current search to each entrance of its cluster
+		 */
+		private int[] startDistance = new int[0];
+
+		/**
+		 * Distance from each entrance of the goal's cluster to the goal of the current search
+		 */
+		private int[] goalDistance = new int[0];
+
+		/**
+		 * Search state of each cell: path length from the start, previous cell, and open heap position
+		 */
+		private int[] gCost, parent, heapIndex;
+
+		/**
+		 * Search in which each cell was last reached
+		 */
+		private int[] visited;
+
+		/**
+		 * Whether each reached cell has been expanded
+		 */
+		private boolean[] closed;
+
+		/**
+		 * Current search
+		 */
+		private int generation = 0;
+
+		/**
+		 * Open list of cells, ordered by estimated route length
+		 */
+		private int[] heap;
+
+		/**
+		 * Number of cells in the open list
+		 */
+		private int count;
+
+		/**
+		 * Goal of the current search, used by the heuristic
+		 */
+		private int goalX, goalY;
+
+		/**
+		 * Create the buffers for searching the graph
+		 */
+		private Search(){
+			gCost = new int[n * n];
+			parent = new int[n * n];
+			heapIndex = new int[n * n];
+			visited = new int[n * n];
+			closed = new boolean[n * n];
+			heap = new int[n * n];
+		}
+
+		/**
+		 * Find a route on the abstract graph. Clusters whose changes have been published are rebuilt first.
+		 * @param startX x coordinate of the start
+		 * @param startY y coordinate of the start
+		 * @param endX x coordinate of the goal
+		 * @param endY y coordinate of the goal
+		 * @return cells along the route, as cell indices (x * n + y), starting with the start and ending
+		 *         with the goal, or null if static objects block every route (or the goal itself)
+		 */
+		public int[] findPath(int startX, int startY, int endX, int endY){
+			update();
+			lock.readLock().lock();
+			try {
+				return route(startX, startY, endX, endY);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Find a route on the abstract graph, with the read lock held
+		 */
+		private int[] route(int startX, int startY, int endX, int endY){
+			if(isBlocked(startX, startY) || isBlocked(endX, endY))
+				return null;
+
+			int start = startX * n + startY, goal = endX * n + endY;
+			int startCluster = clusterOf(startX, startY), goalCluster = clusterOf(endX, endY);
+			goalX = endX;
+			goalY = endY;
+
+			/* Connect the start and goal to the entrances of their clusters */
+			startDistance = connect(startCluster, startX, startY, startDistance);
+			int direct = (startCluster == goalCluster) ? localDistance[local(startCluster, endX, endY)] : -1;
+			goalDistance = connect(goalCluster, endX, endY, goalDistance);
+
+			generation++;
+			if(generation == Integer.MAX_VALUE){
+				Arrays.fill(visited, 0);
+				generation = 1;
+			}
+			count = 0;
+
+			reach(start, 0, -1);
+			while(count > 0){
+				int cell = remove();
+				if(cell == goal)
+					return retrace(goal);
+				closed[cell] = true;
+				int g = gCost[cell];
+
+				/* From the start, head for the entrances of its cluster (or straight for the goal) */
+				if(cell == start){
+					int[] e = entrances[startCluster];
+					for(int j = 0; j < e.length; j++)
+						if(startDistance[j] >= 0)
+							reach(e[j], g + startDistance[j], cell);
+					if(direct >= 0)
+						reach(goal, g + direct, cell);
+				}
+
+				int index = entranceIndex[cell];
+				if(index < 0)
+					continue;
+
+				/* Cross the border, or move to another entrance of the same cluster */
+				int cluster = clusterOf(cell / n, cell % n);
+				for(int across : partners[cluster][index])
+					reach(across, g + 1, cell);
+
+				int[] e = entrances[cluster];
+				int[] d = distances[cluster];
+				for(int j = 0; j < e.length; j++)
+					if(d[index * e.length + j] > 0)
+						reach(e[j], g + d[index * e.length + j], cell);
+
+				if(cluster == goalCluster && goalDistance[index] >= 0)
+					reach(goal, g + goalDistance[index], cell);
+			}
+			return null;
+		}
+
+		/**
+		 * Reach a cell during the search, if this is the shortest way there found so far
+		 */
+		private void reach(int cell, int g, int from){
+			if(visited[cell] != generation){
+				visited[cell] = generation;
+				closed[cell] = false;
+				gCost[cell] = g;
+				parent[cell] = from;
+				add(cell);
+			}
+			else if(!closed[cell] && g < gCost[cell]){
+				gCost[cell] = g;
+				parent[cell] = from;
+				heapUp(heapIndex[cell]);
+			}
+		}
+
+		/**
+		 * Walk back from the goal to the start
+		 * @return cells from the start to the goal
+		 */
+		private int[] retrace(int goal){
+			int length = 0;
+			for(int c = goal; c >= 0; c = parent[c])
+				length++;
+
+			int[] route = new int[length];
+			for(int c = goal, i = length - 1; c >= 0; c = parent[c], i--)
+				route[i] = c;
+			return route;
+		}
+
+		/**
+		 * Find the distance from a cell to each entrance of its cluster, staying inside the cluster
+		 * @param distance buffer to reuse, if it is big enough
+		 * @return distances to each entrance, or -1 for those which can't be reached
+		 */
+		private int[] connect(int cluster, int x, int y, int[] distance){
+			int[] e = entrances[cluster];
+			if(distance.length < e.length)
+				distance = new int[e.length];
+
+			search(cluster, x, y, localDistance, localQueue);
+			for(int j = 0; j < e.length; j++)
+				distance[j] = localDistance[local(cluster, e[j] / n, e[j] % n)];
+			return distance;
+		}
+
+		/**
+		 * Estimated distance from a cell to the goal. Every step costs the same and may be diagonal,
+		 * so the larger of the two offsets never overestimates.
+		 */
+		private int fCost(int cell){
+			return gCost[cell] + Math.max(Math.abs(cell / n - goalX), Math.abs(cell % n - goalY));
+		}
+
+		/**
+		 * Add a cell to the open list
+		 */
+		private void add(int cell){
+			heap[count] = cell;
+			count++;
+			heapUp(count - 1);
+		}
+
+		/**
+		 * Remove the cell with the lowest estimated route length from the open list
+		 */
+		private int remove(){
+			int first = heap[0];
+			count--;
+			if(count > 0){
+				heap[0] = heap[count];
+				heapDown(0);
+			}
+			return first;
+		}
+
+		/**
+		 * Move a cell up the heap until its parent is no worse
+		 */
+		private void heapUp(int i){
+			int cell = heap[i], f = fCost(cell);
+			while(i > 0){
+				int up = (i - 1) / 2;
+				if(fCost(heap[up]) <= f)
+					break;
+				heap[i] = heap[up];
+				heapIndex[heap[i]] = i;
+				i = up;
+			}
+			heap[i] = cell;
+			heapIndex[cell] = i;
+		}
+
+		/**
+		 * Move a cell down the heap until its children are no better
+		 */
+		private void heapDown(int i){
+			int cell = heap[i], f = fCost(cell);
+			while(true){
+				int child = 2*i + 1;
+				if(child >= count)
+					break;
+				if(child + 1 < count && fCost(heap[child + 1]) < fCost(heap[child]))
+					child++;
+				if(fCost(heap[child]) >= f)
+					break;
+				heap[i] = heap[child];
+				heapIndex[heap[i]] = i;
+				i = child;
+			}
+			heap[i] = cell;
+			heapIndex[cell] = i;
+		}
+	}
+}
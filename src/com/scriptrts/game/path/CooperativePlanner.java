@@ -0,0 +1,345 @@
+package com.scriptrts.game.path;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Plans the next few steps of each moving unit around the plans of the others, as in windowed
+ * hierarchical cooperative A*. When a unit is about to step, it searches space and time for the
+ * quickest way to the cell a few steps along its route, stepping aside or waiting where other
+ * units have reserved the cells it needs, and then reserves the cells it will cover for the ticks
+ * it will cover them. Units in a crowd so take turns through narrow places instead of running
+ * into each other, stalling and having their paths repaired.
+ *
+ * A unit plans again once it is halfway through its window, when it falls behind its plan, or
+ * when it is given a new path. Paths can't hold a wait, so the planner holds a unit back at the
+ * start of a step until the tick its plan lets it go. Only units whose shape is the same whichever
+ * way they face are planned; others, and units for which no plan is found, step as they would
+ * without the planner, and the units planning keep clear of them.
+ */
+public class CooperativePlanner implements MapGrid.StepListener {
+	/**
+	 * Number of steps of its route a unit plans around other units, which is also the farthest
+	 * it may stray from its route
+	 */
+	private static final int WINDOW = 8;
+
+	/**
+	 * Number of time steps a plan covers, which leaves room to wait
+	 */
+	private static final int DEPTH = 2 * WINDOW;
+
+	/**
+	 * Number of ticks a unit may fall behind its plan before it plans again
+	 */
+	private static final int SLACK = 2;
+
+	/**
+	 * Plan of one unit
+	 */
+	private static class Plan {
+		/**
+		 * Number of the plan, tagging its reservations
+		 */
+		int id;
+
+		/**
+		 * Path the plan was made for. If the unit is given any other path the plan is stale.
+		 */
+		Path path;
+
+		/**
+		 * Tick at which each step of the path may be taken, by the number of steps taken before it
+		 */
+		int[] departures;
+
+		/**
+		 * Number of steps whose departure is planned, or zero if no plan was found
+		 */
+		int steps;
+
+		/**
+		 * Number of steps taken after which the unit plans again
+		 */
+		int replanAt;
+
+		/**
+		 * Last tick reserved by the plan, or the tick before which a unit without a plan doesn't try again
+		 */
+		int until;
+
+		/**
+		 * Cells reserved by the plan, as x and y coordinate pairs
+		 */
+		int[] cells = new int[32];
+
+		/**
+		 * Number of ints used in cells
+		 */
+		int used;
+	}
+
+	/**
+	 * Game whose units are planned
+	 */
+	private HeadlessGame game;
+
+	/**
+	 * Unit grid the units are on
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Cells reserved by the plans
+	 */
+	private ReservationTable table;
+
+	/**
+	 * Search used to make plans
+	 */
+	private SpaceTimeSearch search;
+
+	/**
+	 * Plan of each unit which has one
+	 */
+	private Map<GameObject, Plan> plans;
+
+	/**
+	 * Number of the next plan made
+	 */
+	private int nextId;
+
+	/**
+	 * Current tick
+	 */
+	private int now;
+
+	/**
+	 * Number of plans made, and of searches which found none
+	 */
+	private long planned, failed;
+
+	/**
+	 * Number of times a unit was held back to wait for its plan
+	 */
+	private long held;
+
+	/**
+	 * Create a new cooperative planner and start deciding when the units of a game step
+	 * @param game game whose units are planned
+	 */
+	public CooperativePlanner(HeadlessGame game){
+		this.game = game;
+		grid = game.getGameGrid();
+		table = new ReservationTable(grid.getSize());
+		search = new SpaceTimeSearch(grid, table, this, WINDOW, DEPTH);
+		plans = new HashMap<GameObject, Plan>();
+		grid.setStepListener(this);
+	}
+
+	/**
+	 * Move on to the next tick. Called by the game thread once every tick.
+	 */
+	public synchronized void tick(){
+		now++;
+	}
+
+	/**
+	 * Decide whether a unit takes the next step of its path now, planning its next few steps first
+	 * if it needs to. Called by the game thread.
+	 */
+	public synchronized boolean unitStepping(GameObject unit){
+		UnitShape shape = unit.getUnitShape();
+		int speed = unit.getUnit().getSpeed();
+		if(shape == null || !shape.isSymmetric() || speed <= 0)
+			return true;
+
+		Plan plan = plans.get(unit);
+		int offset = unit.getPathOffset();
+		if(plan != null && plan.path == unit.getPath()){
+			if(plan.steps == 0 && now < plan.until)
+				return true;
+			if(plan.steps > 0 && offset < plan.replanAt && now <= plan.departures[offset] + SLACK)
+				return depart(plan, offset);
+		}
+
+		plan = plan(unit, plan, speed);
+		if(plan == null)
+			return true;
+		return depart(plan, unit.getPathOffset());
+	}
+
+	/**
+	 * Drop the plan of a unit which was given a new path. Called by the game thread.
+	 */
+	public synchronized void pathChanged(GameObject unit){
+		forget(unit);
+	}
+
+	/**
+	 * Drop the plan of a unit, freeing the cells it reserved
+	 * @param unit unit whose plan to drop
+	 */
+	public synchronized void forget(GameObject unit){
+		Plan plan = plans.remove(unit);
+		if(plan != null)
+			release(plan);
+	}
+
+	/**
+	 * Get the number of plans made so far
+	 * @return number of plans
+	 */
+	public synchronized long getPlanCount(){
+		return planned;
+	}
+
+	/**
+	 * Get the number of times no plan was found, so the unit stepped without one
+	 * @return number of failed plans
+	 */
+	public synchronized long getFailedCount(){
+		return failed;
+	}
+
+	/**
+	 * Get the number of times a unit was held back for a tick to wait for another unit
+	 * @return number of ticks units were held
+	 */
+	public synchronized long getHeldCount(){
+		return held;
+	}
+
+	/**
+	 * Check whether a unit follows a plan, so the cells it is on are only taken for the ticks it reserved them
+	 * @param unit unit to check
+	 * @return true if the unit is moving under a plan which hasn't run out
+	 */
+	boolean isMoving(GameObject unit){
+		Plan plan = plans.get(unit);
+		return plan != null && plan.steps > 0 && plan.until >= now && plan.path == unit.getPath()
+			&& unit.getPath().size() > 0;
+	}
+
+	/**
+	 * Check whether a planned step may be taken now
+	 */
+	private boolean depart(Plan plan, int offset){
+		if(offset < plan.steps && now < plan.departures[offset]){
+			held++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Plan the next few steps of a unit, giving it a new path which steps around other units
+	 * @param unit unit to plan
+	 * @param old previous plan of the unit, or null
+	 * @param speed speed of the unit
+	 * @return the new plan, or null if none was found
+	 */
+	private Plan plan(GameObject unit, Plan old, int speed){
+		if(old != null){
+			release(old);
+			plans.remove(unit);
+		}
+
+		/* Aim for the cell a window's worth of steps along the unit's path */
+		Path path = unit.getPath();
+		int x = unit.getUnit().getX(), y = unit.getUnit().getY();
+		int ahead = Math.min(WINDOW, path.size());
+		int goalX = x, goalY = y;
+		for(int i = 0; i < ahead; i++){
+			Direction d = path.get(i);
+			goalX += MapGrid.getOffsetX(d);
+			goalY += MapGrid.getOffsetY(d);
+		}
+
+		Plan plan = new Plan();
+		plan.id = nextId++;
+		int tickRate = game.getClock().getTickRate();
+		int k = search.search(unit, plan.id, x, y, goalX, goalY, now, tickRate, speed);
+		if(k < 0){
+			/* Step without a plan for a while, rather than searching again every tick */
+			plan.path = path;
+			plan.until = now + WINDOW * tickRate / speed;
+			plans.put(unit, plan);
+			failed++;
+			return null;
+		}
+
+		/* The planned steps, then the rest of the path as far as the plan reaches */
+		Point[] positions = new Point[k + 1];
+		for(int j = 0; j <= k; j++)
+			positions[j] = search.getPosition(j);
+		Path route = new Path(k + path.size() - ahead);
+		plan.departures = new int[DEPTH];
+		for(int j = 0; j < k; j++){
+			Point from = positions[j], to = positions[j + 1];
+			if(!from.equals(to)){
+				plan.departures[plan.steps++] = search.tickAt(j);
+				route.offer(MapGrid.getDirection(to.x - from.x, to.y - from.y));
+			}
+		}
+		route.append(path, ahead);
+
+		/* Reserve the cells covered at each time step, from when the unit starts moving onto them until it has left them */
+		Point[] shape = unit.getShape(Direction.North);
+		for(int j = 0; j <= k; j++)
+			reserve(plan, shape, positions[j].x, positions[j].y, search.tickAt(Math.max(0, j - 1)), search.tickAt(j + 1));
+		int j = k, cx = goalX, cy = goalY;
+		for(int i = ahead; i < path.size() && j < DEPTH; i++, j++){
+			plan.departures[plan.steps++] = search.tickAt(j);
+			cx += MapGrid.getOffsetX(path.get(i));
+			cy += MapGrid.getOffsetY(path.get(i));
+			reserve(plan, shape, cx, cy, search.tickAt(j), search.tickAt(j + 2));
+		}
+
+		/* A unit which stops at the end of its path keeps its cell for as long as the plan reaches */
+		plan.until = search.tickAt(j + 1);
+		if(route.size() == plan.steps){
+			plan.until = search.tickAt(DEPTH + 1);
+			reserve(plan, shape, cx, cy, search.tickAt(j), plan.until);
+		}
+		plan.replanAt = Math.max(1, Math.min(plan.steps, WINDOW / 2));
+
+		/* Giving the unit its new path drops whatever plan it had, so the new one is kept after */
+		unit.setPath(route);
+		plan.path = unit.getPath();
+		plans.put(unit, plan);
+		planned++;
+		return plan;
+	}
+
+	/**
+	 * Reserve the cells a unit covers on a cell for a span of ticks, noting them in its plan
+	 */
+	private void reserve(Plan plan, Point[] shape, int x, int y, int from, int to){
+		for(Point p : shape){
+			table.reserve(plan.id, x + p.x, y + p.y, from, to, now);
+			if(plan.used == plan.cells.length)
+				plan.cells = Arrays.copyOf(plan.cells, 2 * plan.used);
+			plan.cells[plan.used++] = x + p.x;
+			plan.cells[plan.used++] = y + p.y;
+		}
+	}
+
+	/**
+	 * Free every cell a plan reserved
+	 */
+	private void release(Plan plan){
+		for(int i = 0; i < plan.used; i += 2)
+			table.release(plan.id, plan.cells[i], plan.cells[i + 1]);
+		plan.used = 0;
+	}
+}
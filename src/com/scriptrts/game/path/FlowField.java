@@ -0,0 +1,398 @@
+package com.scriptrts.game.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
+
+/**
+ * Flow field leading a group of units to one destination. A Dijkstra search outward from the
+ * destination gives every cell the cost of the cheapest way from it to the destination over the
+ * terrain (the integration field), and every cell points towards the neighbor that way starts
+ * with (the direction field). While every type of terrain costs the same, every step costs one
+ * and the search is a plain breadth-first search, which needs no heap. Each unit in the
+ * group reads its route off the field instead of running its own search, so one search serves
+ * the whole group. Both fields are filled in only as far as the units need.
+ *
+ * Units don't look up their direction on the field at every step: a unit reads its whole route
+ * off the field at once, when it starts moving or tries again after stalling, and walks it as an
+ * ordinary path. The field so only saves the searches, and a unit pushed off its route keeps
+ * walking the route it was given until it next reads the field.
+ *
+ * Creating a field is cheap. It is laid out the first time a unit reads it, around the group and
+ * the destination as they are then, so an order waiting behind others covers the group where
+ * the earlier orders left it, and the search runs on the thread moving the units. Like the cluster graph, it
+ * only treats objects which never move as obstacles, and is meant for units which fit in a single
+ * unit tile; moving units are dealt with by the unit grid as the group walks.
+ */
+public class FlowField {
+	/**
+	 * Distance the field extends beyond the group and the destination, in unit tiles
+	 */
+	private static final int MARGIN = ClusterGraph.CLUSTER_SIZE;
+
+	/**
+	 * Direction stored for cells whose direction hasn't been worked out yet
+	 */
+	private static final byte UNKNOWN = -1;
+
+	/**
+	 * Direction stored for the destination and for cells with no route to it
+	 */
+	private static final byte NONE = -2;
+
+	/**
+	 * All directions, indexed by ordinal
+	 */
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/**
+	 * Offsets of one step in each direction, indexed by ordinal
+	 */
+	private static final int[] STEP_X = new int[DIRECTIONS.length], STEP_Y = new int[DIRECTIONS.length];
+	static {
+		for(Direction d : DIRECTIONS){
+			STEP_X[d.ordinal()] = MapGrid.getOffsetX(d);
+			STEP_Y[d.ordinal()] = MapGrid.getOffsetY(d);
+		}
+	}
+
+	/**
+	 * Unit grid the field is laid over
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Costs of stepping onto the cells of the unit grid, or null if every step costs one
+	 */
+	private TerrainCosts terrain;
+
+	/**
+	 * Units which will follow the field
+	 */
+	private List<GameObject> group;
+
+	/**
+	 * Costs of stepping onto the cells of the unit grid when the field was laid out, or null if
+	 * every step costs one
+	 */
+	private TerrainCosts.Table costs;
+
+	/**
+	 * Whether every step costs one, so cells are searched from in the order they are reached
+	 */
+	private boolean uniform;
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Destination of the field
+	 */
+	private int endX, endY;
+
+	/**
+	 * Corner of the area covered by the field, and its size
+	 */
+	private int x0, y0, width, height;
+
+	/**
+	 * Cost of the cheapest way found so far from each cell to the destination, or -1 if it hasn't
+	 * been reached (yet), indexed by (x - x0) * height + (y - y0), or null until the field is laid out
+	 */
+	private int[] distance;
+
+	/**
+	 * Whether the cheapest way from each cell to the destination has been found
+	 */
+	private boolean[] settled;
+
+	/**
+	 * Ordinal of the direction to step in from each cell, UNKNOWN or NONE
+	 */
+	private byte[] direction;
+
+	/**
+	 * Cells reached but not settled by the search filling in the integration field, as a binary
+	 * heap ordered by distance, or as a queue if every step costs one
+	 */
+	private int[] heap;
+
+	/**
+	 * Start of the queue, if every step costs one
+	 */
+	private int head;
+
+	/**
+	 * Position of each cell in the heap, or -1 if it isn't in it
+	 */
+	private int[] heapIndex;
+
+	/**
+	 * Number of cells in the heap, or end of the queue
+	 */
+	private int count;
+
+	/**
+	 * Create a flow field leading a group of units to a destination. Nothing is searched until a
+	 * unit first reads the field.
+	 * @param grid unit grid the units are on
+	 * @param terrain costs of stepping onto the cells of the unit grid, or null if every step costs one
+	 * @param endX x coordinate of the destination
+	 * @param endY y coordinate of the destination
+	 * @param group units which will follow the field
+	 */
+	public FlowField(MapGrid grid, TerrainCosts terrain, int endX, int endY, List<GameObject> group){
+		this.grid = grid;
+		this.terrain = terrain;
+		this.endX = endX;
+		this.endY = endY;
+		this.group = new ArrayList<GameObject>(group);
+	}
+
+	/**
+	 * Lay the field out around the group as it is now. The field is filled in as far as the
+	 * farthest unit of the group, and further later on if a unit strays beyond that.
+	 */
+	private void layOut(){
+		costs = (terrain == null) ? null : terrain.getTable();
+		uniform = costs == null || costs.uniform;
+
+		/* Cover the group and the destination, with room to go around obstacles */
+		int minX = endX, minY = endY, maxX = endX, maxY = endY;
+		for(GameObject unit : group){
+			minX = Math.min(minX, unit.getUnit().getX());
+			minY = Math.min(minY, unit.getUnit().getY());
+			maxX = Math.max(maxX, unit.getUnit().getX());
+			maxY = Math.max(maxY, unit.getUnit().getY());
+		}
+		n = grid.getSize();
+		x0 = Math.max(0, minX - MARGIN);
+		y0 = Math.max(0, minY - MARGIN);
+		width = Math.min(n, maxX + MARGIN + 1) - x0;
+		height = Math.min(n, maxY + MARGIN + 1) - y0;
+
+		distance = new int[width * height];
+		Arrays.fill(distance, -1);
+		settled = new boolean[width * height];
+		direction = new byte[width * height];
+		Arrays.fill(direction, UNKNOWN);
+		heap = new int[width * height];
+		heapIndex = new int[width * height];
+		Arrays.fill(heapIndex, -1);
+
+		/* The destination is always searched from, even if something stands on it */
+		int end = (endX - x0) * height + (endY - y0);
+		distance[end] = 0;
+		direction[end] = NONE;
+		add(end);
+
+		for(GameObject unit : group)
+			getDistance(unit.getUnit().getX(), unit.getUnit().getY());
+		group = null;
+	}
+
+	/**
+	 * Continue the search outward from the destination until a cell has been settled or there
+	 * is nowhere left to search
+	 */
+	private void integrate(int target){
+		while(!settled[target] && count > head){
+			int cell = remove();
+			settled[cell] = true;
+			int i = cell / height, j = cell % height;
+			for(int d = 0; d < STEP_X.length; d++){
+				int ni = i + STEP_X[d], nj = j + STEP_Y[d];
+				if(ni < 0 || ni >= width || nj < 0 || nj >= height)
+					continue;
+				int next = ni * height + nj;
+				if(settled[next] || isBlocked(x0 + ni, y0 + nj))
+					continue;
+
+				/* A unit on the neighbor steps back the other way, onto this cell */
+				int through = distance[cell] + stepCost(cell, d);
+				if(distance[next] < 0){
+					distance[next] = through;
+					add(next);
+				}
+				else if(through < distance[next]){
+					distance[next] = through;
+					heapUp(heapIndex[next]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cost of stepping onto a cell from its neighbor in a direction (or the opposite direction,
+	 * which costs the same)
+	 */
+	private int stepCost(int cell, int d){
+		if(uniform)
+			return 1;
+		int x = x0 + cell / height, y = y0 + cell % height;
+		return costs.cells[x * n + y] * TerrainCosts.DIRECTION_COSTS[d];
+	}
+
+	/**
+	 * Whether a cell is taken by an object which never moves
+	 */
+	private boolean isBlocked(int x, int y){
+		GameObject unit = grid.getUnit(x, y);
+		return unit != null && !unit.isMovable();
+	}
+
+	/**
+	 * Get the direction to step in from a cell
+	 * @return direction towards the destination, or null if the cell is the destination, outside
+	 *         the field, or has no route to the destination
+	 */
+	public Direction getDirection(int x, int y){
+		if(getDistance(x, y) < 0)
+			return null;
+
+		int cell = (x - x0) * height + (y - y0);
+		if(direction[cell] == UNKNOWN){
+			/* The neighbor this cell's cheapest way goes through was settled before it */
+			int i = x - x0, j = y - y0;
+			for(int d = 0; d < STEP_X.length && direction[cell] == UNKNOWN; d++){
+				int ni = i + STEP_X[d], nj = j + STEP_Y[d];
+				if(ni < 0 || ni >= width || nj < 0 || nj >= height)
+					continue;
+				int next = ni * height + nj;
+				if(settled[next] && distance[next] + stepCost(next, d) == distance[cell])
+					direction[cell] = (byte) d;
+			}
+		}
+		return direction[cell] == NONE ? null : DIRECTIONS[direction[cell]];
+	}
+
+	/**
+	 * Get the cost of the cheapest way from a cell to the destination
+	 * @return cost of the way, or -1 if the cell is outside the field or has no route to the destination
+	 */
+	public int getDistance(int x, int y){
+		if(distance == null)
+			layOut();
+		if(!contains(x, y))
+			return -1;
+		int cell = (x - x0) * height + (y - y0);
+		integrate(cell);
+		return settled[cell] ? distance[cell] : -1;
+	}
+
+	/**
+	 * Read the route from a cell to the destination off the field
+	 * @return directions to follow, or null if there is no route from the cell
+	 */
+	public Path getPath(int x, int y){
+		if(getDistance(x, y) < 0)
+			return null;
+
+		/* Each step leads to a cell closer to the destination, which has its own way there settled */
+		Path path = new Path();
+		while(x != endX || y != endY){
+			Direction d = getDirection(x, y);
+			path.add(d);
+			x += STEP_X[d.ordinal()];
+			y += STEP_Y[d.ordinal()];
+		}
+		return path;
+	}
+
+	/**
+	 * Get the x coordinate of the destination
+	 */
+	public int getEndX(){
+		return endX;
+	}
+
+	/**
+	 * Get the y coordinate of the destination
+	 */
+	public int getEndY(){
+		return endY;
+	}
+
+	/**
+	 * Whether a cell is inside the area covered by the field
+	 */
+	private boolean contains(int x, int y){
+		return x >= x0 && x < x0 + width && y >= y0 && y < y0 + height;
+	}
+
+	/**
+	 * Add a cell to the heap or the queue
+	 */
+	private void add(int cell){
+		heap[count] = cell;
+		if(uniform){
+			count++;
+			return;
+		}
+		heapIndex[cell] = count;
+		heapUp(count++);
+	}
+
+	/**
+	 * Remove the cell with the lowest distance from the heap, or the first cell of the queue
+	 */
+	private int remove(){
+		if(uniform)
+			return heap[head++];
+
+		int first = heap[0];
+		heapIndex[first] = -1;
+		count--;
+		if(count > 0){
+			heap[0] = heap[count];
+			heapIndex[heap[0]] = 0;
+			heapDown(0);
+		}
+		return first;
+	}
+
+	/**
+	 * Move a heap entry up until its parent's distance is no larger
+	 */
+	private void heapUp(int i){
+		int cell = heap[i];
+		while(i > 0){
+			int p = (i - 1) / 2;
+			if(distance[heap[p]] <= distance[cell])
+				break;
+			heap[i] = heap[p];
+			heapIndex[heap[i]] = i;
+			i = p;
+		}
+		heap[i] = cell;
+		heapIndex[cell] = i;
+	}
+
+	/**
+	 * Move a heap entry down until its children's distances are no smaller
+	 */
+	private void heapDown(int i){
+		int cell = heap[i];
+		while(true){
+			int c = 2 * i + 1;
+			if(c >= count)
+				break;
+			if(c + 1 < count && distance[heap[c + 1]] < distance[heap[c]])
+				c++;
+			if(distance[heap[c]] >= distance[cell])
+				break;
+			heap[i] = heap[c];
+			heapIndex[heap[i]] = i;
+			i = c;
+		}
+		heap[i] = cell;
+		heapIndex[cell] = i;
+	}
+}
@@ -0,0 +1,496 @@
+package com.scriptrts.game.path;
+
+import java.util.Arrays;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
+
+/**
+ * D* Lite search for one unit over a small window of the unit grid. The search runs backward
+ * from a fixed goal, so the tree of distances to the goal stays valid while the unit moves
+ * towards it. When cells around the unit turn out to be blocked or freed, only the distances
+ * which depend on those cells are repaired, instead of searching again from scratch.
+ *
+ * Each cell is looked up on the unit grid the first time the search needs it, and after that
+ * only when it is sensed again near the unit. The unit must fit in the same places whichever
+ * way it faces, so a cell is either open or blocked for it. Steps cost what the terrain costs
+ * said when the search was made, or one each if it was given none.
+ */
+class IncrementalSearch {
+	/**
+	 * Distance of cells which can't reach the goal
+	 */
+	private static final int INF = 1 << 28;
+
+	/**
+	 * Cell state: not looked up on the unit grid yet
+	 */
+	private static final byte UNKNOWN = 0;
+
+	/**
+	 * Cell state: the unit fits on the cell
+	 */
+	private static final byte OPEN = 1;
+
+	/**
+	 * Cell state: the unit doesn't fit on the cell
+	 */
+	private static final byte BLOCKED = 2;
+
+	/**
+	 * All directions, indexed by ordinal
+	 */
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/**
+	 * Offsets of one step in each direction, indexed by ordinal
+	 */
+	private static final int[] STEP_X = new int[DIRECTIONS.length], STEP_Y = new int[DIRECTIONS.length];
+	static {
+		for(Direction d : DIRECTIONS){
+			STEP_X[d.ordinal()] = MapGrid.getOffsetX(d);
+			STEP_Y[d.ordinal()] = MapGrid.getOffsetY(d);
+		}
+	}
+
+	/**
+	 * Unit grid being searched
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Unit being routed
+	 */
+	private GameObject unit;
+
+	/**
+	 * Costs of stepping onto the cells of the unit grid, or null if every step costs one
+	 */
+	private TerrainCosts.Table costs;
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Corner of the window searched, and its size. Cells outside the window are treated as blocked.
+	 */
+	private int x0, y0, width, height;
+
+	/**
+	 * Goal cell, and the cell the unit was at when the search was last brought up to date,
+	 * as window indices ((x - x0) * height + (y - y0))
+	 */
+	private int goal, start;
+
+	/**
+	 * Amount added to the keys of cells queued since the unit started moving, so the keys of
+	 * cells queued earlier don't all have to be recomputed
+	 */
+	private int keyModifier;
+
+	/**
+	 * Distance from each cell to the goal as of its last expansion
+	 */
+	private int[] g;
+
+	/**
+	 * Distance from each cell to the goal looking one step ahead
+	 */
+	private int[] rhs;
+
+	/**
+	 * State of each cell on the unit grid, as last looked up
+	 */
+	private byte[] state;
+
+	/**
+	 * Queue of inconsistent cells (those whose g and rhs differ), as a binary heap of window indices
+	 */
+	private int[] heap;
+
+	/**
+	 * Position of each queued cell in the heap, or -1
+	 */
+	private int[] heapIndex;
+
+	/**
+	 * Key of each queued cell
+	 */
+	private long[] keys;
+
+	/**
+	 * Number of cells in the heap
+	 */
+	private int count;
+
+	/**
+	 * Number of cells expanded over the life of the search
+	 */
+	private int expanded;
+
+	/**
+	 * Create a new search towards a goal. Nothing is searched until the first call to update.
+	 * @param grid unit grid to search
+	 * @param costs costs of stepping onto the cells of the unit grid, or null if every step costs one
+	 * @param unit unit to route
+	 * @param x0 smallest x coordinate of the window
+	 * @param y0 smallest y coordinate of the window
+	 * @param width width of the window
+	 * @param height height of the window
+	 * @param goalX x coordinate of the goal, inside the window
+	 * @param goalY y coordinate of the goal, inside the window
+	 */
+	IncrementalSearch(MapGrid grid, TerrainCosts.Table costs, GameObject unit, int x0, int y0, int width, int height, int goalX, int goalY){
+		this.grid = grid;
+		this.costs = costs;
+		this.unit = unit;
+		n = grid.getSize();
+		this.x0 = x0;
+		this.y0 = y0;
+		this.width = width;
+		this.height = height;
+
+		int size = width * height;
+		g = new int[size];
+		rhs = new int[size];
+		Arrays.fill(g, INF);
+		Arrays.fill(rhs, INF);
+		state = new byte[size];
+		heap = new int[size];
+		heapIndex = new int[size];
+		Arrays.fill(heapIndex, -1);
+		keys = new long[size];
+
+		/* The goal is always open, even if something stands on it for now */
+		goal = index(goalX, goalY);
+		state[goal] = OPEN;
+		rhs[goal] = 0;
+		start = -1;
+	}
+
+	/**
+	 * Whether a cell is inside the window
+	 */
+	boolean contains(int x, int y){
+		return x >= x0 && x < x0 + width && y >= y0 && y < y0 + height;
+	}
+
+	/**
+	 * Whether the unit currently fits on the goal
+	 */
+	boolean isGoalOpen(){
+		return lookUp(goal) == OPEN;
+	}
+
+	/**
+	 * Get the number of cells expanded over the life of the search
+	 */
+	int getExpanded(){
+		return expanded;
+	}
+
+	/**
+	 * Bring the search up to date with the unit at a new cell. Cells near the unit are looked up
+	 * on the unit grid again, and the distances depending on any which changed are repaired.
+	 * @param x x coordinate of the unit, inside the window
+	 * @param y y coordinate of the unit, inside the window
+	 * @param range distance around the unit within which to look at the cells again
+	 * @return true if the goal can be reached from the unit
+	 */
+	boolean update(int x, int y, int range){
+		int cell = index(x, y);
+		if(start >= 0)
+			keyModifier += heuristic(start, cell);
+		else {
+			/* The first update queues the goal, now there's a unit to key it against */
+			start = cell;
+			updateVertex(goal);
+		}
+		start = cell;
+
+		for(int i = Math.max(0, x - x0 - range); i <= Math.min(width - 1, x - x0 + range); i++)
+			for(int j = Math.max(0, y - y0 - range); j <= Math.min(height - 1, y - y0 + range); j++){
+				int c = i * height + j;
+				if(state[c] == UNKNOWN || c == goal)
+					continue;
+				byte now = lookUp(c);
+				if(now != state[c]){
+					state[c] = now;
+					cellChanged(c);
+				}
+			}
+
+		computeShortestPath();
+		return rhs[start] < INF;
+	}
+
+	/**
+	 * Read the route from the unit to the goal off the search
+	 * @return directions to follow, or null if the goal can't be reached
+	 */
+	Path getPath(){
+		/* The unit's own cell may be left with a stale g, but its best step is settled */
+		if(rhs[start] >= INF)
+			return null;
+
+		Path path = new Path();
+		int cell = start;
+		while(cell != goal && path.size() < g.length){
+			int best = -1, bestCost = INF, bestDir = 0, bestSpread = 0;
+			int i = cell / height, j = cell % height;
+			for(int d = 0; d < STEP_X.length; d++){
+				int next = neighbor(i, j, d);
+				if(next < 0)
+					continue;
+
+				/* Between equally short ways, keep closest to the straight line to the goal */
+				int cost = cost(cell, next) + g[next];
+				int spread = spread(next);
+				if(cost < bestCost || (cost == bestCost && spread < bestSpread)){
+					best = next;
+					bestCost = cost;
+					bestDir = d;
+					bestSpread = spread;
+				}
+			}
+			if(best < 0)
+				return null;
+			path.add(DIRECTIONS[bestDir]);
+			cell = best;
+		}
+		return path;
+	}
+
+	/**
+	 * Expand cells until the distance from the unit to the goal is settled
+	 */
+	private void computeShortestPath(){
+		while(count > 0 && (keys[heap[0]] < key(start) || rhs[start] > g[start])){
+			int cell = heap[0];
+			long oldKey = keys[cell];
+			long newKey = key(cell);
+			expanded++;
+
+			if(oldKey < newKey){
+				/* The unit has moved since the cell was queued */
+				keys[cell] = newKey;
+				heapDown(0);
+			}
+			else if(g[cell] > rhs[cell]){
+				/* The cell got closer to the goal; pass that on to its neighbors */
+				g[cell] = rhs[cell];
+				remove(cell);
+				int i = cell / height, j = cell % height;
+				for(int d = 0; d < STEP_X.length; d++){
+					int s = neighbor(i, j, d);
+					if(s >= 0 && s != goal){
+						rhs[s] = Math.min(rhs[s], cost(s, cell) + g[cell]);
+						updateVertex(s);
+					}
+				}
+			}
+			else {
+				/* The cell got farther from the goal; neighbors which went through it need a new way */
+				int oldG = g[cell];
+				g[cell] = INF;
+				int i = cell / height, j = cell % height;
+				for(int d = -1; d < STEP_X.length; d++){
+					int s = d < 0 ? cell : neighbor(i, j, d);
+					if(s < 0 || s == goal)
+						continue;
+					if(rhs[s] == (s == cell ? 0 : cost(s, cell)) + oldG)
+						rhs[s] = lookAhead(s);
+					updateVertex(s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Repair the distances around a cell which was blocked or freed
+	 */
+	private void cellChanged(int cell){
+		int i = cell / height, j = cell % height;
+		for(int d = -1; d < STEP_X.length; d++){
+			int s = d < 0 ? cell : neighbor(i, j, d);
+			if(s < 0 || s == goal)
+				continue;
+			rhs[s] = lookAhead(s);
+			updateVertex(s);
+		}
+	}
+
+	/**
+	 * Find the distance to the goal of a cell going through its best neighbor
+	 */
+	private int lookAhead(int cell){
+		int best = INF;
+		int i = cell / height, j = cell % height;
+		for(int d = 0; d < STEP_X.length; d++){
+			int s = neighbor(i, j, d);
+			if(s >= 0)
+				best = Math.min(best, cost(cell, s) + g[s]);
+		}
+		return Math.min(best, INF);
+	}
+
+	/**
+	 * Queue, requeue or dequeue a cell depending on whether it is consistent
+	 */
+	private void updateVertex(int cell){
+		boolean queued = heapIndex[cell] >= 0;
+		if(g[cell] != rhs[cell]){
+			long key = key(cell);
+			if(!queued){
+				keys[cell] = key;
+				heap[count] = cell;
+				heapIndex[cell] = count;
+				heapUp(count++);
+			}
+			else if(key != keys[cell]){
+				boolean up = key < keys[cell];
+				keys[cell] = key;
+				if(up)
+					heapUp(heapIndex[cell]);
+				else
+					heapDown(heapIndex[cell]);
+			}
+		}
+		else if(queued)
+			remove(cell);
+	}
+
+	/**
+	 * Compute the key of a cell: its estimated route length through the cell, then its distance
+	 * to the goal, packed into one number so keys compare in that order
+	 */
+	private long key(int cell){
+		int m = Math.min(g[cell], rhs[cell]);
+		return ((long) (m + heuristic(start, cell) + keyModifier) << 32) | m;
+	}
+
+	/**
+	 * Cost of the steps between two cells if nothing is in the way, over the cheapest terrain
+	 */
+	private int heuristic(int a, int b){
+		if(costs != null)
+			return costs.octile(a / height, a % height, b / height, b % height);
+		return Math.max(Math.abs(a / height - b / height), Math.abs(a % height - b % height));
+	}
+
+	/**
+	 * Squared straight line distance from a cell to the goal
+	 */
+	private int spread(int cell){
+		int dx = cell / height - goal / height, dy = cell % height - goal % height;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Cost of stepping from a cell onto a neighboring one
+	 */
+	private int cost(int a, int b){
+		if(!isOpen(a) || !isOpen(b))
+			return INF;
+		if(costs == null)
+			return 1;
+
+		boolean diagonal = a / height != b / height && a % height != b % height;
+		int x = x0 + b / height, y = y0 + b % height;
+		return costs.cells[x * n + y] * (diagonal ? TerrainCosts.DIAGONAL_COST : TerrainCosts.STRAIGHT_COST);
+	}
+
+	/**
+	 * Whether the unit fits on a cell, looking it up on the unit grid the first time it is needed
+	 */
+	private boolean isOpen(int cell){
+		if(state[cell] == UNKNOWN)
+			state[cell] = lookUp(cell);
+		return state[cell] == OPEN;
+	}
+
+	/**
+	 * Look up whether the unit fits on a cell
+	 */
+	private byte lookUp(int cell){
+		int x = x0 + cell / height, y = y0 + cell % height;
+		return grid.canPlaceUnit(unit, x, y, Direction.North) ? OPEN : BLOCKED;
+	}
+
+	/**
+	 * Get the neighbor of a cell one step in a direction
+	 * @return window index of the neighbor, or -1 if it is outside the window
+	 */
+	private int neighbor(int i, int j, int d){
+		int ni = i + STEP_X[d], nj = j + STEP_Y[d];
+		if(ni < 0 || ni >= width || nj < 0 || nj >= height)
+			return -1;
+		return ni * height + nj;
+	}
+
+	/**
+	 * Window index of a cell
+	 */
+	private int index(int x, int y){
+		return (x - x0) * height + (y - y0);
+	}
+
+	/**
+	 * Take a cell out of the heap
+	 */
+	private void remove(int cell){
+		int i = heapIndex[cell];
+		heapIndex[cell] = -1;
+		count--;
+		if(i == count)
+			return;
+
+		int moved = heap[count];
+		heap[i] = moved;
+		heapIndex[moved] = i;
+		heapUp(i);
+		heapDown(heapIndex[moved]);
+	}
+
+	/**
+	 * Move a heap entry up until its parent's key is no larger
+	 */
+	private void heapUp(int i){
+		int cell = heap[i];
+		while(i > 0){
+			int p = (i - 1) / 2;
+			if(keys[heap[p]] <= keys[cell])
+				break;
+			heap[i] = heap[p];
+			heapIndex[heap[i]] = i;
+			i = p;
+		}
+		heap[i] = cell;
+		heapIndex[cell] = i;
+	}
+
+	/**
+	 * Move a heap entry down until its children's keys are no smaller
+	 */
+	private void heapDown(int i){
+		int cell = heap[i];
+		while(true){
+			int c = 2 * i + 1;
+			if(c >= count)
+				break;
+			if(c + 1 < count && keys[heap[c + 1]] < keys[heap[c]])
+				c++;
+			if(keys[heap[c]] >= keys[cell])
+				break;
+			heap[i] = heap[c];
+			heapIndex[heap[i]] = i;
+			i = c;
+		}
+		heap[i] = cell;
+		heapIndex[cell] = i;
+	}
+}
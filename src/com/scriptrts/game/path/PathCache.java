@@ -0,0 +1,342 @@
+package com.scriptrts.game.path;
+
+import java.awt.Point;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Bounded cache of routes found by the pathfinders. Units which follow another unit re-route
+ * every few frames, and units sent back and forth between the same places ask for the same
+ * routes again and again, so a route is kept for units of the same shape leaving from the same
+ * map tile for the same destination. A unit starting anywhere on the cached route, or right next
+ * to its start, is given the rest of the route instead of searching again.
+ *
+ * Units move every tick, so the cache doesn't throw routes away whenever a tile is occupied or
+ * freed. Instead it listens to the unit grid for objects which never move, and drops every route
+ * whose corridor passes under one which was placed or removed since the route was found. The
+ * first few steps of a route are checked against the grid as it is now (or as the searching
+ * pathfinder sees it) before it is handed out, so a route isn't reused straight into a unit
+ * standing in the way.
+ */
+public class PathCache implements MapGrid.StaticObjectListener {
+	/**
+	 * Result of a lookup which found nothing usable
+	 */
+	public static final int MISS = 0;
+
+	/**
+	 * Result of a lookup which found a route to the destination
+	 */
+	public static final int COMPLETE = 1;
+
+	/**
+	 * Result of a lookup which found the first leg of a route to the destination
+	 */
+	public static final int PARTIAL = 2;
+
+	/**
+	 * Length along one edge of the region a route may be reused from, in unit tiles
+	 */
+	private static final int REGION_SIZE = MapGrid.SPACES_PER_TILE;
+
+	/**
+	 * Number of steps of a cached route checked against the unit grid before it is reused
+	 */
+	private static final int CHECKED_STEPS = 4;
+
+	/**
+	 * Route kept in the cache
+	 */
+	private static class Entry {
+		/**
+		 * Cells of the route from its start to its end, as cell indices (x * n + y)
+		 */
+		int[] cells;
+
+		/**
+		 * Whether the route only covers the first leg of the way to the destination
+		 */
+		boolean partial;
+
+		/**
+		 * Radius of the unit the route is for
+		 */
+		int radius;
+
+		/**
+		 * Bounding box of the cells the unit covers along the route
+		 */
+		int minX, minY, maxX, maxY;
+	}
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Most routes kept at once
+	 */
+	private int capacity;
+
+	/**
+	 * Cached routes, in order from least to most recently used. Keys combine the start region,
+	 * the destination cell and the unit shape.
+	 */
+	private LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * Number of lookups answered from the cache
+	 */
+	private long hits;
+
+	/**
+	 * Number of lookups which had to search
+	 */
+	private long misses;
+
+	/**
+	 * Number of routes dropped to make room for newer ones
+	 */
+	private long evictions;
+
+	/**
+	 * Number of routes dropped because a static object was placed or removed along them
+	 */
+	private long invalidations;
+
+	/**
+	 * Key of a cached route
+	 */
+	private static class Key {
+		/**
+		 * Region the route starts in and its destination cell
+		 */
+		final int region, end;
+
+		/**
+		 * Shape of the unit the route is for
+		 */
+		final UnitShape shape;
+
+		Key(int region, int end, UnitShape shape){
+			this.region = region;
+			this.end = end;
+			this.shape = shape;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return region == k.region && end == k.end && shape == k.shape;
+		}
+
+		public int hashCode(){
+			return (region * 31 + end) * 31 + System.identityHashCode(shape);
+		}
+	}
+
+	/**
+	 * Create a new path cache and start listening for changes to the unit grid
+	 * @param grid unit grid the routes are found on
+	 * @param capacity most routes to keep at once
+	 */
+	public PathCache(MapGrid grid, int capacity){
+		this.n = grid.getSize();
+		this.capacity = capacity;
+		entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest){
+				if(size() <= PathCache.this.capacity)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+		grid.addStaticObjectListener(this);
+	}
+
+	/**
+	 * Look up a route for a unit
+	 * @param unit unit to route
+	 * @param x x coordinate the unit is routed from
+	 * @param y y coordinate the unit is routed from
+	 * @param endX x coordinate of the destination
+	 * @param endY y coordinate of the destination
+	 * @param occupancy unit grid, or snapshot of it, to check the first steps of the route against
+	 * @param path list receiving the points of the route from the unit onwards, if one is found
+	 * @return MISS, or COMPLETE or PARTIAL depending on whether the route reaches the destination
+	 */
+	public synchronized int get(GameObject unit, int x, int y, int endX, int endY, MapGrid occupancy, List<Point> path){
+		Key key = key(unit, x, y, endX, endY);
+		Entry entry = entries.get(key);
+		if(entry == null){
+			misses++;
+			return MISS;
+		}
+
+		/* Join the route where the unit stands, or else at the farthest cell next to the unit */
+		int[] cells = entry.cells;
+		int from = -1, next = -1;
+		for(int i = 0; i < cells.length && i <= 2 * REGION_SIZE && from < 0; i++){
+			int dx = cells[i] / n - x, dy = cells[i] % n - y;
+			if(dx == 0 && dy == 0)
+				from = i;
+			else if(Math.abs(dx) <= 1 && Math.abs(dy) <= 1)
+				next = i;
+		}
+		boolean join = from < 0;
+		if(join)
+			from = next;
+
+		if(from < 0 || !isClear(occupancy, unit, x, y, cells, from, join)){
+			entries.remove(key);
+			misses++;
+			return MISS;
+		}
+
+		hits++;
+		if(join)
+			path.add(new Point(x, y));
+		for(int i = from; i < cells.length; i++)
+			path.add(new Point(cells[i] / n, cells[i] % n));
+		return entry.partial ? PARTIAL : COMPLETE;
+	}
+
+	/**
+	 * Check that the first steps of a route can still be taken
+	 * @param occupancy unit grid, or snapshot of it, to check against
+	 * @param from index of the first cell of the route to use
+	 * @param join whether the unit first steps onto that cell
+	 */
+	private boolean isClear(MapGrid occupancy, GameObject unit, int x, int y, int[] cells, int from, boolean join){
+		int px = x, py = y;
+		int steps = 0;
+		for(int i = join ? from : from + 1; i < cells.length && steps < CHECKED_STEPS; i++, steps++){
+			int cx = cells[i] / n, cy = cells[i] % n;
+			Direction d = MapGrid.getDirection(cx - px, cy - py);
+			if(!occupancy.canPlaceUnit(unit, px, py, d) || !occupancy.canPlaceUnit(unit, cx, cy, d))
+				return false;
+			px = cx;
+			py = cy;
+		}
+		return true;
+	}
+
+	/**
+	 * Keep a route found for a unit. Routes which stop short of where they were going, other
+	 * than on purpose, aren't kept.
+	 * @param unit unit which was routed
+	 * @param endX x coordinate of the destination
+	 * @param endY y coordinate of the destination
+	 * @param path points of the route, starting at the unit
+	 * @param partial whether the route only covers the first leg of the way to the destination
+	 */
+	public synchronized void put(GameObject unit, int endX, int endY, List<Point> path, boolean partial){
+		if(path.size() < 2)
+			return;
+		Point last = path.get(path.size() - 1);
+		if(!partial && (last.x != endX || last.y != endY))
+			return;
+
+		int radius = unit.getUnitShape() == null ? 0 : unit.getUnitShape().getRadius();
+		Entry entry = new Entry();
+		entry.cells = new int[path.size()];
+		entry.partial = partial;
+		entry.radius = radius;
+		entry.minX = entry.minY = Integer.MAX_VALUE;
+		entry.maxX = entry.maxY = Integer.MIN_VALUE;
+		for(int i = 0; i < path.size(); i++){
+			Point p = path.get(i);
+			entry.cells[i] = p.x * n + p.y;
+			entry.minX = Math.min(entry.minX, p.x - radius);
+			entry.minY = Math.min(entry.minY, p.y - radius);
+			entry.maxX = Math.max(entry.maxX, p.x + radius);
+			entry.maxY = Math.max(entry.maxY, p.y + radius);
+		}
+
+		Point first = path.get(0);
+		entries.put(key(unit, first.x, first.y, endX, endY), entry);
+	}
+
+	/**
+	 * Drop the routes passing under a static object which was placed or removed
+	 */
+	public synchronized void staticObjectChanged(int minX, int minY, int maxX, int maxY){
+		Iterator<Entry> itr = entries.values().iterator();
+		while(itr.hasNext()){
+			Entry entry = itr.next();
+			if(entry.maxX < minX || entry.minX > maxX || entry.maxY < minY || entry.minY > maxY)
+				continue;
+
+			/* Only drop the route if the unit actually covers part of the changed area somewhere along it */
+			int radius = entry.radius;
+			for(int cell : entry.cells){
+				int x = cell / n, y = cell % n;
+				if(x + radius >= minX && x - radius <= maxX && y + radius >= minY && y - radius <= maxY){
+					itr.remove();
+					invalidations++;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached route
+	 */
+	public synchronized void clear(){
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups which found nothing usable
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * Get the number of routes dropped to make room for newer ones
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * Get the number of routes dropped because a static object was placed or removed along them
+	 */
+	public synchronized long getInvalidations(){
+		return invalidations;
+	}
+
+	/**
+	 * Get the number of routes in the cache
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Build the key of a route
+	 */
+	private Key key(GameObject unit, int startX, int startY, int endX, int endY){
+		int regionsPerRow = (n + REGION_SIZE - 1) / REGION_SIZE;
+		int region = (startX / REGION_SIZE) * regionsPerRow + startY / REGION_SIZE;
+		return new Key(region, endX * n + endY, unit.getUnitShape());
+	}
+}
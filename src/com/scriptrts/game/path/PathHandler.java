@@ -1,94 +1,551 @@
-package com.scriptrts.game.path;
-
-import java.awt.Point;
-import java.util.LinkedList;
-import java.util.Queue;
-
-import com.scriptrts.game.GameObject;
-import com.scriptrts.game.GameMap;
-import com.scriptrts.game.MapGrid;
-
-
-public class PathHandler{
-	
-	/**
-	 * Queue of pathfinders that units can call upon when they need to find a route
-	 */
-	private Queue<Pathfinder> pathfinders;
-	
-	/**
-	 * Overflow of units to route, if there are more units to route than pathfinders available
-	 */
-	private Queue<GameObject> unitsToRoute;
-	
-	/**
-	 * Overflow of corresponding destinations
-	 */
-	private Queue<Point> destinations;
-	
-	/**
-	 * Create a new path handler
-	 */
-	public PathHandler(){
-		pathfinders = new LinkedList<Pathfinder>();
-		unitsToRoute = new LinkedList<GameObject>();
-		destinations = new LinkedList<Point>();
-	}
-	
-	/**
-	 * Set the number of pathfinders that units can use
-	 * @param n number of pathfinders
-	 */
-	public void setNumPathfinders(int n){
-		for(int i = 0; i < n; i++){
-			Pathfinder finder = new Pathfinder();
-			finder.setPathHandler(this);
-			pathfinders.add(finder);
-		}		
-	}
-	
-	/**
-	 * Whether or not there are any more available pathfinders
-	 * @return whether or not there are any more available pathfinders for units to use
-	 */
-	public boolean isEmpty(){
-		return pathfinders.isEmpty();
-	}
-	
-	/**
-	 * Add a pathfinder
-	 * @param pathfinder pathfinder to add
-	 */
-	public void add(Pathfinder pathfinder){
-		pathfinders.add(pathfinder);
-	}
-	
-	/**
-	 * Remove the first available (not currently being used) pathfinder
-	 * @return first available pathfinder
-	 */
-	public Pathfinder remove(){
-		return pathfinders.poll();
-	}
-	
-	/**
-	 * Add an overflow path to route
-	 * @param unit unit to route path for
-	 * @param end destination for unit
-	 */
-	public void addPath(GameObject unit, Point end){
-		unitsToRoute.add(unit);
-		destinations.add(end);
-	}
-	
-	/**
-	 * Update the path handler to route next overflow route
-	 */
-	public void update(){
-		if(!this.isEmpty() && !unitsToRoute.isEmpty()){
-			GameObject unit = unitsToRoute.poll();
-			Point end = destinations.poll();
-			unit.getUnit().setDestination(end);
-		}
-	}
-}
+package com.scriptrts.game.path;
+
+import java.awt.Point;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
+import com.scriptrts.game.TerrainType;
+
+/**
+ * Routes units for the game. Requests are routed by a set of worker threads, normally shared with
+ * every other game in the JVM, each borrowing one of this game's pathfinders for the request it
+ * is routing. Each unit has at most one request waiting at a time: asking to
+ * route a unit again supersedes its earlier request, whether that is still queued or already
+ * being searched for. Routes are handed back to the game thread and given to their units at the
+ * next tick, so units and the unit grid are only changed by the game thread.
+ *
+ * The workers search a snapshot of the unit grid which the game thread publishes once a tick, so
+ * a search never sees units halfway through moving. A unit may take a step while it is routed,
+ * so when its route is handed out it is joined from wherever the unit has got to.
+ *
+ * Instead of worker threads, the handler can route units on the game thread, a few searches at a
+ * time, with a budget of cells to expand each tick shared between them. A search which doesn't
+ * finish in one tick carries on where it left off the next tick, and its unit is given the first
+ * steps towards the most promising cell reached so far to walk in the meantime.
+ *
+ * Units can also plan their next few steps around each other with a cooperative planner, so
+ * crowds take turns through narrow places instead of stalling and having their paths repaired.
+ */
+public class PathHandler{
+	
+	/**
+	 * Game whose units are routed
+	 */
+	private HeadlessGame game;
+	
+	/**
+	 * Worker threads routing units, or null if units aren't routed by workers
+	 */
+	private PathWorkers workers;
+
+	/**
+	 * Pathfinders free for a worker to route with
+	 */
+	private Queue<Pathfinder> pathfinders;
+
+	/**
+	 * Requests waiting to be searched for on the game thread, or never to be searched for if
+	 * units aren't routed there either
+	 */
+	private PriorityBlockingQueue<PathRequest> requests;
+
+	/**
+	 * Latest request for each unit which hasn't been given its route yet. Any other request for
+	 * the unit has been superseded or cancelled, and is dropped.
+	 */
+	private Map<GameObject, PathRequest> pending;
+
+	/**
+	 * Requests whose route has been found, waiting to be handed to their units by the game thread
+	 */
+	private Queue<PathRequest> completed;
+
+	/**
+	 * Number of requests made so far
+	 */
+	private long sequence;
+
+	/**
+	 * Costs of stepping onto each cell, read by every search routing the game's units
+	 */
+	private TerrainCosts terrain;
+
+	/**
+	 * Abstract graph shared by the pathfinders for routing across the map
+	 */
+	private ClusterGraph clusters;
+
+	/**
+	 * Most routes kept in the path cache
+	 */
+	private static final int CACHE_CAPACITY = 256;
+
+	/**
+	 * Cache of routes shared by the pathfinders
+	 */
+	private PathCache cache;
+
+	/**
+	 * Repairs the paths of units which get blocked on the way
+	 */
+	private PathRepairer repairer;
+
+	/**
+	 * Index of where units can get to, shared by the pathfinders
+	 */
+	private ReachabilityIndex reachability;
+
+	/**
+	 * Number of steps along a route looked at for where a unit which moved while it was routed has got to
+	 */
+	private static final int RECONCILE_STEPS = 2 * MapGrid.SPACES_PER_TILE;
+
+	/**
+	 * Number of steps a unit is given to walk while its route is still being searched for
+	 */
+	private static final int PROVISIONAL_STEPS = 2;
+
+	/**
+	 * Number of cells the searches on the game thread may expand each tick, or zero if units
+	 * are routed by worker threads
+	 */
+	private int expansionBudget;
+
+	/**
+	 * Pathfinders searching on the game thread
+	 */
+	private Pathfinder[] slices = new Pathfinder[0];
+
+	/**
+	 * Request each pathfinder on the game thread is searching for, or null if it is free
+	 */
+	private PathRequest[] sliced = new PathRequest[0];
+
+	/**
+	 * Planner of units' next few steps around each other, or null if units step as soon as they can
+	 */
+	private CooperativePlanner cooperative;
+	
+	/**
+	 * Create a new path handler
+	 * @param game game whose units are routed
+	 */
+	public PathHandler(HeadlessGame game){
+		this.game = game;
+		pathfinders = new ConcurrentLinkedQueue<Pathfinder>();
+		requests = new PriorityBlockingQueue<PathRequest>();
+		pending = new ConcurrentHashMap<GameObject, PathRequest>();
+		completed = new ConcurrentLinkedQueue<PathRequest>();
+		terrain = new TerrainCosts(game.getCurrentMap());
+		clusters = new ClusterGraph(game.getGameGrid());
+		cache = new PathCache(game.getGameGrid(), CACHE_CAPACITY);
+		repairer = new PathRepairer(game.getGameGrid());
+		repairer.setTerrainCosts(terrain);
+		reachability = new ReachabilityIndex(game.getGameGrid());
+	}
+	
+	/**
+	 * Route units on a set of worker threads, which may be shared with other games. Requests
+	 * already waiting are handed to the workers.
+	 * @param workers workers to route units on
+	 */
+	public synchronized void setWorkers(PathWorkers workers){
+		shutdown();
+		this.workers = workers;
+		PathRequest request;
+		while((request = requests.poll()) != null)
+			workers.submit(request);
+	}
+
+	/**
+	 * Route a request on a worker thread, with a pathfinder nobody else is using. Requests
+	 * superseded while they were waiting are skipped.
+	 * @param request request to route
+	 */
+	void route(PathRequest request){
+		if(pending.get(request.unit) != request)
+			return;
+
+		Pathfinder pathfinder = pathfinders.poll();
+		if(pathfinder == null)
+			pathfinder = createPathfinder();
+		try {
+			pathfinder.findRoute(request.unit, request.startX, request.startY, request.endX, request.endY);
+			request.path = pathfinder.getDirections();
+			request.partial = pathfinder.isPartial();
+			completed.add(request);
+		} catch(RuntimeException e){
+			e.printStackTrace();
+			pending.remove(request.unit, request);
+		} finally {
+			pathfinder.reset();
+			pathfinders.add(pathfinder);
+		}
+	}
+
+	/**
+	 * Route units on the game thread instead of on worker threads, which are stopped. Each tick
+	 * the searches under way share a budget of cells to expand, so routing takes about the same
+	 * time every tick however many units are waiting.
+	 * @param searches number of searches under way at once
+	 * @param budget number of cells the searches may expand each tick
+	 */
+	public synchronized void setTimeSlicing(int searches, int budget){
+		shutdown();
+		for(int i = 0; i < sliced.length; i++)
+			if(sliced[i] != null)
+				requests.add(sliced[i]);
+
+		slices = new Pathfinder[searches];
+		sliced = new PathRequest[searches];
+		for(int i = 0; i < searches; i++)
+			slices[i] = createPathfinder();
+		expansionBudget = budget;
+	}
+
+	/**
+	 * Turn cooperative planning on or off. While it is on, units plan their next few steps
+	 * around each other's reservations of the cells they will cover, waiting or stepping aside
+	 * to let each other by.
+	 * @param on whether units plan cooperatively
+	 */
+	public void setCooperative(boolean on){
+		if(on && cooperative == null)
+			cooperative = new CooperativePlanner(game);
+		else if(!on && cooperative != null){
+			game.getGameGrid().setStepListener(null);
+			cooperative = null;
+		}
+	}
+
+	/**
+	 * Get the cooperative planner, which also keeps count of how often it plans and holds units back
+	 * @return cooperative planner, or null if units don't plan cooperatively
+	 */
+	public CooperativePlanner getCooperativePlanner(){
+		return cooperative;
+	}
+
+	/**
+	 * Create a pathfinder sharing the handler's terrain costs, cluster graph, path cache and reachability index
+	 */
+	private Pathfinder createPathfinder(){
+		Pathfinder finder = new Pathfinder(game);
+		finder.setTerrainCosts(terrain);
+		finder.setClusterGraph(clusters);
+		finder.setPathCache(cache);
+		finder.setReachabilityIndex(reachability);
+		finder.setUseSnapshots(true);
+		return finder;
+	}
+
+	/**
+	 * Stop routing units on worker threads. Requests still waiting are taken back from the
+	 * workers, and are never routed unless units are then routed some other way.
+	 */
+	public synchronized void shutdown(){
+		if(workers == null)
+			return;
+		requests.addAll(workers.drain(this));
+		workers = null;
+		pathfinders.clear();
+	}
+	
+	/**
+	 * Set the cost of stepping onto one type of terrain, for every route found from now on.
+	 * Routes in the path cache were found with the old costs, so they are dropped.
+	 * @param type type of terrain
+	 * @param cost cost of stepping onto a unit tile of that terrain, from 1 to 127
+	 */
+	public void setTerrainCost(TerrainType type, int cost){
+		terrain.setCost(type, cost);
+		cache.clear();
+	}
+
+	/**
+	 * Get the costs of stepping onto each cell, shared by every search routing the game's units
+	 * @return terrain costs
+	 */
+	public TerrainCosts getTerrainCosts(){
+		return terrain;
+	}
+
+	/**
+	 * Get the abstract graph used to route across the map
+	 * @return cluster graph
+	 */
+	public ClusterGraph getClusterGraph(){
+		return clusters;
+	}
+
+	/**
+	 * Get the cache of routes shared by the pathfinders, which also keeps count of how often it is used
+	 * @return path cache
+	 */
+	public PathCache getPathCache(){
+		return cache;
+	}
+
+	/**
+	 * Get the index of where units can get to
+	 * @return reachability index
+	 */
+	public ReachabilityIndex getReachabilityIndex(){
+		return reachability;
+	}
+
+	/**
+	 * Get the repairer of blocked units' paths, which also keeps count of how often it repairs them
+	 * @return path repairer
+	 */
+	public PathRepairer getPathRepairer(){
+		return repairer;
+	}
+
+	/**
+	 * Create a flow field to lead a group of units to the same destination, so the group doesn't
+	 * need a search per unit. Nothing is searched until the first unit of the group reads it.
+	 * @param destination where the group is going
+	 * @param group units being sent there
+	 * @return flow field, or null if fewer than two of the units can follow one
+	 */
+	public FlowField createFlowField(Point destination, List<GameObject> group){
+		int followers = 0;
+		for(GameObject unit : group)
+			if(unit.getUnit().isStandard() && unit.getUnitShape() != null && unit.getUnitShape().getRadius() == 0)
+				followers++;
+		if(followers < 2)
+			return null;
+
+		return new FlowField(game.getGameGrid(), terrain, destination.x, destination.y, group);
+	}
+
+	/**
+	 * Ask for a unit to be routed to a destination. Any earlier request for the unit which hasn't
+	 * been given its route yet is superseded.
+	 * @param unit unit to route
+	 * @param end destination for unit
+	 */
+	public synchronized void requestPath(GameObject unit, Point end){
+		long number = (workers != null) ? workers.nextSequence() : sequence++;
+		PathRequest request = new PathRequest(this, unit, end.x, end.y, number);
+		PathRequest previous = pending.put(unit, request);
+		if(previous != null)
+			unqueue(previous);
+		if(workers != null)
+			workers.submit(request);
+		else
+			requests.add(request);
+	}
+
+	/**
+	 * Cancel the request for a unit, if it has one. Its route won't be given to it even if it is
+	 * already being searched for.
+	 * @param unit unit whose request to cancel
+	 */
+	public synchronized void cancel(GameObject unit){
+		PathRequest previous = pending.remove(unit);
+		if(previous != null)
+			unqueue(previous);
+		repairer.forget(unit);
+		if(cooperative != null)
+			cooperative.forget(unit);
+	}
+
+	/**
+	 * Whether a unit is waiting for a route
+	 * @param unit unit to check
+	 * @return true if the unit has a request which hasn't been given its route yet
+	 */
+	public boolean isPending(GameObject unit){
+		return pending.containsKey(unit);
+	}
+
+	/**
+	 * Get the number of this game's requests waiting to be routed
+	 * @return number of queued requests
+	 */
+	public synchronized int getQueuedCount(){
+		return requests.size() + ((workers != null) ? workers.getQueuedCount(this) : 0);
+	}
+
+	/**
+	 * Take a request out of whichever queue it is waiting in
+	 * @param request request to remove
+	 */
+	private void unqueue(PathRequest request){
+		if(!requests.remove(request) && workers != null)
+			workers.remove(request);
+	}
+	
+	/**
+	 * Give the routes found since the last tick to their units, and publish where the units are
+	 * now for the searches to come. Called by the game thread once every tick; routes for
+	 * requests which were superseded or cancelled are dropped, and units which have strayed
+	 * from their route while it was searched for are routed again.
+	 */
+	public void update(){
+		game.getGameGrid().publishSnapshot();
+		if(cooperative != null)
+			cooperative.tick();
+		if(expansionBudget > 0)
+			routeSliced();
+
+		PathRequest request;
+		while((request = completed.poll()) != null){
+			if(!pending.remove(request.unit, request))
+				continue;
+
+			repairer.forget(request.unit);
+			Path path = reconcile(request);
+			if(path == null){
+				requestPath(request.unit, new Point(request.endX, request.endY));
+				continue;
+			}
+			request.unit.setPath(path);
+			request.unit.getUnit().setRoutePartial(request.partial);
+		}
+	}
+
+	/**
+	 * Spend this tick's budget of cell expansions on the searches on the game thread, sharing it
+	 * evenly between the searches under way. Budget left over by searches which finish is shared
+	 * out again, and free pathfinders take the next requests as they go.
+	 */
+	private void routeSliced(){
+		int remaining = expansionBudget;
+		while(remaining > 0){
+			remaining -= startSliced(remaining);
+			int active = 0;
+			for(PathRequest request : sliced)
+				if(request != null)
+					active++;
+			if(active == 0 || remaining <= 0)
+				break;
+
+			int share = Math.max(1, remaining / active);
+			for(int i = 0; i < sliced.length && remaining > 0; i++){
+				PathRequest request = sliced[i];
+				if(request == null)
+					continue;
+
+				/* Drop searches for requests superseded or cancelled since they started */
+				Pathfinder finder = slices[i];
+				if(pending.get(request.unit) != request){
+					finder.reset();
+					sliced[i] = null;
+					continue;
+				}
+
+				int before = finder.getExpanded();
+				boolean done = finder.continueRoute(Math.min(share, remaining));
+				remaining -= finder.getExpanded() - before;
+				if(done){
+					completeSliced(request, finder);
+					sliced[i] = null;
+				}
+			}
+		}
+
+		/* Let units whose search carries on into the next tick start along the most promising way found so far */
+		for(int i = 0; i < sliced.length; i++){
+			PathRequest request = sliced[i];
+			if(request == null || request.provisional)
+				continue;
+			request.provisional = true;
+
+			GameObject unit = request.unit;
+			if(unit.getPath().isEmpty() && unit.getDirection() == null
+					&& unit.getUnit().getX() == request.startX && unit.getUnit().getY() == request.startY){
+				Path steps = slices[i].getProvisionalDirections(PROVISIONAL_STEPS);
+				if(!steps.isEmpty())
+					unit.setPath(steps);
+			}
+		}
+	}
+
+	/**
+	 * Give each free pathfinder on the game thread the next request waiting, if any, while there
+	 * is budget left. Requests answered straight away, such as from the path cache, don't take
+	 * up a pathfinder.
+	 * @param budget number of cells which may still be expanded this tick
+	 * @return number of cells expanded starting the searches
+	 */
+	private int startSliced(int budget){
+		int spent = 0;
+		for(int i = 0; i < sliced.length; i++){
+			PathRequest request;
+			while(sliced[i] == null && spent < budget && (request = requests.poll()) != null){
+				if(pending.get(request.unit) != request)
+					continue;
+
+				Pathfinder finder = slices[i];
+				boolean done = finder.startRoute(request.unit, request.startX, request.startY, request.endX, request.endY);
+				spent += finder.getExpanded();
+				if(done)
+					completeSliced(request, finder);
+				else
+					sliced[i] = request;
+			}
+		}
+		return spent;
+	}
+
+	/**
+	 * Hand in the route found for a request on the game thread, and free its pathfinder
+	 */
+	private void completeSliced(PathRequest request, Pathfinder finder){
+		request.path = finder.getDirections();
+		request.partial = finder.isPartial();
+		completed.add(request);
+		finder.reset();
+	}
+
+	/**
+	 * Fit a route to where its unit is now, which may not be where the route starts if the unit
+	 * finished a step while the route was searched for
+	 * @param request request whose route was found
+	 * @return directions from where the unit is now, or null if the unit isn't on or next to the start of the route
+	 */
+	private Path reconcile(PathRequest request){
+		int x = request.unit.getUnit().getX(), y = request.unit.getUnit().getY();
+		if(request.path.isEmpty() || (x == request.startX && y == request.startY))
+			return request.path;
+
+		/* Join the route where the unit stands on it, or else at the farthest cell next to the unit */
+		int px = request.startX, py = request.startY;
+		int join = -1, joinX = 0, joinY = 0;
+		for(int step = 0; step <= RECONCILE_STEPS; step++){
+			if(Math.abs(px - x) <= 1 && Math.abs(py - y) <= 1){
+				join = step;
+				joinX = px;
+				joinY = py;
+				if(px == x && py == y)
+					break;
+			}
+			if(step == request.path.size())
+				break;
+			Direction d = request.path.get(step);
+			px += MapGrid.getOffsetX(d);
+			py += MapGrid.getOffsetY(d);
+		}
+		if(join < 0)
+			return null;
+
+		/* Step onto the route if the unit is beside it, then follow the rest of it */
+		Path path = new Path(request.path.size() - join + 1);
+		if(joinX != x || joinY != y)
+			path.add(MapGrid.getDirection(joinX - x, joinY - y));
+		path.append(request.path, join);
+		return path;
+	}
+}
@@ -0,0 +1,248 @@
+package com.scriptrts.game.path;
+
+import java.awt.Point;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
+
+/**
+ * Repairs the paths of units whose next step is blocked, instead of throwing the path away.
+ * A blocked unit first waits a few ticks, since most of the time the way is blocked by another
+ * unit which is about to move on. If it is still blocked, a D* Lite search finds a way around to
+ * a cell further along its path, and the unit takes the detour and then the rest of its path.
+ * The search is kept while the unit walks towards that cell, so if the unit is blocked again
+ * on the way only the part of the search affected by the cells which changed is redone.
+ *
+ * A unit which stays blocked for too long, or which doesn't fit in the same places whichever way
+ * it faces, is routed to its destination again from scratch.
+ */
+public class PathRepairer implements MapGrid.BlockedUnitListener {
+	/**
+	 * Number of ticks a unit waits for the way to clear before looking for a way around
+	 */
+	private static final int REPAIR_AFTER = 3;
+
+	/**
+	 * Number of ticks a unit stays blocked before it is routed again from scratch
+	 */
+	private static final int GIVE_UP_AFTER = 40;
+
+	/**
+	 * Number of steps ahead on the path the detour rejoins it
+	 */
+	private static final int REPAIR_LENGTH = 2 * ClusterGraph.CLUSTER_SIZE;
+
+	/**
+	 * Distance the search window extends beyond the part of the path being repaired
+	 */
+	private static final int MARGIN = 3 * MapGrid.SPACES_PER_TILE;
+
+	/**
+	 * Distance around the unit within which cells are looked at again when it is blocked
+	 */
+	private static final int SENSOR_RANGE = 2;
+
+	/**
+	 * Repair under way for one unit
+	 */
+	private static class Repair {
+		/**
+		 * Path the unit had when it was last blocked, or was given by the repair
+		 */
+		Path path;
+
+		/**
+		 * Where the unit was when it was last blocked
+		 */
+		int x, y;
+
+		/**
+		 * Number of ticks the unit has been blocked at that spot
+		 */
+		int blocked;
+
+		/**
+		 * Search towards the cell where the detour rejoins the path, or null if there is none yet
+		 */
+		IncrementalSearch search;
+
+		/**
+		 * Number of directions left on the path once the unit reaches that cell
+		 */
+		int rest;
+	}
+
+	/**
+	 * Unit grid the units are on
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Costs of stepping onto the cells of the unit grid, or null if every step costs the same
+	 */
+	private TerrainCosts terrain;
+
+	/**
+	 * Repairs under way, by unit
+	 */
+	private Map<GameObject, Repair> repairs;
+
+	/**
+	 * Number of paths repaired, and how many of those reused an earlier search
+	 */
+	private long repaired, reused;
+
+	/**
+	 * Number of units routed again from scratch after being blocked for too long
+	 */
+	private long rerouted;
+
+	/**
+	 * Create a new path repairer and start listening for blocked units
+	 * @param grid unit grid the units are on
+	 */
+	public PathRepairer(MapGrid grid){
+		this.grid = grid;
+		repairs = new HashMap<GameObject, Repair>();
+		grid.setBlockedUnitListener(this);
+	}
+
+	/**
+	 * Set the terrain costs detours are found with
+	 * @param terrain costs of stepping onto the cells of the unit grid, or null if every step costs the same
+	 */
+	public void setTerrainCosts(TerrainCosts terrain){
+		this.terrain = terrain;
+	}
+
+	/**
+	 * Deal with a unit whose next step is blocked. Called by the game thread.
+	 * @return true if the unit keeps a path, false if it should stop
+	 */
+	public boolean unitBlocked(GameObject unit){
+		Path path = unit.getPath();
+		int x = unit.getUnit().getX(), y = unit.getUnit().getY();
+
+		Repair repair = repairs.get(unit);
+		if(repair == null || repair.path != path){
+			repair = new Repair();
+			repair.path = path;
+			repairs.put(unit, repair);
+		}
+		if(repair.x != x || repair.y != y || repair.blocked == 0){
+			repair.x = x;
+			repair.y = y;
+			repair.blocked = 0;
+		}
+		repair.blocked++;
+
+		if(repair.blocked < REPAIR_AFTER)
+			return true;
+
+		boolean repairable = unit.getUnitShape() != null && unit.getUnitShape().isSymmetric();
+		if(repair.blocked >= GIVE_UP_AFTER || !repairable){
+			repairs.remove(unit);
+			Point destination = unit.getUnit().getDestination();
+			if(destination == null)
+				return false;
+			rerouted++;
+			unit.getUnit().setDestination(destination);
+			return true;
+		}
+
+		/* Start a new search unless the unit is still on its way to the cell the last one was towards, and that cell is still free */
+		boolean fresh = repair.search == null || path.size() <= repair.rest || !repair.search.contains(x, y) || !repair.search.isGoalOpen();
+		if(fresh && !startSearch(unit, repair))
+			return true;
+
+		int range = SENSOR_RANGE + unit.getUnitShape().getRadius();
+		if(!repair.search.update(x, y, range))
+			return true;
+		Path detour = repair.search.getPath();
+		if(detour == null)
+			return true;
+
+		/* Take the detour, then whatever was left of the path after the cell it rejoins */
+		Path repairedPath = new Path(detour.size() + repair.rest);
+		repairedPath.append(detour, 0);
+		repairedPath.append(path, path.size() - repair.rest);
+
+		repaired++;
+		if(!fresh)
+			reused++;
+		repair.path = repairedPath;
+		repair.blocked = 0;
+		unit.setPath(repairedPath);
+		return true;
+	}
+
+	/**
+	 * Set up a search towards a cell further along a unit's path. The search heads for the first
+	 * free cell at least REPAIR_LENGTH steps ahead, or the end of the path.
+	 * @return false if the path is too short to repair
+	 */
+	private boolean startSearch(GameObject unit, Repair repair){
+		Path path = repair.path;
+		int x = unit.getUnit().getX(), y = unit.getUnit().getY();
+		int minX = x, minY = y, maxX = x, maxY = y;
+
+		int steps = 0;
+		for(Direction d : path){
+			if(steps >= REPAIR_LENGTH && grid.canPlaceUnit(unit, x, y, Direction.North))
+				break;
+			/* Only repair the part of the path which stays on the grid */
+			if(!grid.contains(x + MapGrid.getOffsetX(d), y + MapGrid.getOffsetY(d)))
+				break;
+			x += MapGrid.getOffsetX(d);
+			y += MapGrid.getOffsetY(d);
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			steps++;
+		}
+		if(steps == 0)
+			return false;
+
+		int n = grid.getSize();
+		int x0 = Math.max(0, minX - MARGIN), y0 = Math.max(0, minY - MARGIN);
+		int width = Math.min(n, maxX + MARGIN + 1) - x0, height = Math.min(n, maxY + MARGIN + 1) - y0;
+		TerrainCosts.Table costs = (terrain == null) ? null : terrain.getTable();
+		repair.search = new IncrementalSearch(grid, costs, unit, x0, y0, width, height, x, y);
+		repair.rest = path.size() - steps;
+		return true;
+	}
+
+	/**
+	 * Forget any repair under way for a unit
+	 * @param unit unit which was given a new path or removed from the game
+	 */
+	public void forget(GameObject unit){
+		repairs.remove(unit);
+	}
+
+	/**
+	 * Get the number of paths repaired
+	 */
+	public long getRepairCount(){
+		return repaired;
+	}
+
+	/**
+	 * Get the number of repairs which reused the search from an earlier repair
+	 */
+	public long getReusedCount(){
+		return reused;
+	}
+
+	/**
+	 * Get the number of units routed again from scratch after being blocked for too long
+	 */
+	public long getReroutedCount(){
+		return rerouted;
+	}
+}
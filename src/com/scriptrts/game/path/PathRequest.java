@@ -0,0 +1,86 @@
+package com.scriptrts.game.path;
+
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.Path;
+
+/**
+ * Request to route a unit, queued by the path handler of its game until a pathfinder worker is free. Requests
+ * are taken shortest first, but every request also counts as one step longer for each request
+ * made before it, so long routes still get their turn.
+ */
+class PathRequest implements Comparable<PathRequest> {
+	/**
+	 * Path handler of the game whose unit is routed
+	 */
+	final PathHandler handler;
+
+	/**
+	 * Unit to route
+	 */
+	final GameObject unit;
+
+	/**
+	 * Where the unit was when the request was made, which is where the route starts
+	 */
+	final int startX, startY;
+
+	/**
+	 * Destination of the route
+	 */
+	final int endX, endY;
+
+	/**
+	 * Order in which requests were made
+	 */
+	final long sequence;
+
+	/**
+	 * Order in which requests are taken, lowest first
+	 */
+	final long priority;
+
+	/**
+	 * Directions of the route found, filled in by the worker
+	 */
+	Path path;
+
+	/**
+	 * Whether the route found only covers the first leg of the way to the destination
+	 */
+	boolean partial;
+
+	/**
+	 * Whether the unit has been given the first steps of the route before the search was over
+	 */
+	boolean provisional;
+
+	/**
+	 * Create a new path request
+	 * @param handler path handler of the unit's game
+	 * @param unit unit to route
+	 * @param endX x coordinate of the destination
+	 * @param endY y coordinate of the destination
+	 * @param sequence number of requests made before this one
+	 */
+	PathRequest(PathHandler handler, GameObject unit, int endX, int endY, long sequence){
+		this.handler = handler;
+		this.unit = unit;
+		this.startX = unit.getUnit().getX();
+		this.startY = unit.getUnit().getY();
+		this.endX = endX;
+		this.endY = endY;
+		this.sequence = sequence;
+
+		int distance = Math.max(Math.abs(endX - startX), Math.abs(endY - startY));
+		priority = sequence + distance;
+	}
+
+	/**
+	 * Compare the order in which two requests should be taken
+	 */
+	public int compareTo(PathRequest other){
+		if(priority != other.priority)
+			return priority < other.priority ? -1 : 1;
+		return Long.compare(sequence, other.sequence);
+	}
+}
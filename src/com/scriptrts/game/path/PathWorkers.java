@@ -0,0 +1,170 @@
+package com.scriptrts.game.path;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of worker threads routing units for any number of games. Requests from every game
+ * wait in one queue, each tagged with the path handler of its game, and a worker borrows a
+ * pathfinder from that handler to route it. A game so only keeps as many pathfinders as there
+ * are workers routing its units at once, and none while it has nothing to route. One set of
+ * workers is normally shared by every game in the JVM.
+ */
+public class PathWorkers {
+	/**
+	 * Number of workers in the pool shared by the JVM
+	 */
+	private static final int COMMON_WORKERS = 10;
+
+	/**
+	 * Pool shared by the JVM, or null until it is first asked for
+	 */
+	private static PathWorkers common;
+
+	/**
+	 * Worker threads routing units
+	 */
+	private List<Worker> workers;
+
+	/**
+	 * Requests from every game waiting for a worker
+	 */
+	private PriorityBlockingQueue<PathRequest> requests;
+
+	/**
+	 * Number of requests made so far, by every game
+	 */
+	private AtomicLong sequence;
+
+	/**
+	 * Worker thread routing units for whichever game the next request comes from
+	 */
+	private class Worker extends Thread {
+		/**
+		 * Create a new worker
+		 * @param name name of the thread
+		 */
+		public Worker(String name){
+			super(name);
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		/**
+		 * Route units until interrupted
+		 */
+		public void run(){
+			while(!isInterrupted()){
+				PathRequest request;
+				try {
+					request = requests.take();
+				} catch(InterruptedException e){
+					return;
+				}
+				request.handler.route(request);
+			}
+		}
+	}
+
+	/**
+	 * Create and start a new set of workers
+	 * @param threads number of worker threads
+	 */
+	public PathWorkers(int threads){
+		workers = new ArrayList<Worker>();
+		requests = new PriorityBlockingQueue<PathRequest>();
+		sequence = new AtomicLong();
+		for(int i = 0; i < threads; i++){
+			Worker worker = new Worker("Pathfinder-" + i);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Get the workers shared by every game in the JVM, starting them the first time
+	 * @return shared workers
+	 */
+	public static synchronized PathWorkers commonPool(){
+		if(common == null)
+			common = new PathWorkers(COMMON_WORKERS);
+		return common;
+	}
+
+	/**
+	 * Get the number of worker threads
+	 * @return number of workers
+	 */
+	public int getWorkerCount(){
+		return workers.size();
+	}
+
+	/**
+	 * Number the next request, so requests from every game are taken in a fair order
+	 * @return number of requests made before it
+	 */
+	long nextSequence(){
+		return sequence.getAndIncrement();
+	}
+
+	/**
+	 * Queue a request for the next free worker
+	 * @param request request to route
+	 */
+	void submit(PathRequest request){
+		requests.add(request);
+	}
+
+	/**
+	 * Take a request out of the queue, if it is still waiting
+	 * @param request request to remove
+	 */
+	void remove(PathRequest request){
+		requests.remove(request);
+	}
+
+	/**
+	 * Take every waiting request of one game out of the queue
+	 * @param handler path handler of the game
+	 * @return the requests taken out
+	 */
+	List<PathRequest> drain(PathHandler handler){
+		List<PathRequest> drained = new ArrayList<PathRequest>();
+		for(Iterator<PathRequest> it = requests.iterator(); it.hasNext(); ){
+			PathRequest request = it.next();
+			if(request.handler == handler && requests.remove(request))
+				drained.add(request);
+		}
+		return drained;
+	}
+
+	/**
+	 * Get the number of requests of one game waiting for a worker
+	 * @param handler path handler of the game
+	 * @return number of queued requests
+	 */
+	int getQueuedCount(PathHandler handler){
+		int count = 0;
+		for(PathRequest request : requests)
+			if(request.handler == handler)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Stop the worker threads. Requests still waiting are never routed. The pool shared by the
+	 * JVM is never stopped, since games may still be using it.
+	 */
+	public void shutdown(){
+		synchronized(PathWorkers.class){
+			if(this == common)
+				return;
+		}
+		for(Worker worker : workers)
+			worker.interrupt();
+		workers.clear();
+	}
+}
@@ -2,54 +2,133 @@ package com.scriptrts.game.path;
 
 import java.awt.Point;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Collections;
 
-import com.scriptrts.core.Main;
 import com.scriptrts.game.Direction;
 import com.scriptrts.game.GameObject;
 import com.scriptrts.game.GameMap;
+import com.scriptrts.game.HeadlessGame;
 import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.Path;
 import com.scriptrts.game.TerrainType;
 
 
-public class Pathfinder extends Thread{
+public class Pathfinder {
 	/**
-	 * Unit to find path for
+	 * Current map instance
 	 */
-	private GameObject unit;
+	private GameMap map;
 
 	/**
-	 * Current map instance
+	 * Unit grid
 	 */
-	private GameMap map = Main.getGame().getCurrentMap();
+	private MapGrid mapGrid;
 
 	/**
-	 * Terrain at each point on map
+	 * Unit grid the current search runs against: the unit grid itself, or a snapshot of it
 	 */
-	private TerrainType[][] terrainMap = map.getTileArray();
+	private MapGrid occupancy;
 
 	/**
-	 * Unit grid
+	 * Whether searches run against the latest snapshot of the unit grid instead of the grid itself
+	 */
+	private boolean useSnapshots;
+
+	/**
+	 * Costs of stepping onto the cells of the unit grid, which may be shared with other searches
+	 */
+	private TerrainCosts terrain;
+
+	/**
+	 * Whether every type of terrain costs the same to cross, as of the start of the current search
+	 */
+	private boolean uniformTerrain = true;
+
+	/**
+	 * Cost of stepping onto each cell of the unit grid, from the terrain under it, by cell index,
+	 * as of the start of the current search
+	 */
+	private byte[] stepCosts;
+
+	/**
+	 * Cost of stepping onto the cheapest type of terrain, which scales the heuristic so it never
+	 * overestimates
 	 */
-	private MapGrid mapGrid = Main.getGame().getGameGrid();
+	private int cheapestCost = 1;
 
 	/**
-	 * Stores terrain costs
+	 * Whether to use jump point search when the terrain and unit allow it
 	 */
-	private HashMap<TerrainType, Integer> terrainValues;
+	private boolean jumpPointSearch = false;
 
 	/**
-	 * Open list of nodes to be checked
+	 * Unit being routed by the current jump point search
 	 */
-	private Node[] heap;
+	private GameObject jumper;
 
 	/**
-	 * List of nodes corresponding to each unit tile on the map
+	 * Whether the unit being routed by jump point search only covers its own tile
 	 */
-	private HashMap<Point, Node> nodeList;
+	private boolean jumperSingle;
+
+	/**
+	 * Distance beyond the start and the goal that jump point search scans. Scans stop at the edge
+	 * of this window as if it were blocked, so on open ground they don't run on to the edge of the
+	 * map; a route which has to go further round is left to A*.
+	 */
+	private static final int JUMP_MARGIN = 4;
+
+	/**
+	 * Window scanned by the current jump point search
+	 */
+	private int jumpMinX, jumpMaxX, jumpMinY, jumpMaxY;
+
+	/**
+	 * Open list of nodes to be checked, as cell indices (x * n + y)
+	 */
+	private int[] heap;
+
+	/**
+	 * Position of each open cell in the heap, indexed by cell
+	 */
+	private int[] heapIndex;
+
+	/**
+	 * Cost of the cheapest path found from the starting point to each cell, indexed by cell
+	 */
+	private int[] gCost;
+
+	/**
+	 * Estimated cost of the path from each cell to the ending point, indexed by cell
+	 */
+	private int[] hCost;
+
+	/**
+	 * Cell each cell was reached from (used for retracing the path), or -1 for the start
+	 */
+	private int[] parent;
+
+	/**
+	 * Whether each cell is on the closed list rather than the open list
+	 */
+	private boolean[] closed;
+
+	/**
+	 * Search in which each cell was last visited. The state of a cell is only valid if this
+	 * matches the current search, so resetting the pathfinder doesn't need to clear anything.
+	 */
+	private int[] visited;
+
+	/**
+	 * Current search
+	 */
+	private int generation = 1;
+
+	/**
+	 * Visited cell with the lowest H cost (closest to the end point) in the current search
+	 */
+	private int closest;
 
 	/**
 	 * Number of points in the open list
@@ -59,215 +138,686 @@ public class Pathfinder extends Thread{
 	/**
 	 * Size of unit grid
 	 */
-	private int n = map.getN() * MapGrid.SPACES_PER_TILE;
+	private int n;
 
 	/**
 	 * List of Points in path
 	 */
 	private ArrayList<Point> path;
 
+
 	/**
-	 * List of Directions in path
+	 * Buffers receiving the neighbors of the node being expanded
 	 */
-	private Queue<Direction> directions;
+	private int[] neighborX = new int[8], neighborY = new int[8], neighborDir = new int[8];
 
 	/**
-	 * End coordinates of path
+	 * All directions, indexed by ordinal
 	 */
-	private int endX, endY;
+	private static final Direction[] DIRECTIONS = Direction.values();
 
 	/**
-	 * Path handler queue used to manage this pathfinder
+	 * Number of nodes to search before giving up
 	 */
-	private PathHandler pathHandler;
+	private int threshold;
 
-	
 	/**
-	 * Number of nodes to search before giving up
+	 * Abstract graph used to route across the map one leg at a time, or null to always search the whole route
 	 */
-	private int threshold = n * n / 10;
-	
+	private ClusterGraph clusters;
+
 	/**
-	 * Create a new Pathfinder
+	 * Buffers this pathfinder searches the cluster graph with, or null until it first does
 	 */
-	public Pathfinder(){
-		heap = new Node[n * n];
-		nodeList = new HashMap<Point, Node>();
-		path = new ArrayList<Point>();
-		directions = new LinkedList<Direction>();
-		setTerrainValues();
-	}
+	private ClusterGraph.Search clusterSearch;
 
 	/**
-	 * Create a new Pathfinder
-	 * @param u unit which pathfinder is for
+	 * Whether the last route found only goes part of the way to the destination
+	 */
+	private boolean partial;
+
+	/**
+	 * Cache of routes shared by the pathfinders, or null to search for every route
+	 */
+	private PathCache cache;
+
+	/**
+	 * Index of where units can get to, used to turn routes to unreachable places into routes to
+	 * the nearest reachable place, or null to search for those too
 	 */
-	public Pathfinder(GameObject u){
-		this();
-		unit = u;
+	private ReachabilityIndex reachability;
+
+	/**
+	 * Unit being routed by the search under way, or null if no search is under way
+	 */
+	private GameObject searchUnit;
+
+	/**
+	 * Destination of the route being found
+	 */
+	private int routeEndX, routeEndY;
+
+	/**
+	 * Cell the search under way is heading for: the destination, or the end of the first leg
+	 */
+	private int goal, goalX, goalY;
+
+	/**
+	 * Number of cells the search under way has reached
+	 */
+	private int tilesChecked;
+
+	/**
+	 * Number of cells the search under way has expanded, counting finding the first leg of the
+	 * route on the cluster graph as LEG_COST cells
+	 */
+	private int expanded;
+
+	/**
+	 * Number of cells expanding which takes about as long as finding the first leg of a route on
+	 * the cluster graph, which floods the clusters of the start and the goal
+	 */
+	private static final int LEG_COST = ClusterGraph.CLUSTER_SIZE * ClusterGraph.CLUSTER_SIZE / 4;
+
+	/**
+	 * Create a new Pathfinder
+	 * @param game game whose map and unit grid to route on
+	 */
+	public Pathfinder(HeadlessGame game){
+		map = game.getCurrentMap();
+		mapGrid = game.getGameGrid();
+		occupancy = mapGrid;
+		n = map.getN() * MapGrid.SPACES_PER_TILE;
+		threshold = n * n / 10;
+
+		heap = new int[n * n];
+		heapIndex = new int[n * n];
+		gCost = new int[n * n];
+		hCost = new int[n * n];
+		parent = new int[n * n];
+		closed = new boolean[n * n];
+		visited = new int[n * n];
+		path = new ArrayList<Point>();
+		terrain = new TerrainCosts(map);
 	}
 
 	/**
 	 * Reset and clear path when done
 	 */
 	public void reset(){
-		nodeList.clear();
+		/* Abandon any search still under way */
+		searchUnit = null;
+		releaseOccupancy();
+
+		clearSearch();
 		path.clear();
-		directions = new LinkedList<Direction>();
+	}
+
+	/**
+	 * Forget every cell visited by the last search and empty the open list
+	 */
+	private void clearSearch(){
+		/* Starting a new search invalidates every visited cell at once */
+		generation++;
+		if(generation == Integer.MAX_VALUE){
+			Arrays.fill(visited, 0);
+			generation = 1;
+		}
 		count = 0;
 	}
 
 	/**
-	 * Set the terrain costs for each type of terrain
+	 * Make every type of terrain cost the same again, for every search sharing this pathfinder's terrain costs
 	 */
 	public void setTerrainValues(){
-		terrainValues = new HashMap<TerrainType, Integer>();
-		terrainValues.put(TerrainType.Grass, 1);
-		terrainValues.put(TerrainType.Dirt, 1);
-		terrainValues.put(TerrainType.Sand, 1);
-		terrainValues.put(TerrainType.Rock, 1);
-		terrainValues.put(TerrainType.Water, 1);
-		terrainValues.put(TerrainType.DeepFire, 1);
+		terrain.resetCosts();
+	}
+
+	/**
+	 * Set the cost of stepping onto one type of terrain, for every search sharing this
+	 * pathfinder's terrain costs. Once terrain types have different costs, routes take them into
+	 * account and jump point search is no longer used.
+	 * @param type type of terrain
+	 * @param cost cost of stepping onto a unit tile of that terrain, from 1 to 127
+	 */
+	public void setTerrainValue(TerrainType type, int cost){
+		terrain.setCost(type, cost);
+	}
+
+	/**
+	 * Set the terrain costs to route with, such as the ones shared by every search of a game
+	 * @param terrain costs of stepping onto the cells of the unit grid
+	 */
+	public void setTerrainCosts(TerrainCosts terrain){
+		this.terrain = terrain;
+	}
+
+	/**
+	 * Get the terrain costs this pathfinder routes with
+	 * @return costs of stepping onto the cells of the unit grid
+	 */
+	public TerrainCosts getTerrainCosts(){
+		return terrain;
+	}
+
+	/**
+	 * Choose whether to use jump point search. Jump point search finds the same kind of routes
+	 * as A* while expanding far fewer nodes, but it needs every step to cost the same and the
+	 * unit to fit in the same places whichever way it faces. Searches which don't meet those
+	 * conditions use A* regardless.
+	 * @param jump true to use jump point search where possible
+	 */
+	public void setJumpPointSearch(boolean jump){
+		jumpPointSearch = jump;
 	}
 
 	/**
-	 * Set the unit to route
+	 * Set the abstract graph used to find long routes
+	 * @param clusters cluster graph over the same unit grid, or null to always search the whole route
 	 */
-	public void setUnit(GameObject unit){
-		this.unit = unit;
+	public void setClusterGraph(ClusterGraph clusters){
+		this.clusters = clusters;
+		clusterSearch = null;
 	}
 
 	/**
-	 * Set the destination
+	 * Set the cache of routes to look in before searching, and to keep the routes found in
+	 * @param cache path cache, or null to search for every route
 	 */
-	public void setDestination(int endX, int endY){
-		this.endX = endX;
-		this.endY = endY;
+	public void setPathCache(PathCache cache){
+		this.cache = cache;
 	}
 
 	/**
-	 * Set the path handler
+	 * Set the index used to tell when a destination can't be reached, so the unit is routed to the
+	 * nearest place it can reach instead of searching until the search gives up
+	 * @param reachability reachability index over the same unit grid, or null to always search
 	 */
-	public void setPathHandler(PathHandler pathHandler){
-		this.pathHandler = pathHandler;
+	public void setReachabilityIndex(ReachabilityIndex reachability){
+		this.reachability = reachability;
 	}
 
 	/**
-	 * Calculates the route between two points
+	 * Choose whether searches run against the latest snapshot of the unit grid. Pathfinders
+	 * running on other threads than the game thread must use snapshots, since the game thread
+	 * changes the grid while they search.
+	 * @param snapshots true to search the latest snapshot, false to search the unit grid itself
+	 */
+	public void setUseSnapshots(boolean snapshots){
+		useSnapshots = snapshots;
+	}
+
+	/**
+	 * Whether the last route found only covers the first leg of the way to the destination. Once
+	 * the unit has walked it, routing it to the destination again finds the next leg.
+	 * @return true if the route stops short of the destination on purpose
+	 */
+	public boolean isPartial(){
+		return partial;
+	}
+
+	/**
+	 * Calculates the route between two points. Routes longer than a cluster are first found on the
+	 * cluster graph (if there is one), and only the first leg of the route is searched for on the
+	 * unit grid. Routes are taken from the path cache (if there is one) when they can be. If the
+	 * reachability index (if there is one) shows the end point can't be reached, the route goes
+	 * to the nearest point which can.
 	 */
 	public void findRoute(GameObject u, int endX, int endY){
+		findRoute(u, u.getUnit().getX(), u.getUnit().getY(), endX, endY);
+	}
 
-		Node start = new Node(u.getUnit().getX(), u.getUnit().getY());
-		Point end = new Point(endX, endY);
+	/**
+	 * Calculates the route from a given start point, which is where the unit was when it was
+	 * routed. Used by pathfinders searching on other threads, while the unit may be moving.
+	 */
+	public void findRoute(GameObject u, int startX, int startY, int endX, int endY){
+		try {
+			if(!startRoute(u, startX, startY, endX, endY))
+				continueRoute(Integer.MAX_VALUE);
+		} finally {
+			releaseOccupancy();
+		}
+	}
 
-		if(start.getPoint().equals(end))
-			return;
+	/**
+	 * Start routing a unit, without searching the unit grid yet. Together with continueRoute,
+	 * this lets a search be spread over several ticks: the route is the same as the one
+	 * findRoute would find. The pathfinder must be reset before it starts another route.
+	 * @return true if the route is already known (from the path cache, or because the unit is
+	 *         already there), false if continueRoute must be called until it is found
+	 */
+	public boolean startRoute(GameObject u, int startX, int startY, int endX, int endY){
+		partial = false;
+		expanded = 0;
+		occupancy = useSnapshots ? mapGrid.acquireSnapshot() : mapGrid;
+
+		/* Route with the terrain costs as they are now, even if they change before the search is over */
+		TerrainCosts.Table costs = terrain.getTable();
+		stepCosts = costs.cells;
+		cheapestCost = costs.cheapest;
+		uniformTerrain = costs.uniform;
+
+		if(reachability != null){
+			Point target = reachability.nearestReachable(u, startX, startY, endX, endY);
+			endX = target.x;
+			endY = target.y;
+		}
+		routeEndX = endX;
+		routeEndY = endY;
+
+		if(cache != null){
+			int cached = cache.get(u, startX, startY, endX, endY, occupancy, path);
+			if(cached != PathCache.MISS){
+				partial = cached == PathCache.PARTIAL;
+				releaseOccupancy();
+				return true;
+			}
+		}
+
+		/* Routes longer than a cluster only search for their first leg */
+		int target = legTarget(startX, startY, endX, endY);
+		goalX = target < 0 ? endX : target / n;
+		goalY = target < 0 ? endY : target % n;
+
+		if(!startSearch(u, startX, startY)){
+			finishRoute(u);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Carry on searching for the route started by startRoute
+	 * @param budget most cells to expand before returning
+	 * @return true if the route has been found (or the search has given up), false if there is more to search
+	 */
+	public boolean continueRoute(int budget){
+		GameObject u = searchUnit;
+		if(u == null)
+			return true;
+		if(!expand(budget))
+			return false;
+		finishRoute(u);
+		return true;
+	}
+
+	/**
+	 * Get the first steps towards the most promising cell reached so far by the search under way,
+	 * so the unit can start moving before the whole route has been found
+	 * @param steps most directions to return
+	 * @return directions from the start, which may be none
+	 */
+	public Path getProvisionalDirections(int steps){
+		Path provisional = new Path(steps);
+		if(steps <= 0 || searchUnit == null || visited[closest] != generation)
+			return provisional;
+
+		/* Walk back from the most promising cell, keeping the last few steps taken, which are the first ones from the start */
+		Direction[] first = new Direction[steps];
+		int taken = 0;
+		for(int c = closest; parent[c] >= 0; c = parent[c]){
+			int p = parent[c];
+			first[taken++ % steps] = MapGrid.getDirection(c / n - p / n, c % n - p % n);
+		}
+		for(int i = 1; i <= Math.min(taken, steps); i++)
+			provisional.add(first[(taken - i) % steps]);
+		return provisional;
+	}
+
+	/**
+	 * Get the number of cells expanded by the search so far, which also counts finding the first
+	 * leg of the route, so the cost of a route can be kept to a budget
+	 * @return cells expanded since the route was started
+	 */
+	public int getExpanded(){
+		return expanded;
+	}
+
+	/**
+	 * Finish a route once its search is over: work out whether it only covers the first leg, and
+	 * keep it in the path cache
+	 */
+	private void finishRoute(GameObject u){
+		searchUnit = null;
+		releaseOccupancy();
+
+		/* If the leg couldn't be finished there's no point carrying on from its end */
+		if(goalX != routeEndX || goalY != routeEndY){
+			Point last = path.isEmpty() ? null : path.get(path.size() - 1);
+			partial = last != null && last.x == goalX && last.y == goalY;
+		}
+
+		if(cache != null)
+			cache.put(u, routeEndX, routeEndY, path, partial);
+	}
+
+	/**
+	 * Stop searching the unit grid snapshot, if one is being searched
+	 */
+	private void releaseOccupancy(){
+		if(occupancy != mapGrid)
+			mapGrid.releaseSnapshot(occupancy);
+		occupancy = mapGrid;
+	}
+
+	/**
+	 * Find the end of the first leg of a route across the cluster graph
+	 * @return farthest waypoint within two clusters of the start, as a cell index, or -1 to search for the whole route
+	 */
+	private int legTarget(int startX, int startY, int endX, int endY){
+		if(clusters == null || Math.max(Math.abs(endX - startX), Math.abs(endY - startY)) <= ClusterGraph.CLUSTER_SIZE)
+			return -1;
+		expanded += LEG_COST;
+		if(clusterSearch == null)
+			clusterSearch = clusters.newSearch();
+		int[] waypoints = clusterSearch.findPath(startX, startY, endX, endY);
+		if(waypoints == null)
+			return -1;
+
+		/* Head for the farthest waypoint within two clusters */
+		int target = waypoints[1];
+		for(int i = 2; i < waypoints.length; i++){
+			int x = waypoints[i] / n, y = waypoints[i] % n;
+			if(Math.max(Math.abs(x - startX), Math.abs(y - startY)) > 2 * ClusterGraph.CLUSTER_SIZE)
+				break;
+			target = waypoints[i];
+		}
+		return target;
+	}
+
+	/**
+	 * Start searching the unit grid for a route from a point to the goal. Jump point search
+	 * isn't split up, so it is run to the end here, and A* is only started if it finds no route.
+	 * @return true if the search has been started, false if it is already over
+	 */
+	private boolean startSearch(GameObject u, int startX, int startY){
+		int endX = goalX, endY = goalY;
+		if(startX == endX && startY == endY)
+			return false;
+
+		if(jumpPointSearch && uniformTerrain && u.getUnitShape() != null && u.getUnitShape().isSymmetric()){
+			jumper = u;
+			jumperSingle = u.getUnitShape().getRadius() == 0;
+			jumpMinX = Math.max(0, Math.min(startX, endX) - JUMP_MARGIN);
+			jumpMaxX = Math.min(n - 1, Math.max(startX, endX) + JUMP_MARGIN);
+			jumpMinY = Math.max(0, Math.min(startY, endY) - JUMP_MARGIN);
+			jumpMaxY = Math.min(n - 1, Math.max(startY, endY) + JUMP_MARGIN);
+			boolean found = walkable(endX, endY) && jumpSearch(startX, startY, endX, endY);
+			jumper = null;
+			if(found)
+				return false;
+
+			/* Blocked destinations, unreachable ones and routes leaving the window are left to A* */
+			clearSearch();
+		}
+
+		int start = startX * n + startY;
+		goal = endX * n + endY;
 
 		/* Add the starting point to the open point list */
-		start.setHCost(manhattan(start.getX(), start.getY(), endX, endY));
-		start.setOpen();
-		start.setParent(null);
-		nodeList.put(start.getPoint(), start);
+		visit(start, 0, octile(startX, startY, endX, endY), -1);
 		add(start);
 
-		int tilesChecked = 1;
-		
+		tilesChecked = 1;
+		searchUnit = u;
+		return true;
+	}
+
+	/**
+	 * Expand cells of the search under way
+	 * @param budget most cells to expand
+	 * @return true if the search is over and its path has been retraced, false if the budget ran out first
+	 */
+	private boolean expand(int budget){
+		GameObject u = searchUnit;
+		int end = goal, endX = goalX, endY = goalY;
+
 		/* While the end point has not been added to the closed list */
-		while(!nodeList.containsKey(end) && tilesChecked < threshold){
+		while(visited[end] != generation && tilesChecked < threshold){
+			if(budget-- <= 0)
+				return false;
 
 			/* Find the point with the shortest path length */
-			Node next = remove();
-			if(next == null)
+			int next = remove();
+			if(next < 0)
 				break;
+			expanded++;
 
 			/* Add it to the closed list */
-			next.setClosed();
-			nodeList.put(next.getPoint(), next);
+			closed[next] = true;
 
 			/* Length of path from start point to current point */
-			int currentGCost = next.getGCost();
+			int currentGCost = gCost[next];
 
 			/* Find the neighbors of the current point */
-			Point[] neighbors = mapGrid.getNeighbors(next.getX(), next.getY());
+			int nextX = next / n, nextY = next % n;
+			int neighborCount = occupancy.getNeighbors(nextX, nextY, neighborX, neighborY, neighborDir);
 
-			for(int i = 0; i < neighbors.length; i++){
-				Point p = neighbors[i];
+			for(int i = 0; i < neighborCount; i++){
+				int px = neighborX[i], py = neighborY[i];
+				int p = px * n + py;
+				boolean seen = visited[p] == generation;
 
 				/* Only check neighbors not on the closed list */
-				if(!nodeList.containsKey(p) || nodeList.get(p).isOpen()){
+				if(!seen || !closed[p]){
 
 					/* Only check neighbors which can fit the unit shape */
-					Direction dir = mapGrid.getDirection(next.getPoint(), p);				
-					if(mapGrid.canPlaceUnit(u, next.getPoint().x, next.getPoint().y, dir) && mapGrid.canPlaceUnit(u, p.x, p.y, dir)){
-
-						/* Map tile corresponding to unit grid tile */
-						int[] mapTile = mapGrid.getMapTile(p.x, p.y);
+					Direction dir = DIRECTIONS[neighborDir[i]];
+					if(occupancy.canPlaceUnit(u, nextX, nextY, dir) && occupancy.canPlaceUnit(u, px, py, dir)){
 
-						/* Increment path length by length of path from current point to neighbor point */
-						int dlength = 1;//dist2D(next.getX(), next.getY(), p.x, p.y) * terrainValues.get(terrainMap[mapTile[0]][mapTile[1]]);
-						int newHCost = manhattan(p.x, p.y, endX, endY);
+						/* Add the cost of the step, from the terrain stepped onto and whether the step is diagonal */
+						int dlength = stepCosts[p] * TerrainCosts.DIRECTION_COSTS[neighborDir[i]];
+						int newHCost = octile(px, py, endX, endY);
 						int newGCost = currentGCost + dlength;
 
 						/* If neighbor is not on open list, add to open list and update info */
-						if(!nodeList.containsKey(p)){
-							Node newNode = new Node(p.x, p.y);
-							newNode.setGCost(newGCost);
-							newNode.setHCost(newHCost);
-							newNode.setOpen();
-							newNode.setParent(next);
-							nodeList.put(p, newNode);
-							add(newNode);
+						if(!seen){
+							visit(p, newGCost, newHCost, next);
+							add(p);
 							/* Increment number of tiles checked */
 							tilesChecked++;
 						}
 
 						/* Otherwise neighbor is on open list, so check if better path exists */
 						else{
-							/* Location in heap */
-							int loc = find(p.x,p.y);
-							Node oldNode = heap[loc];
-							int oldFCost = oldNode.getFCost();
-
 							/* If better path exists, update info */
-							if(newGCost + newHCost < oldFCost){
-								oldNode.setGCost(newGCost);
-								oldNode.setHCost(newHCost);
-								oldNode.setParent(next);
-								heapUp(loc);
+							if(newGCost + newHCost < gCost[p] + hCost[p]){
+								gCost[p] = newGCost;
+								hCost[p] = newHCost;
+								parent[p] = next;
+								/* Its cost went down, so move it up from where it is in the heap */
+								heapUp(heapIndex[p]);
 							}
 						}
 					}
-					/* If we can't place the unit at the current tile, add the current tile to the closed list */ 
-					else{
-						Node n = new Node(p.x, p.y);
+					/* If we can't place the unit at a tile we haven't reached yet, add it to the closed list */
+					else if(!seen){
 						/* Set the H cost really high so this never gets selected if we break out of the loop early */
-						n.setHCost(Integer.MAX_VALUE);
-						n.setClosed();
-						n.setParent(next);
-						nodeList.put(p, n);
+						visit(p, 0, Integer.MAX_VALUE, next);
+						closed[p] = true;
 						/* Increment number of tiles checked */
 						tilesChecked++;
 					}
 				}
 			}
 		}
-		
-		/* If we broke out of the loop because we gave up searching, pick the node on the closed list with the lowest H cost (closest to end point) */
-		if(!nodeList.containsKey(end)){
-			/* Initial value is 1 less than the value set to unreachable nodes */
-			int minHCost = Integer.MAX_VALUE - 1;
-			Node locOfMin = null;
-			for(Node n : nodeList.values()){
-				if(n.getHCost() <= minHCost){
-					minHCost = n.getHCost();
-					locOfMin = n;
+
+		/* If we broke out of the loop because we gave up searching, pick the node with the lowest H cost (closest to end point) */
+		if(visited[end] != generation)
+			retrace(closest);
+		/* Otherwise retrace path starting from endpoint */
+		else
+			retrace(end);
+		return true;
+	}
+
+	/**
+	 * Jump point search between two points. Instead of adding every neighbor to the open list,
+	 * the search scans in straight lines and only stops at cells where an obstacle opens up a new
+	 * way to go (jump points), so runs of open ground are crossed without touching the heap.
+	 * Every cell costs the same to step onto, and jump points are reached in a straight or
+	 * diagonal line, so the cost between two jump points is the octile distance between them.
+	 * @return true if the goal was reached and its route retraced, false otherwise
+	 */
+	private boolean jumpSearch(int startX, int startY, int endX, int endY){
+		int start = startX * n + startY;
+		int end = endX * n + endY;
+
+		visit(start, 0, octile(startX, startY, endX, endY), -1);
+		add(start);
+		int tilesChecked = 1;
+
+		while(visited[end] != generation && tilesChecked < threshold){
+			int next = remove();
+			if(next < 0)
+				break;
+			expanded++;
+			closed[next] = true;
+
+			int x = next / n, y = next % n;
+			int from = parent[next];
+
+			/* Directions worth searching: all of them from the start, otherwise those not covered by the parent */
+			for(int d = 0; d < 8; d++){
+				int dx = MapGrid.getOffsetX(DIRECTIONS[d]), dy = MapGrid.getOffsetY(DIRECTIONS[d]);
+				if(from >= 0 && !isSuccessorDirection(x, y, Integer.signum(x - from / n), Integer.signum(y - from % n), dx, dy))
+					continue;
+
+				int jump = (dx != 0 && dy != 0) ? jumpDiagonal(x, y, dx, dy, endX, endY) : jumpStraight(x, y, dx, dy, endX, endY);
+				if(jump < 0)
+					continue;
+
+				int jx = jump / n, jy = jump % n;
+				int newGCost = gCost[next] + octile(x, y, jx, jy);
+				int newHCost = octile(jx, jy, endX, endY);
+				if(visited[jump] != generation){
+					visit(jump, newGCost, newHCost, next);
+					add(jump);
+					tilesChecked++;
+				}
+				else if(!closed[jump] && newGCost + newHCost < fCost(jump)){
+					gCost[jump] = newGCost;
+					hCost[jump] = newHCost;
+					parent[jump] = next;
+					heapUp(heapIndex[jump]);
 				}
 			}
-			retrace(locOfMin);
 		}
-		/* Otherwise retrace path starting from endpoint */
-		else
-			retrace(nodeList.get(end));
+
+		if(visited[end] != generation)
+			return false;
+		retrace(end);
+		return true;
+	}
+
+	/**
+	 * Check whether a direction needs to be searched from a cell reached by moving in a given direction.
+	 * Moving on in the same direction (and, after a diagonal move, along either of its parts) always
+	 * does; turning does only around an obstacle which the previous cell couldn't see past.
+	 * @param px x step of the direction the cell was reached in
+	 * @param py y step of the direction the cell was reached in
+	 * @param dx x step of the direction to check
+	 * @param dy y step of the direction to check
+	 */
+	private boolean isSuccessorDirection(int x, int y, int px, int py, int dx, int dy){
+		if(px != 0 && py != 0){
+			if((dx == px && dy == py) || (dx == px && dy == 0) || (dx == 0 && dy == py))
+				return true;
+			return (dx == -px && dy == py && !walkable(x - px, y)) || (dx == px && dy == -py && !walkable(x, y - py));
+		}
+		if(dx == px && dy == py)
+			return true;
+		if(px != 0)
+			return dx == px && dy != 0 && !walkable(x, y + dy);
+		return dy == py && dx != 0 && !walkable(x + dx, y);
+	}
+
+	/**
+	 * Scan horizontally or vertically from a cell for the next jump point: the goal, or a cell
+	 * with a forced neighbor
+	 * @return the jump point's cell, or -1 if the scan runs into an obstacle first
+	 */
+	private int jumpStraight(int x, int y, int dx, int dy, int endX, int endY){
+		/* Offset of the cells on either side of the scan */
+		int sx = dy, sy = dx;
+
+		x += dx;
+		y += dy;
+		if(!walkable(x, y))
+			return -1;
+		boolean left = walkable(x + sx, y + sy), right = walkable(x - sx, y - sy);
+		while(true){
+			if(x == endX && y == endY)
+				return x * n + y;
+
+			/* An obstacle beside us which ends just ahead opens a new way around it. The cells
+			 * beside the next cell are looked at once, and kept for the next step. */
+			boolean leftAhead = walkable(x + dx + sx, y + dy + sy), rightAhead = walkable(x + dx - sx, y + dy - sy);
+			if((!left && leftAhead) || (!right && rightAhead))
+				return x * n + y;
+
+			x += dx;
+			y += dy;
+			if(!walkable(x, y))
+				return -1;
+			left = leftAhead;
+			right = rightAhead;
+		}
+	}
+
+	/**
+	 * Scan diagonally from a cell for the next jump point, looking along both straight parts of
+	 * the diagonal at every step. Only a forced neighbor or the goal along those looks makes the
+	 * cell a jump point; open ground doesn't, or every diagonal step would be one.
+	 * @return the jump point's cell, or -1 if the scan runs into an obstacle first
+	 */
+	private int jumpDiagonal(int x, int y, int dx, int dy, int endX, int endY){
+		while(true){
+			x += dx;
+			y += dy;
+			if(!walkable(x, y))
+				return -1;
+			if(x == endX && y == endY)
+				return x * n + y;
+
+			if((!walkable(x - dx, y) && walkable(x - dx, y + dy)) || (!walkable(x, y - dy) && walkable(x + dx, y - dy)))
+				return x * n + y;
+			if(jumpStraight(x, y, dx, 0, endX, endY) >= 0 || jumpStraight(x, y, 0, dy, endX, endY) >= 0)
+				return x * n + y;
+		}
+	}
+
+	/**
+	 * Whether the unit being routed by jump point search fits at a point inside the window it scans
+	 */
+	private boolean walkable(int x, int y){
+		if(x < jumpMinX || x > jumpMaxX || y < jumpMinY || y > jumpMaxY)
+			return false;
+
+		/* Single tile units only need their own tile free */
+		if(jumperSingle)
+			return !occupancy.spaceTakenFor(x, y, jumper);
+		return occupancy.canPlaceUnit(jumper, x, y, Direction.North);
+	}
+
+	/**
+	 * Start tracking a cell in the current search, on the open list
+	 * @param cell cell index
+	 * @param g cost of the path from the start
+	 * @param h estimated cost of the path to the end
+	 * @param from cell this cell was reached from, or -1
+	 */
+	private void visit(int cell, int g, int h, int from){
+		visited[cell] = generation;
+		closed[cell] = false;
+		gCost[cell] = g;
+		hCost[cell] = h;
+		parent[cell] = from;
+
+		/* Unreachable cells have the maximum H cost and are never picked */
+		if(from < 0 || (h != Integer.MAX_VALUE && h <= hCost[closest]))
+			closest = cell;
 	}
 
 	/**
@@ -278,116 +828,120 @@ public class Pathfinder extends Thread{
 	}
 
 	/**
-	 * Manhattan / taxicab distance between two points
+	 * Octile distance between two points: the cost of the straight and diagonal steps between
+	 * them over the cheapest terrain, which never overestimates the cost of a path
+	 */
+	private int octile(int startX, int startY, int endX, int endY){
+		int dx = Math.abs(endX - startX), dy = Math.abs(endY - startY);
+		int diagonal = Math.min(dx, dy);
+		return cheapestCost * (TerrainCosts.DIAGONAL_COST * diagonal + TerrainCosts.STRAIGHT_COST * (Math.max(dx, dy) - diagonal));
+	}
+
+	/**
+	 * Total cost f = g + h of a cell
 	 */
-	private int manhattan(int startX, int startY, int endX, int endY){
-		return Math.abs(endX - startX) + Math.abs(endY - startY);
+	private int fCost(int cell){
+		return gCost[cell] + hCost[cell];
 	}
 
 	/**
 	 * Adds element to heap
 	 */
-	private void add(Node n){		
+	private void add(int cell){
 		/* Add current node to end of heap */
-		heap[count] = n;
-
-		/* Heap up */
-		heapUp(count);
+		heap[count] = cell;
 
 		/* Increment number of open points in heap */
 		count++;
+
+		/* Heap up */
+		heapUp(count - 1);
 	}
 
 	/**
 	 * Removes first element from heap
+	 * @return the removed cell, or -1 if there are no nodes on the open list
 	 */
-	private Node remove(){
-		/* Move last element to top of heap */
-		Node first = heap[0];
-		try{
-			heap[0] = heap[count - 1];
-		}
-		/* If there are no nodes on the open list, return null */
-		catch(ArrayIndexOutOfBoundsException e){
-			return null;
-		}
+	private int remove(){
+		/* If there are no nodes on the open list, return nothing */
+		if(count == 0)
+			return -1;
 
-		/* Decrement number of open points in heap */
+		/* Move last element to top of heap */
+		int first = heap[0];
 		count--;
+		if(count > 0){
+			heap[0] = heap[count];
 
-		/* Heap down */
-		heapDown();
+			/* Heap down */
+			heapDown(0);
+		}
 
 		return first;
 	}
 
-	/**
-	 * Finds the node (x,y) in the heap
-	 * @return -1 if not found
-	 */
-	private int find(int x, int y){
-		int loc = -1;
-		for(int i = 0; i < count; i++)
-			if(heap[i].getX() == x && heap[i].getY() == y){
-				loc = i;
-				break;
-			}
-		return loc;
-	}
-
 	/**
 	 * Heap up
 	 * @param start starting position in heap
 	 */
 	private void heapUp(int start){
-		/* Heap up */
+		/* Move parents down into the hole until the cell fits, then drop it in */
+		int cell = heap[start], f = fCost(cell);
 		int i = start;
 		while(i > 0){
-			if(heap[i].getFCost() <= heap[(i-1)/2].getFCost()){
-				Node temp = heap[(i-1)/2];
-				heap[(i-1)/2] = heap[i];
-				heap[i] = temp;
-				i = (i-1)/2;
+			int up = (i - 1) / 2;
+			if(f <= fCost(heap[up])){
+				heap[i] = heap[up];
+				heapIndex[heap[i]] = i;
+				i = up;
 			} else
 				break;
 		}
+		heap[i] = cell;
+		heapIndex[cell] = i;
 	}
 
 	/**
 	 * Heap down
+	 * @param start starting position in heap
 	 */
-	private void heapDown(){
-		/* Heap down */
-		int parent = 0;
+	private void heapDown(int start){
+		/* Move the smaller child up into the hole until the cell fits, then drop it in */
+		int cell = heap[start], f = fCost(cell);
+		int i = start;
 		while(true){
-			int child = parent;
-			if(2*parent + 2 <= count){
-				if(heap[parent].getFCost() > heap[2*child + 1].getFCost())
-					parent = 2*child + 1;
-				if(heap[parent].getFCost() > heap[2*child + 2].getFCost())
-					parent = 2*child + 2;
-			} else if(2*parent + 1 <= count){
-				if(heap[parent].getFCost() > heap[2*child + 1].getFCost())
-					parent = 2*child + 1;
-			}
-			if(parent > child){
-				Node temp = heap[child];
-				heap[child] = heap[parent];
-				heap[parent] = temp;
-			} else
+			int child = 2*i + 1;
+			if(child >= count)
+				break;
+			if(child + 1 < count && fCost(heap[child + 1]) < fCost(heap[child]))
+				child++;
+			if(fCost(heap[child]) >= f)
 				break;
+			heap[i] = heap[child];
+			heapIndex[heap[i]] = i;
+			i = child;
 		}
+		heap[i] = cell;
+		heapIndex[cell] = i;
 	}
 
 	/**
-	 * Retrace the path starting at the end node (x,y)
+	 * Retrace the path starting at the end cell
 	 */
-	private void retrace(Node n){
-		path.add(0, n.getPoint());
-		if(n.getParent() != null){
-			Node parent = n.getParent();
-			retrace(parent);
+	private void retrace(int cell){
+		/* Walk back to the start, then flip the points into start-to-end order */
+		for(int c = cell; c >= 0; c = parent[c]){
+			path.add(new Point(c / n, c % n));
+			if(parent[c] < 0)
+				break;
+
+			/* Jump point search links cells a straight line apart, so fill in the cells between */
+			int x = c / n, y = c % n, px = parent[c] / n, py = parent[c] % n;
+			int dx = Integer.signum(px - x), dy = Integer.signum(py - y);
+			for(x += dx, y += dy; x != px || y != py; x += dx, y += dy)
+				path.add(new Point(x, y));
 		}
+		Collections.reverse(path);
 	}
 
 	/**
@@ -402,27 +956,10 @@ public class Pathfinder extends Thread{
 	 * Get directions corresponding to the path found
 	 * @return directions
 	 */
-	public Queue<Direction> getDirections(){
-		if(path.size() <= 1)
-			return directions;
-		Iterator<Point> itr = path.iterator();
-		Point current = (Point) itr.next();
-		Point next = (Point) itr.next();
-		while(itr.hasNext()){
-			directions.add(mapGrid.getDirection(current, next));
-			current = next;
-			next = (Point) itr.next();
-		}
-		directions.add(mapGrid.getDirection(current, next));
+	public Path getDirections(){
+		Path directions = new Path(Math.max(0, path.size() - 1));
+		for(int i = 1; i < path.size(); i++)
+			directions.add(mapGrid.getDirection(path.get(i - 1), path.get(i)));
 		return directions;
 	}
-
-
-
-	public void run(){
-		findRoute(unit, endX, endY);
-		unit.setPath(getDirections());
-		this.reset();
-		pathHandler.add(this);
-	}
 }
@@ -0,0 +1,376 @@
+package com.scriptrts.game.path;
+
+import java.awt.Point;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.UnitShape;
+
+/**
+ * Labels the parts of the unit grid a unit can get between, so a route to somewhere it can never
+ * reach (inside a volcano, or in an area walled off by buildings) is turned into a route to the
+ * nearest place it can reach, without searching the whole map first.
+ *
+ * As with the cluster graph, only objects which never move are obstacles here. The cells a unit
+ * fits on are split into connected components, separately for each size of square unit shape; a
+ * square unit fits on a cell if no static object is within its radius of the cell, and the whole
+ * unit is on the grid. Other shapes all cover their center cell, so they use the components of
+ * single tile units, which can only tell that a place can't be reached by any unit.
+ *
+ * The components for a radius are labeled the first time a unit of that size is routed. The
+ * index listens to the unit grid, and when a static object is placed or removed only the
+ * components around it are labeled again, the next time a unit is routed once the latest
+ * published snapshot of the unit grid includes the change. As in the cluster graph, labels are
+ * only changed from that snapshot, under a lock the game thread never takes, so placing a static
+ * object never waits for a worker looking up or relabeling components.
+ */
+public class ReachabilityIndex implements MapGrid.StaticObjectListener {
+	/**
+	 * Largest radius of square unit shape with components of its own. Larger units use the
+	 * components of this radius, which they can't reach any more of.
+	 */
+	private static final int MAX_RADIUS = 5;
+
+	/**
+	 * Component labels of the cells for one radius of unit shape
+	 */
+	private static class Labels {
+		/**
+		 * Component of each cell, by cell index, or zero if a unit of this radius doesn't fit there
+		 */
+		int[] label;
+
+		/**
+		 * Next component label to give out
+		 */
+		int next = 1;
+
+		/**
+		 * Bounding box of the static objects placed or removed since the components were labeled,
+		 * or an empty box if there were none
+		 */
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Unit grid the units are on
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Areas in which static objects were placed or removed, not yet read, in the order they
+	 * changed, as the bounding box followed by the version of the first snapshot including it
+	 */
+	private Queue<int[]> changes = new ConcurrentLinkedQueue<int[]>();
+
+	/**
+	 * Lock held by lookups while they read the labels, and while the labels are changed
+	 */
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Whether each cell is taken by an object which never moves, by cell index, as of the last
+	 * change read
+	 */
+	private boolean[] blocked;
+
+	/**
+	 * Component labels for each radius of unit shape, or null for radii not labeled yet
+	 */
+	private Labels[] labels = new Labels[MAX_RADIUS + 1];
+
+	/**
+	 * Queue used while labeling a component
+	 */
+	private int[] queue;
+
+	/**
+	 * Cells of the components being labeled again, also used as the queue gathering them
+	 */
+	private int[] cleared;
+
+	/**
+	 * Running sums of blocked cells over the area being checked for where units fit
+	 */
+	private int[] sums = new int[0];
+
+	/**
+	 * Create a new reachability index over a unit grid and start listening for changes to it.
+	 * Called by the game thread.
+	 * @param grid unit grid the units are on
+	 */
+	public ReachabilityIndex(MapGrid grid){
+		this.grid = grid;
+		n = grid.getSize();
+		blocked = new boolean[n * n];
+		queue = new int[n * n];
+		cleared = new int[n * n];
+		updateBlocked(grid, 0, 0, n - 1, n - 1);
+		grid.addStaticObjectListener(this);
+	}
+
+	/**
+	 * Note the area around a static object which was placed or removed, to be read once the next
+	 * snapshot of the unit grid is published. Called by the game thread.
+	 */
+	public void staticObjectChanged(int minX, int minY, int maxX, int maxY){
+		changes.add(new int[]{ minX, minY, maxX, maxY, grid.getVersion() + 1 });
+	}
+
+	/**
+	 * Check whether a unit can get from one place to another, as far as static objects go
+	 * @param unit unit to route
+	 * @param startX x coordinate the unit is routed from
+	 * @param startY y coordinate the unit is routed from
+	 * @param endX x coordinate of the destination
+	 * @param endY y coordinate of the destination
+	 * @return false if no route to the destination exists, true if one may exist
+	 */
+	public boolean isReachable(GameObject unit, int startX, int startY, int endX, int endY){
+		int[] label = acquireLabels(unit).label;
+		try {
+			int from = label[startX * n + startY];
+			return from == 0 || !grid.contains(endX, endY) || label[endX * n + endY] == from;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the nearest place to a destination which a unit can get to. Places at the same
+	 * distance (along either axis) from the destination are ranked by straight line distance.
+	 * @param unit unit to route
+	 * @param startX x coordinate the unit is routed from
+	 * @param startY y coordinate the unit is routed from
+	 * @param endX x coordinate of the destination
+	 * @param endY y coordinate of the destination
+	 * @return the destination itself if the unit may be able to reach it (or the unit stands
+	 *         somewhere it doesn't fit, so nothing can be told), otherwise the nearest place it can reach
+	 */
+	public Point nearestReachable(GameObject unit, int startX, int startY, int endX, int endY){
+		int[] label = acquireLabels(unit).label;
+		try {
+			int from = label[startX * n + startY];
+			if(from == 0 || !grid.contains(endX, endY) || label[endX * n + endY] == from)
+				return new Point(endX, endY);
+
+			/* Look at rings of cells further and further out from the destination */
+			for(int d = 1; d < n; d++){
+				int best = -1, bestDistance = Integer.MAX_VALUE;
+				for(int x = Math.max(0, endX - d); x <= Math.min(n - 1, endX + d); x++){
+					/* Only the top and bottom of the ring, unless this is its left or right edge */
+					int step = (x == endX - d || x == endX + d) ? 1 : 2 * d;
+					for(int y = endY - d; y <= endY + d; y += step){
+						if(y < 0 || y >= n || label[x * n + y] != from)
+							continue;
+						int distance = (x - endX) * (x - endX) + (y - endY) * (y - endY);
+						if(distance < bestDistance){
+							best = x * n + y;
+							bestDistance = distance;
+						}
+					}
+				}
+				if(best >= 0)
+					return new Point(best / n, best % n);
+			}
+			return new Point(startX, startY);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the component labels to use for a unit, bringing them up to date first if needed. The
+	 * labels are returned with the read lock held, which the caller must release.
+	 */
+	private Labels acquireLabels(GameObject unit){
+		UnitShape shape = unit.getUnitShape();
+		int r = (shape != null && shape.isSquare()) ? Math.min(shape.getRadius(), MAX_RADIUS) : 0;
+
+		lock.readLock().lock();
+		Labels l = labels[r];
+		if(l != null && l.minX > l.maxX && changes.isEmpty())
+			return l;
+		lock.readLock().unlock();
+
+		/* Update the labels, then keep reading them without letting another update in between */
+		lock.writeLock().lock();
+		try {
+			readChanges();
+			l = labels[r];
+			if(l == null){
+				l = new Labels();
+				l.label = new int[n * n];
+				labels[r] = l;
+				relabel(l, r, 0, 0, n - 1, n - 1);
+			}
+			else if(l.minX <= l.maxX)
+				relabel(l, r, l.minX, l.minY, l.maxX, l.maxY);
+
+			l.minX = l.minY = Integer.MAX_VALUE;
+			l.maxX = l.maxY = Integer.MIN_VALUE;
+			lock.readLock().lock();
+			return l;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Read the areas changed which the latest snapshot of the unit grid includes, noting which
+	 * of their cells are now blocked and marking the components around them to be labeled again.
+	 * Changes made since wait for a later snapshot. Called with the write lock held.
+	 */
+	private void readChanges(){
+		if(changes.isEmpty())
+			return;
+
+		/* Before any snapshot is published, the grid itself is all there is to read */
+		MapGrid snapshot = grid.acquireSnapshot();
+		int published = (snapshot == grid) ? Integer.MAX_VALUE : snapshot.getVersion();
+		for(int[] change = changes.peek(); change != null && change[4] <= published; change = changes.peek()){
+			changes.poll();
+			updateBlocked(snapshot, change[0], change[1], change[2], change[3]);
+			for(Labels l : labels){
+				if(l == null)
+					continue;
+				l.minX = Math.min(l.minX, change[0]);
+				l.minY = Math.min(l.minY, change[1]);
+				l.maxX = Math.max(l.maxX, change[2]);
+				l.maxY = Math.max(l.maxY, change[3]);
+			}
+		}
+		grid.releaseSnapshot(snapshot);
+	}
+
+	/**
+	 * Label again the components touching an area in which static objects were placed or removed.
+	 * The cells of those components are gathered by flooding out from the area and cleared, the
+	 * cells near the area are checked again, and the cleared cells which a unit fits on are
+	 * flooded with new labels.
+	 * @param r radius of the unit shape
+	 */
+	private void relabel(Labels l, int r, int minX, int minY, int maxX, int maxY){
+		int[] label = l.label;
+		int x0 = Math.max(0, minX - r - 1), y0 = Math.max(0, minY - r - 1);
+		int x1 = Math.min(n - 1, maxX + r + 1), y1 = Math.min(n - 1, maxY + r + 1);
+
+		/* Gather and clear the components touching the area, marking their cells to be labeled with -1 */
+		int count = 0;
+		for(int x = x0; x <= x1; x++)
+			for(int y = y0; y <= y1; y++)
+				if(label[x * n + y] > 0)
+					count = gather(label, x * n + y, count);
+
+		/* Check the cells near the area, then label every cell marked, in the area or cleared */
+		markFits(label, r, x0, y0, x1, y1);
+		for(int x = x0; x <= x1; x++)
+			for(int y = y0; y <= y1; y++)
+				if(label[x * n + y] < 0)
+					flood(label, x * n + y, l.next++);
+		for(int i = 0; i < count; i++)
+			if(label[cleared[i]] < 0)
+				flood(label, cleared[i], l.next++);
+	}
+
+	/**
+	 * Clear the label of every cell of a component, marking them with -1 and adding them to the
+	 * cleared cells
+	 * @param first cell of the component
+	 * @param count number of cleared cells gathered so far
+	 * @return number of cleared cells gathered, including this component's
+	 */
+	private int gather(int[] label, int first, int count){
+		int component = label[first];
+		int head = count;
+		label[first] = -1;
+		cleared[count++] = first;
+		while(head < count){
+			int cell = cleared[head++];
+			int x = cell / n, y = cell % n;
+			for(int i = Math.max(0, x - 1); i <= Math.min(n - 1, x + 1); i++)
+				for(int j = Math.max(0, y - 1); j <= Math.min(n - 1, y + 1); j++){
+					int next = i * n + j;
+					if(label[next] == component){
+						label[next] = -1;
+						cleared[count++] = next;
+					}
+				}
+		}
+		return count;
+	}
+
+	/**
+	 * Give a label to every cell connected to a cell which is waiting to be labeled
+	 */
+	private void flood(int[] label, int first, int component){
+		int head = 0, tail = 0;
+		label[first] = component;
+		queue[tail++] = first;
+		while(head < tail){
+			int cell = queue[head++];
+			int x = cell / n, y = cell % n;
+			for(int i = Math.max(0, x - 1); i <= Math.min(n - 1, x + 1); i++)
+				for(int j = Math.max(0, y - 1); j <= Math.min(n - 1, y + 1); j++){
+					int next = i * n + j;
+					if(label[next] < 0){
+						label[next] = component;
+						queue[tail++] = next;
+					}
+				}
+		}
+	}
+
+	/**
+	 * Check which cells in an area a square unit of a given radius fits on without covering a
+	 * static object or going off the grid, marking them with -1 and the others with zero
+	 */
+	private void markFits(int[] label, int r, int x0, int y0, int x1, int y1){
+		/* Running sums of blocked cells over the area and the cells within the radius of it */
+		int sx = Math.max(0, x0 - r), sy = Math.max(0, y0 - r);
+		int width = Math.min(n - 1, x1 + r) - sx + 1, height = Math.min(n - 1, y1 + r) - sy + 1;
+		int m = height + 1;
+		if(sums.length < (width + 1) * m)
+			sums = new int[(width + 1) * m];
+		for(int j = 0; j < m; j++)
+			sums[j] = 0;
+		for(int i = 0; i < width; i++){
+			sums[(i + 1) * m] = 0;
+			for(int j = 0; j < height; j++)
+				sums[(i + 1) * m + j + 1] = (blocked[(sx + i) * n + sy + j] ? 1 : 0)
+					+ sums[i * m + j + 1] + sums[(i + 1) * m + j] - sums[i * m + j];
+		}
+
+		for(int x = x0; x <= x1; x++)
+			for(int y = y0; y <= y1; y++){
+				if(x - r < 0 || y - r < 0 || x + r >= n || y + r >= n){
+					label[x * n + y] = 0;
+					continue;
+				}
+				int i0 = x - r - sx, j0 = y - r - sy, i1 = x + r + 1 - sx, j1 = y + r + 1 - sy;
+				int count = sums[i1 * m + j1] - sums[i0 * m + j1] - sums[i1 * m + j0] + sums[i0 * m + j0];
+				label[x * n + y] = count == 0 ? -1 : 0;
+			}
+	}
+
+	/**
+	 * Note which cells in an area are taken by objects which never move
+	 * @param source unit grid or snapshot to read
+	 */
+	private void updateBlocked(MapGrid source, int minX, int minY, int maxX, int maxY){
+		for(int x = Math.max(0, minX); x <= Math.min(n - 1, maxX); x++)
+			for(int y = Math.max(0, minY); y <= Math.min(n - 1, maxY); y++){
+				GameObject unit = source.getUnit(x, y);
+				blocked[x * n + y] = unit != null && !unit.isMovable();
+			}
+	}
+}
@@ -0,0 +1,123 @@
+package com.scriptrts.game.path;
+
+import java.util.Arrays;
+
+/**
+ * Cells of the unit grid reserved by units for spans of ticks, so units planning their next few
+ * steps can keep out of each other's way. Each cell keeps a short list of spans, tagged with the
+ * plan which reserved them. Spans which have ended are dropped the next time the cell's list is
+ * changed, so the table never needs clearing.
+ */
+class ReservationTable {
+	/**
+	 * Number of ints recorded for each span: the plan, the first tick and the last tick
+	 */
+	private static final int SPAN = 3;
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Spans reserved on each cell, by cell index, or null for cells never reserved
+	 */
+	private int[][] spans;
+
+	/**
+	 * Number of ints used in each cell's list of spans, by cell index
+	 */
+	private int[] used;
+
+	/**
+	 * Create a new empty reservation table
+	 * @param n size of the unit grid
+	 */
+	ReservationTable(int n){
+		this.n = n;
+		spans = new int[n * n][];
+		used = new int[n * n];
+	}
+
+	/**
+	 * Reserve a cell for a span of ticks
+	 * @param plan plan making the reservation
+	 * @param x x coordinate of the cell
+	 * @param y y coordinate of the cell
+	 * @param from first tick reserved
+	 * @param to last tick reserved
+	 * @param now current tick, before which spans can be dropped
+	 */
+	void reserve(int plan, int x, int y, int from, int to, int now){
+		int cell = x * n + y;
+		int[] list = spans[cell];
+		int count = (list == null) ? 0 : compact(cell, now);
+
+		/* Lengthen the plan's last span on this cell if the two meet, as they do while a unit waits */
+		if(count > 0 && list[count - SPAN] == plan && list[count - 1] >= from - 1){
+			list[count - 1] = Math.max(list[count - 1], to);
+			return;
+		}
+
+		if(list == null || list.length < count + SPAN){
+			list = (list == null) ? new int[2 * SPAN] : Arrays.copyOf(list, 2 * list.length);
+			spans[cell] = list;
+		}
+		list[count] = plan;
+		list[count + 1] = from;
+		list[count + 2] = to;
+		used[cell] = count + SPAN;
+	}
+
+	/**
+	 * Check whether a cell is free of other plans' reservations for a span of ticks
+	 * @param plan plan whose own reservations don't count
+	 * @param x x coordinate of the cell
+	 * @param y y coordinate of the cell
+	 * @param from first tick of the span
+	 * @param to last tick of the span
+	 * @return true if no other plan has reserved the cell for any of those ticks
+	 */
+	boolean isFree(int plan, int x, int y, int from, int to){
+		int cell = x * n + y;
+		int[] list = spans[cell];
+		for(int i = 0; i < used[cell]; i += SPAN)
+			if(list[i] != plan && list[i + 1] <= to && list[i + 2] >= from)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Drop every span a plan reserved on a cell
+	 * @param plan plan whose reservations to drop
+	 * @param x x coordinate of the cell
+	 * @param y y coordinate of the cell
+	 */
+	void release(int plan, int x, int y){
+		int cell = x * n + y;
+		int[] list = spans[cell];
+		int count = used[cell], kept = 0;
+		for(int i = 0; i < count; i += SPAN)
+			if(list[i] != plan){
+				System.arraycopy(list, i, list, kept, SPAN);
+				kept += SPAN;
+			}
+		used[cell] = kept;
+	}
+
+	/**
+	 * Drop the spans of a cell which ended before the current tick
+	 * @return number of ints still used in the cell's list
+	 */
+	private int compact(int cell, int now){
+		int[] list = spans[cell];
+		int count = used[cell], kept = 0;
+		for(int i = 0; i < count; i += SPAN)
+			if(list[i + 2] >= now){
+				System.arraycopy(list, i, list, kept, SPAN);
+				kept += SPAN;
+			}
+		used[cell] = kept;
+		return kept;
+	}
+}
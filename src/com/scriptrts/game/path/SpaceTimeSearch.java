@@ -0,0 +1,330 @@
+package com.scriptrts.game.path;
+
+import java.awt.Point;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameObject;
+import com.scriptrts.game.MapGrid;
+
+/**
+ * A* search over both space and time for one unit's next few steps, as in windowed cooperative
+ * A*. Each state is a cell at a time step, and from each state the unit can step to any
+ * neighboring cell or wait where it is, each taking as long as the unit takes to step. A state is only
+ * open if the unit fits on the cell, as far as units which aren't following a plan go, and no
+ * other unit has reserved the cells it would cover for those ticks.
+ *
+ * The search is confined to a square window around the start and a limited number of time
+ * steps, so it stays cheap however crowded the map is. The unit must fit in the same places
+ * whichever way it faces.
+ */
+class SpaceTimeSearch {
+	/**
+	 * Cell state: not looked up on the unit grid yet in this search
+	 */
+	private static final byte UNKNOWN = 0;
+
+	/**
+	 * Cell state: the unit fits on the cell, apart from units following a plan
+	 */
+	private static final byte OPEN = 1;
+
+	/**
+	 * Cell state: the unit doesn't fit on the cell
+	 */
+	private static final byte BLOCKED = 2;
+
+	/**
+	 * Most states expanded by a search before it gives up. A search which can't reach the goal
+	 * would otherwise go through every state in the window.
+	 */
+	private static final int MAX_EXPANDED = 512;
+
+	/**
+	 * Offsets of each move: a step in each direction, indexed by ordinal, then waiting
+	 */
+	private static final int[] MOVE_X = new int[Direction.values().length + 1], MOVE_Y = new int[Direction.values().length + 1];
+	static {
+		for(Direction d : Direction.values()){
+			MOVE_X[d.ordinal()] = MapGrid.getOffsetX(d);
+			MOVE_Y[d.ordinal()] = MapGrid.getOffsetY(d);
+		}
+	}
+
+	/**
+	 * Unit grid being searched
+	 */
+	private MapGrid grid;
+
+	/**
+	 * Reservations made by the plans of other units
+	 */
+	private ReservationTable table;
+
+	/**
+	 * Planner keeping track of which units follow plans
+	 */
+	private CooperativePlanner planner;
+
+	/**
+	 * Farthest the search goes from the start along either axis
+	 */
+	private int radius;
+
+	/**
+	 * Number of time steps searched
+	 */
+	private int depth;
+
+	/**
+	 * Width of the window, and the number of cells in it
+	 */
+	private int side, area;
+
+	/**
+	 * Corner of the window searched
+	 */
+	private int x0, y0;
+
+	/**
+	 * Search in which each state was last reached, by state index (time step * area + window index)
+	 */
+	private int[] visited;
+
+	/**
+	 * State each state was reached from, by state index
+	 */
+	private int[] parent;
+
+	/**
+	 * Search in which each cell was last looked up on the unit grid, by window index
+	 */
+	private int[] looked;
+
+	/**
+	 * State of each cell on the unit grid, by window index, valid if looked up in this search
+	 */
+	private byte[] state;
+
+	/**
+	 * Open states, as a binary heap of state indices, and their keys
+	 */
+	private int[] heap, keys;
+
+	/**
+	 * Number of states in the heap
+	 */
+	private int count;
+
+	/**
+	 * Current search
+	 */
+	private int generation;
+
+	/**
+	 * State at which the goal was reached by the last search
+	 */
+	private int reached;
+
+	/**
+	 * Tick at which the unit sets off in the current search
+	 */
+	private int start;
+
+	/**
+	 * Simulation ticks per second, and the unit's speed in unit tiles per second
+	 */
+	private int tickRate, speed;
+
+	/**
+	 * Create a new space-time search
+	 * @param grid unit grid to search
+	 * @param table reservations made by the plans of other units
+	 * @param planner planner keeping track of which units follow plans
+	 * @param radius farthest the search goes from the start along either axis
+	 * @param depth number of time steps searched
+	 */
+	SpaceTimeSearch(MapGrid grid, ReservationTable table, CooperativePlanner planner, int radius, int depth){
+		this.grid = grid;
+		this.table = table;
+		this.planner = planner;
+		this.radius = radius;
+		this.depth = depth;
+		side = 2 * radius + 1;
+		area = side * side;
+
+		int states = area * (depth + 1);
+		visited = new int[states];
+		parent = new int[states];
+		looked = new int[area];
+		state = new byte[area];
+		heap = new int[states];
+		keys = new int[states];
+	}
+
+	/**
+	 * Search for the quickest way for a unit to reach a goal, waiting where needed to let other
+	 * units by. The goal must be within the search radius of the start.
+	 * @param unit unit to route
+	 * @param plan plan of the unit, whose own reservations don't count
+	 * @param startX x coordinate of the unit
+	 * @param startY y coordinate of the unit
+	 * @param goalX x coordinate of the goal
+	 * @param goalY y coordinate of the goal
+	 * @param start tick at which the unit sets off
+	 * @param tickRate simulation ticks per second
+	 * @param speed speed of the unit, in unit tiles per second
+	 * @return number of time steps taken to reach the goal, or -1 if it can't be reached in time
+	 */
+	int search(GameObject unit, int plan, int startX, int startY, int goalX, int goalY, int start, int tickRate, int speed){
+		generation++;
+		this.start = start;
+		this.tickRate = tickRate;
+		this.speed = speed;
+		x0 = startX - radius;
+		y0 = startY - radius;
+		count = 0;
+
+		Point[] shape = unit.getShape(Direction.North);
+		int goal = (goalX - x0) * side + (goalY - y0);
+		if(!fits(unit, shape, goalX, goalY, goal))
+			return -1;
+
+		int first = (startX - x0) * side + (startY - y0);
+		visited[first] = generation;
+		parent[first] = -1;
+		push(first, distance(startX, startY, goalX, goalY));
+
+		for(int expanded = 0; count > 0 && expanded < MAX_EXPANDED; expanded++){
+			int current = pop();
+			int k = current / area, local = current % area;
+			if(local == goal){
+				reached = current;
+				return k;
+			}
+			if(k == depth)
+				continue;
+
+			/* The cells covered at the next time step are taken from the start of this step until the end of the next */
+			int from = tickAt(k), to = tickAt(k + 2);
+			int x = x0 + local / side, y = y0 + local % side;
+			for(int m = 0; m < MOVE_X.length; m++){
+				int nx = x + MOVE_X[m], ny = y + MOVE_Y[m];
+				if(nx < x0 || ny < y0 || nx >= x0 + side || ny >= y0 + side)
+					continue;
+
+				int nextLocal = (nx - x0) * side + (ny - y0);
+				int next = (k + 1) * area + nextLocal;
+				if(visited[next] == generation)
+					continue;
+				if(!fits(unit, shape, nx, ny, nextLocal) || !isFree(plan, shape, nx, ny, from, to))
+					continue;
+
+				/* Every state at a time step is the same number of steps from the start, so the first way found is as good as any */
+				visited[next] = generation;
+				parent[next] = current;
+				push(next, k + 1 + distance(nx, ny, goalX, goalY));
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the tick at which a time step of the current search begins
+	 * @param step time step
+	 * @return tick
+	 */
+	int tickAt(int step){
+		return start + step * tickRate / speed;
+	}
+
+	/**
+	 * Get where the unit is at a time step of the way found by the last search
+	 * @param step time step, up to the number of steps taken to reach the goal
+	 * @return cell, as a point
+	 */
+	Point getPosition(int step){
+		int s = reached;
+		for(int k = reached / area; k > step; k--)
+			s = parent[s];
+		int local = s % area;
+		return new Point(x0 + local / side, y0 + local % side);
+	}
+
+	/**
+	 * Check whether the unit fits on a cell, as far as static objects and units which aren't
+	 * following a plan go
+	 */
+	private boolean fits(GameObject unit, Point[] shape, int x, int y, int local){
+		if(looked[local] != generation){
+			looked[local] = generation;
+			state[local] = OPEN;
+			for(Point p : shape){
+				int cx = x + p.x, cy = y + p.y;
+				GameObject other = grid.getUnit(cx, cy);
+				if(!grid.contains(cx, cy) || (other != null && other != unit && !planner.isMoving(other))){
+					state[local] = BLOCKED;
+					break;
+				}
+			}
+		}
+		return state[local] == OPEN;
+	}
+
+	/**
+	 * Check whether the cells the unit covers on a cell are free of other units' reservations for a span of ticks
+	 */
+	private boolean isFree(int plan, Point[] shape, int x, int y, int from, int to){
+		for(Point p : shape)
+			if(!table.isFree(plan, x + p.x, y + p.y, from, to))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Number of steps between two cells, ignoring obstacles
+	 */
+	private static int distance(int x, int y, int goalX, int goalY){
+		return Math.max(Math.abs(x - goalX), Math.abs(y - goalY));
+	}
+
+	/**
+	 * Add a state to the heap. States with the same estimate are taken latest time step first.
+	 * @param f estimated number of time steps to the goal through the state
+	 */
+	private void push(int s, int f){
+		int key = f * (depth + 2) + depth - s / area;
+		int i = count++;
+		while(i > 0){
+			int p = (i - 1) / 2;
+			if(keys[p] <= key)
+				break;
+			heap[i] = heap[p];
+			keys[i] = keys[p];
+			i = p;
+		}
+		heap[i] = s;
+		keys[i] = key;
+	}
+
+	/**
+	 * Remove the state with the smallest key from the heap
+	 */
+	private int pop(){
+		int top = heap[0];
+		int s = heap[--count], key = keys[count];
+		int i = 0;
+		while(2 * i + 1 < count){
+			int c = 2 * i + 1;
+			if(c + 1 < count && keys[c + 1] < keys[c])
+				c++;
+			if(keys[c] >= key)
+				break;
+			heap[i] = heap[c];
+			keys[i] = keys[c];
+			i = c;
+		}
+		heap[i] = s;
+		keys[i] = key;
+		return top;
+	}
+}
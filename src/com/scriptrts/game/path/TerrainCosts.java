@@ -0,0 +1,159 @@
+package com.scriptrts.game.path;
+
+import com.scriptrts.game.Direction;
+import com.scriptrts.game.GameMap;
+import com.scriptrts.game.MapGrid;
+import com.scriptrts.game.TerrainType;
+
+/**
+ * Cost of stepping onto each cell of a game's unit grid, from the type of terrain under it. The
+ * path handler keeps one for its game, and the searches it runs all read it, so changing the
+ * cost of a type of terrain changes every route found afterwards. The costs of the cells are
+ * worked out again whole whenever a cost changes, so a search already under way keeps the costs
+ * it started with.
+ */
+public class TerrainCosts {
+	/**
+	 * Cost of a straight step and of a diagonal step, per unit of terrain cost. Their ratio is
+	 * close to the square root of two, so routes don't zigzag where a straight line will do.
+	 */
+	static final int STRAIGHT_COST = 5, DIAGONAL_COST = 7;
+
+	/**
+	 * Cost of a step in each direction, per unit of terrain cost, indexed by ordinal
+	 */
+	static final int[] DIRECTION_COSTS = new int[Direction.values().length];
+	static {
+		for(Direction d : Direction.values())
+			DIRECTION_COSTS[d.ordinal()] = (MapGrid.getOffsetX(d) != 0 && MapGrid.getOffsetY(d) != 0) ? DIAGONAL_COST : STRAIGHT_COST;
+	}
+
+	/**
+	 * Costs of the cells at one moment, never changed once made
+	 */
+	static class Table {
+		/**
+		 * Cost of stepping onto each cell of the unit grid, by cell index
+		 */
+		final byte[] cells;
+
+		/**
+		 * Cost of stepping onto the cheapest type of terrain, which scales heuristics so they
+		 * never overestimate
+		 */
+		final int cheapest;
+
+		/**
+		 * Whether every type of terrain costs the same to cross
+		 */
+		final boolean uniform;
+
+		/**
+		 * Create a table of costs
+		 */
+		Table(byte[] cells, int cheapest, boolean uniform){
+			this.cells = cells;
+			this.cheapest = cheapest;
+			this.uniform = uniform;
+		}
+
+		/**
+		 * Octile distance between two points: the cost of the straight and diagonal steps between
+		 * them over the cheapest terrain, which never overestimates the cost of a path
+		 */
+		int octile(int startX, int startY, int endX, int endY){
+			int dx = Math.abs(endX - startX), dy = Math.abs(endY - startY);
+			int diagonal = Math.min(dx, dy);
+			return cheapest * (DIAGONAL_COST * diagonal + STRAIGHT_COST * (Math.max(dx, dy) - diagonal));
+		}
+	}
+
+	/**
+	 * Terrain at each point on the map
+	 */
+	private TerrainType[][] terrainMap;
+
+	/**
+	 * Size of the unit grid
+	 */
+	private int n;
+
+	/**
+	 * Cost of stepping onto each type of terrain, indexed by ordinal
+	 */
+	private int[] typeCosts = new int[TerrainType.values().length];
+
+	/**
+	 * Latest costs of the cells
+	 */
+	private volatile Table table;
+
+	/**
+	 * Create the costs of a map, with every type of terrain costing the same
+	 * @param map map whose terrain to cost
+	 */
+	public TerrainCosts(GameMap map){
+		terrainMap = map.getTileArray();
+		n = map.getN() * MapGrid.SPACES_PER_TILE;
+		resetCosts();
+	}
+
+	/**
+	 * Make every type of terrain cost the same again
+	 */
+	public synchronized void resetCosts(){
+		for(TerrainType type : TerrainType.values())
+			typeCosts[type.ordinal()] = 1;
+		update();
+	}
+
+	/**
+	 * Set the cost of stepping onto one type of terrain. Once terrain types have different costs,
+	 * routes take them into account and jump point search is no longer used.
+	 * @param type type of terrain
+	 * @param cost cost of stepping onto a unit tile of that terrain, from 1 to 127
+	 */
+	public synchronized void setCost(TerrainType type, int cost){
+		if(cost < 1 || cost > Byte.MAX_VALUE)
+			throw new IllegalArgumentException("Terrain cost " + cost + " is not between 1 and " + Byte.MAX_VALUE);
+		typeCosts[type.ordinal()] = cost;
+		update();
+	}
+
+	/**
+	 * Get the cost of stepping onto one type of terrain
+	 * @param type type of terrain
+	 * @return cost of stepping onto a unit tile of that terrain
+	 */
+	public synchronized int getCost(TerrainType type){
+		return typeCosts[type.ordinal()];
+	}
+
+	/**
+	 * Get the latest costs of the cells, which a search keeps using until it is over
+	 * @return cell costs
+	 */
+	Table getTable(){
+		return table;
+	}
+
+	/**
+	 * Work out the cost of stepping onto each cell from the terrain costs, so searching only
+	 * looks up one byte per step
+	 */
+	private void update(){
+		boolean uniform = true;
+		int cheapest = Integer.MAX_VALUE;
+		for(int cost : typeCosts){
+			if(cost != typeCosts[0])
+				uniform = false;
+			cheapest = Math.min(cheapest, cost);
+		}
+
+		byte[] cells = new byte[n * n];
+		for(int x = 0; x < n; x++)
+			for(int y = 0; y < n; y++)
+				cells[x * n + y] = (byte) typeCosts[terrainMap[x / MapGrid.SPACES_PER_TILE][y / MapGrid.SPACES_PER_TILE].ordinal()];
+		table = new Table(cells, cheapest, uniform);
+	}
+}
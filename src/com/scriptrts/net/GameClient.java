@@ -6,14 +6,18 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 import com.scriptrts.core.Main;
 import com.scriptrts.game.AnimatedSprite;
 import com.scriptrts.game.Direction;
+import com.scriptrts.game.Game;
 import com.scriptrts.game.GameObject;
 import com.scriptrts.game.GameMap;
+import com.scriptrts.game.Path;
 import com.scriptrts.game.Player;
 import com.scriptrts.game.Sprite;
 import com.scriptrts.game.UnitClass;
@@ -143,18 +147,12 @@ public class GameClient {
     }
 
     /**
-     * Tell the server that the given unit had a direction appended to its path
+     * Tell the server that the given unit has a new path
      * @param unit unit that has had a path change
      * @param newPath the new path of the unit
      */
-    public void sendPathChangedNotification(GameObject unit, Queue<Direction> newPath){
-        sendRequest(ServerRequest.PathCleared, new Integer(unit.getID()));
-
-
-        sendRequest(ServerRequest.PathAppended, new Integer(unit.getID()), new Integer(newPath.size()));
-        for(Direction d : newPath){
-            sendRequest(d);
-        }
+    public void sendPathChangedNotification(GameObject unit, Path newPath){
+        sendRequest(ServerRequest.PathChanged, new Integer(unit.getID()), newPath);
     }
 
     /**
@@ -186,11 +184,15 @@ public class GameClient {
                 output.writeInt(((Integer) o).intValue());
             if(o instanceof Direction)
                 GameProtocol.sendDirection(output, (Direction) o);
+            if(o instanceof Path)
+                GameProtocol.sendPath(output, (Path) o);
         }
     }
 
     /**
-     * Listen for updates from the server
+     * Listen for updates from the server. Updates are read without holding the game, and only
+     * applied to it while holding the game's lock, which its simulation ticks and painting hold
+     * too, so they never land in the middle of a tick.
      */
     private void processUpdates() throws IOException, ClassNotFoundException {
         while (true) {
@@ -201,11 +203,13 @@ public class GameClient {
             }
 
             synchronized(this){
+                Game game = Main.getGame();
                 ServerResponse serverResponse = GameProtocol.readResponse(input);
                 if(serverResponse == ServerResponse.UnitUpdate){
+                    List<GameObject> added = new ArrayList<GameObject>();
                     int sizeNew = input.readInt();
                     for(int i = 0; i < sizeNew; i++) {
-                        GameObject newUnit = GameProtocol.readUnit(input);
+                        GameObject newUnit = GameProtocol.readUnit(input, Main.getGame().getPlayers());
 
                         try {
                             /* Retrieve spaceship sprites */
@@ -245,20 +249,26 @@ public class GameClient {
 
                             GameObject spaceship = new GameObject(null, sprites, art, 0, 0, 0, null, UnitShape.SHAPE_1x1, UnitClass.Standard);
                             spaceship.setParameters(newUnit);
-                            GameObject unit = spaceship;
-                            Main.getGame().getGameGrid().placeUnit(unit, unit.getUnit().getX(), unit.getUnit().getY());
-                            Main.getGame().getGameManager().addUnit(unit);
+                            added.add(spaceship);
                         } catch (Exception e) {
                             e.printStackTrace();
                         }
                     }
 
+                    List<GameObject> updated = new ArrayList<GameObject>();
                     int sizeUpdated = input.readInt();
-                    for(int i = 0; i < sizeUpdated; i++) {
-                        GameObject updatedUnit = GameProtocol.readUnit(input);
-                        Main.getGame().getGameManager().synchronizeUnit(updatedUnit);
-                    }
+                    for(int i = 0; i < sizeUpdated; i++)
+                        updated.add(GameProtocol.readUnit(input, Main.getGame().getPlayers()));
 
+                    /* Apply the update between ticks */
+                    synchronized(game){
+                        for(GameObject unit : added){
+                            game.getGameGrid().placeUnit(unit, unit.getUnit().getX(), unit.getUnit().getY());
+                            game.getGameManager().addUnit(unit);
+                        }
+                        for(GameObject updatedUnit : updated)
+                            game.getGameManager().synchronizeUnit(updatedUnit);
+                    }
                 }
                 if(serverResponse == ServerResponse.NewPlayer){
                     int id = input.readInt();
@@ -266,8 +276,10 @@ public class GameClient {
                     Color color = GameProtocol.readColor(input);
                     Player p = new Player(name, color, id);
                     System.out.println("Received Player " + p);
-                    if(!Main.getGame().getPlayers().contains(p))
-                        Main.getGame().getPlayers().add(p);
+                    synchronized(game){
+                        if(!game.getPlayers().contains(p))
+                            game.getPlayers().add(p);
+                    }
                 }
             }
         }
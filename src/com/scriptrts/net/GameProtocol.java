@@ -4,11 +4,12 @@ import java.awt.Color;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.List;
 
-import com.scriptrts.core.Main;
 import com.scriptrts.game.Direction;
 import com.scriptrts.game.GameObject;
 import com.scriptrts.game.GameMap;
+import com.scriptrts.game.Path;
 import com.scriptrts.game.Player;
 import com.scriptrts.game.SpriteState;
 import com.scriptrts.game.TerrainType;
@@ -79,6 +80,19 @@ public class GameProtocol {
             out.writeInt(d.ordinal());
     }
 
+    /**
+     * Write the directions of a path still to be taken to a stream, packed as they are in the path
+     * @param out output stream to which to write
+     * @param path path to write
+     */
+    public static void sendPath(DataOutputStream out, Path path) throws IOException {
+        long[] packed = path.pack();
+        out.writeInt(path.size());
+        out.writeInt(packed.length);
+        for(long word : packed)
+            out.writeLong(word);
+    }
+
     /**
      * Write a unit state to the server
      * @param out output stream to which to write
@@ -168,15 +182,38 @@ public class GameProtocol {
             return Direction.values()[dir];
     }
 
+    /**
+     * Read a path from the network. The sizes sent are checked before anything is allocated, so
+     * a bad peer can't make the reader allocate more than the longest path allowed.
+     * @param in input stream from which to read
+     * @param maxLength most directions a path may have
+     * @return path read
+     * @throws IOException if the stream fails, or the sizes sent don't describe a path of at most maxLength directions
+     */
+    public static Path readPath(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > maxLength)
+            throw new IOException("Path of " + length + " directions is not between 0 and " + maxLength);
+        int words = in.readInt();
+        if(words != Path.wordsFor(length))
+            throw new IOException("Path of " + length + " directions sent in " + words + " words instead of " + Path.wordsFor(length));
+
+        long[] packed = new long[words];
+        for(int i = 0; i < packed.length; i++)
+            packed[i] = in.readLong();
+        return new Path(packed, length);
+    }
+
     /**
      * Read a unit state from the server into the unit
      * @param in input stream from which to read
+     * @param players players in the game, used to look up the unit's owner
      * @return unit with sent state
      */
-    public static GameObject readUnit(DataInputStream in) throws IOException {
+    public static GameObject readUnit(DataInputStream in, List<Player> players) throws IOException {
         int playerID = in.readInt();
         Player p = null;
-        for(Player player : Main.getGame().getPlayers())
+        for(Player player : players)
             if(player.getID() == playerID)
                 p = player;
 
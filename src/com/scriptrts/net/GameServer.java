@@ -12,12 +12,16 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Vector;
 
-import com.scriptrts.core.Main;
+import jargs.gnu.CmdLineParser;
+
 import com.scriptrts.game.AnimatedSprite;
 import com.scriptrts.game.Direction;
 import com.scriptrts.game.GameObject;
+import com.scriptrts.game.GameScheduler;
 import com.scriptrts.game.HeadlessGame;
+import com.scriptrts.game.Path;
 import com.scriptrts.game.Player;
+import com.scriptrts.game.SimulationClock;
 import com.scriptrts.game.Sprite;
 import com.scriptrts.game.UnitClass;
 import com.scriptrts.game.UnitShape;
@@ -34,10 +38,20 @@ public class GameServer {
     public static final int MAX_CONNECTIONS = 2;
 
     /**
-     * Port used by this server
+     * Default port used by servers
      */
     public static final int PORT = 4242;
 
+    /**
+     * Number of searches under way at once when units are routed on the game thread
+     */
+    private static final int SLICED_SEARCHES = 4;
+
+    /**
+     * Port this server listens on
+     */
+    private int port;
+
     /**
      * Store sockets for each player connection
      */
@@ -55,11 +69,69 @@ public class GameServer {
     private HeadlessGame game;
 
     /**
-     * Main entry point for testing this class.
+     * Scheduler running the simulation of a dedicated server
+     */
+    private GameScheduler scheduler;
+
+    /**
+     * Create a new server listening on the default port
+     */
+    public GameServer(){
+        this(PORT);
+    }
+
+    /**
+     * Create a new server
+     * @param port port to listen on
+     */
+    public GameServer(int port){
+        super();
+        this.port = port;
+    }
+
+    /**
+     * Main entry point for a dedicated server, which runs the game without a display.
      * @param args command line arguments
      */
     public static void main(String... args) {
-        new GameServer().start(new HeadlessGame(129));
+        /* Never try to open a display, even if one is available */
+        System.setProperty("java.awt.headless", "true");
+
+        CmdLineParser parser = new CmdLineParser();
+        CmdLineParser.Option tickRateOpt = parser.addIntegerOption('t', "tickrate");
+        CmdLineParser.Option sizeOpt = parser.addIntegerOption("mapsize");
+        CmdLineParser.Option portOpt = parser.addIntegerOption('p', "port");
+        CmdLineParser.Option pathBudgetOpt = parser.addIntegerOption("path-budget");
+        CmdLineParser.Option cooperativeOpt = parser.addBooleanOption("cooperative");
+        try {
+            parser.parse(args);
+        }
+        catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        int tickRate = (Integer) parser.getOptionValue(tickRateOpt, SimulationClock.DEFAULT_TICK_RATE);
+        int size = (Integer) parser.getOptionValue(sizeOpt, 129);
+        int port = (Integer) parser.getOptionValue(portOpt, PORT);
+        Integer pathBudget = (Integer) parser.getOptionValue(pathBudgetOpt);
+        boolean cooperative = (Boolean) parser.getOptionValue(cooperativeOpt, Boolean.FALSE);
+
+        HeadlessGame game = new HeadlessGame(size);
+        game.setTickRate(tickRate);
+        game.init();
+
+        /* Small servers can route units on the game thread, a few cells at a time, instead of on pathfinder threads */
+        if(pathBudget != null)
+            game.getPathHandler().setTimeSlicing(SLICED_SEARCHES, pathBudget);
+
+        /* Crowded games can have units plan their next few steps around each other */
+        if(cooperative)
+            game.getPathHandler().setCooperative(true);
+
+        GameServer server = new GameServer(port);
+        server.start(game);
+        server.startSimulation(new GameScheduler(1));
+        System.out.println("Serving on port " + port + " at " + tickRate + " ticks per second.");
     }
 
     /**
@@ -76,9 +148,9 @@ public class GameServer {
                     /*
                        ServerSocketChannel serverChannel = ServerSocketChannel.open();
                        serverChannel.configureBlocking(false);
-                       serverChannel.socket().bind(new InetSocketAddress(GameServer.PORT));
+                       serverChannel.socket().bind(new InetSocketAddress(port));
                        */
-                    ServerSocket serverSocket = new ServerSocket(GameServer.PORT);
+                    ServerSocket serverSocket = new ServerSocket(port);
 
                     /* Start a new thread to deal with connections */
                     new Thread(new Runnable(){
@@ -132,6 +204,17 @@ public class GameServer {
         }.start();
     }
 
+    /**
+     * Run the game simulation on a scheduler, whether the server is dedicated or hosted by a
+     * graphical game. Between ticks the scheduler's threads sleep, so an idle server uses almost
+     * no CPU.
+     * @param scheduler scheduler to run the game on, which may be shared with other servers
+     */
+    public void startSimulation(GameScheduler scheduler){
+        this.scheduler = scheduler;
+        scheduler.start(game);
+    }
+
     /**
      * Handle requests made by clients
      */
@@ -150,24 +233,31 @@ public class GameServer {
                     try {
                         DataInputStream objIn = objectInputs.get(connections.indexOf(socket));
                         ServerRequest request = GameProtocol.readRequest(objIn);
-                        switch(request){
-                            case PlayerNameChange:
-                                changeNameRequest(socket, objIn);
-                                break;
-                            case PlayerColorChange:
-                                changeColorRequest(socket, objIn);
-                                break;
-                            case PathAppended:
-                                pathAppendedRequest(socket, objIn);
-                                break;
-                            case PathCleared:
-                                pathClearedRequest(socket, objIn);
-                                break;
-                            case NewUnit:
-                                newUnitRequest(socket, objIn);
-                                break;
-                            default:
-                                break;
+
+                        /* Don't change the game while a simulation tick is running */
+                        synchronized(game){
+                            switch(request){
+                                case PlayerNameChange:
+                                    changeNameRequest(socket, objIn);
+                                    break;
+                                case PlayerColorChange:
+                                    changeColorRequest(socket, objIn);
+                                    break;
+                                case PathAppended:
+                                    pathAppendedRequest(socket, objIn);
+                                    break;
+                                case PathCleared:
+                                    pathClearedRequest(socket, objIn);
+                                    break;
+                                case NewUnit:
+                                    newUnitRequest(socket, objIn);
+                                    break;
+                                case PathChanged:
+                                    pathChangedRequest(socket, objIn);
+                                    break;
+                                default:
+                                    break;
+                            }
                         }
                     } catch (IOException e){
                         if(e instanceof EOFException || e.getMessage() != null && e.getMessage().trim().equals("Broken pipe"))
@@ -225,7 +315,9 @@ public class GameServer {
                     }
                 }
 
-                game.getGameManager().clearUpdates();
+                synchronized(game){
+                    game.getGameManager().clearUpdates();
+                }
             }
         }
     }
@@ -305,7 +397,7 @@ public class GameServer {
         GameProtocol.sendMap(objOut, game.getCurrentMap());
 
         /* Send back players */
-        for(Player p : Main.getGame().getPlayers()){
+        for(Player p : game.getPlayers()){
             GameProtocol.sendResponse(objOut, ServerResponse.NewPlayer);
             objOut.writeInt(p.getID());
             GameProtocol.sendString(objOut, p.getName());
@@ -392,7 +484,7 @@ public class GameServer {
     public void pathAppendedRequest(Socket socket, DataInputStream in) throws IOException, ClassNotFoundException {
         int unitID = in.readInt();
         int dirs = in.readInt();
-        GameObject unit = Main.getGame().getGameManager().unitWithId(unitID);
+        GameObject unit = game.getGameManager().unitWithId(unitID);
 
         for(int i = 0; i < dirs; i++){
             Direction d = GameProtocol.readDirection(in);
@@ -408,11 +500,27 @@ public class GameServer {
      */
     public void pathClearedRequest(Socket socket, DataInputStream in) throws IOException, ClassNotFoundException {
         int unitID = in.readInt();
-        GameObject unit = Main.getGame().getGameManager().unitWithId(unitID);
+        GameObject unit = game.getGameManager().unitWithId(unitID);
         if(unit != null)
             unit.clearPath();
     }
 
+    /**
+     * Respond to a new path request
+     * @param socket Socket to get data from
+     * @param in input stream to read from
+     */
+    public void pathChangedRequest(Socket socket, DataInputStream in) throws IOException {
+        int unitID = in.readInt();
+
+        /* No path needs more steps than there are cells on the grid */
+        int n = game.getGameGrid().getSize();
+        Path path = GameProtocol.readPath(in, n * n);
+        GameObject unit = game.getGameManager().unitWithId(unitID);
+        if(unit != null)
+            unit.setPath(path);
+    }
+
 
     /**
      * Respond to a new unit request
@@ -420,49 +528,53 @@ public class GameServer {
      * @param in input stream to read from
      */
     private void newUnitRequest(Socket socket, DataInputStream in) throws IOException, ClassNotFoundException {
-        GameObject newUnit = GameProtocol.readUnit(in);
+        GameObject newUnit = GameProtocol.readUnit(in, game.getPlayers());
 
         try {
-            /* Retrieve spaceship sprites */
-            BufferedImage art = ResourceManager.loadImage("resource/unit/spaceship/Art.png", 200, 200);
-            Sprite[] sprites = new Sprite[16];
-            for(Direction d : Direction.values()){
-                String unitDir = "resource/unit/spaceship/";
-                String unitFilename = "Ship" + d.name() + ".png";
-                BufferedImage img = ResourceManager.loadBandedImage(
-                        unitDir + unitFilename, unitDir + "allegiance/" + unitFilename, newUnit.getUnit().getAllegiance().getColor());
-                sprites[d.ordinal()]  = new Sprite(img, 0.3, 87, 25);
-            }
+            /* Retrieve spaceship sprites, unless nobody will see them */
+            BufferedImage art = null;
+            Sprite[] sprites = null;
+            if(game.hasGraphics()){
+                art = ResourceManager.loadImage("resource/unit/spaceship/Art.png", 200, 200);
+                sprites = new Sprite[16];
+                for(Direction d : Direction.values()){
+                    String unitDir = "resource/unit/spaceship/";
+                    String unitFilename = "Ship" + d.name() + ".png";
+                    BufferedImage img = ResourceManager.loadBandedImage(
+                            unitDir + unitFilename, unitDir + "allegiance/" + unitFilename, newUnit.getUnit().getAllegiance().getColor());
+                    sprites[d.ordinal()]  = new Sprite(img, 0.3, 87, 25);
+                }
 
-            for(Direction d : Direction.values()){
-                String unitDir = "resource/unit/spaceship/";
-                String unitFilename = "Ship" + d.name() + ".png";
-                BufferedImage normalImg = ResourceManager.loadBandedImage(
-                        unitDir + unitFilename, unitDir + "allegiance/" + unitFilename, newUnit.getUnit().getAllegiance().getColor());
-                BufferedImage attackImg = ResourceManager.loadBandedImage(
-                        unitDir + "attack/" + unitFilename, unitDir + "allegiance/" + unitFilename, newUnit.getUnit().getAllegiance().getColor());
-                int bX = 87, bY = 25;
-                if(d == Direction.Northwest)
-                    bY += 43;
-                if(d == Direction.Southwest)
-                    bX += 30;
-                sprites[8 + d.ordinal()]  = new AnimatedSprite(
-                        new BufferedImage[]{
-                            normalImg, attackImg
-                        }, new int[]{
-                            10, 10
-                        }, 0.3, new int[]{
-                            87, bX
-                        }, new int[]{
-                            25, bY
-                        });
+                for(Direction d : Direction.values()){
+                    String unitDir = "resource/unit/spaceship/";
+                    String unitFilename = "Ship" + d.name() + ".png";
+                    BufferedImage normalImg = ResourceManager.loadBandedImage(
+                            unitDir + unitFilename, unitDir + "allegiance/" + unitFilename, newUnit.getUnit().getAllegiance().getColor());
+                    BufferedImage attackImg = ResourceManager.loadBandedImage(
+                            unitDir + "attack/" + unitFilename, unitDir + "allegiance/" + unitFilename, newUnit.getUnit().getAllegiance().getColor());
+                    int bX = 87, bY = 25;
+                    if(d == Direction.Northwest)
+                        bY += 43;
+                    if(d == Direction.Southwest)
+                        bX += 30;
+                    sprites[8 + d.ordinal()]  = new AnimatedSprite(
+                            new BufferedImage[]{
+                                normalImg, attackImg
+                            }, new int[]{
+                                10, 10
+                            }, 0.3, new int[]{
+                                87, bX
+                            }, new int[]{
+                                25, bY
+                            });
+                }
             }
 
             GameObject spaceship = new GameObject(null, sprites, art, 0, 0, 0, null, UnitShape.SHAPE_1x1, UnitClass.Standard);
             spaceship.setParameters(newUnit);
             GameObject unit = spaceship;
-            Main.getGame().getGameGrid().placeUnit(unit, unit.getUnit().getX(), unit.getUnit().getY());
-            Main.getGame().getGameManager().addUnit(unit);
+            game.getGameGrid().placeUnit(unit, unit.getUnit().getX(), unit.getUnit().getY());
+            game.getGameManager().addUnit(unit);
             System.out.println("New Unit ID: " + unit.getID());
         } catch (Exception e) {
             e.printStackTrace();
@@ -510,6 +622,8 @@ public class GameServer {
      * Destroy this server and stop all background threads
      */
     public void destroy() throws IOException {
+        if(scheduler != null)
+            scheduler.stop(game);
         game = null;
 
         synchronized(connections){
@@ -7,6 +7,7 @@ public enum ServerRequest {
     PlayerColorChange,
     PathAppended,
     PathCleared,
-    NewUnit
+    NewUnit,
+    PathChanged
         ;
 }